@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import fuse.FuseException;
+import javax.mail.MessagingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing files of the in-memory tree: reads served from the local copy, the first read of a file, which
+ * downloads and decodes all of it, and writes to the local copy
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+
+  @State(Scope.Thread)
+  public static class Files {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"4096", "131072"})
+    public int readSize;
+
+    IMAPFile cached;
+    IMAPFile uncached;
+    IMAPFile written;
+    ByteBuffer buf;
+    long offset;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      IMAPEntry[] files = ((IMAPDirectory) new MemoryTree(1, 3, fileSize).getRoot().get("d1")).getChildren(false);
+      cached = (IMAPFile) files[0];
+      uncached = (IMAPFile) files[1];
+      written = (IMAPFile) files[2];
+      buf = ByteBuffer.allocate(Math.min(readSize, fileSize));
+
+      buf.clear();
+      cached.readData(buf, fileSize - buf.capacity());
+      buf.clear();
+      written.readData(buf, fileSize - buf.capacity());
+    }
+
+    /**
+     * Moves on to the next block of the file
+     */
+    long next() {
+      buf.clear();
+      offset += buf.capacity();
+      if (offset + buf.capacity() > fileSize)
+        offset = 0;
+      return offset;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      cached.dropLocalCopy();
+      uncached.dropLocalCopy();
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer readCached(Files f) throws MessagingException, FuseException, IOException {
+    f.cached.readData(f.buf, f.next());
+    return f.buf;
+  }
+
+  /**
+   * Reads the end of a file without a local copy, which waits for all of it to be downloaded
+   */
+  @Benchmark
+  public ByteBuffer readUncached(Files f) throws MessagingException, FuseException, IOException {
+    // The copy is pinned until the previous download has finished
+    while (!f.uncached.dropLocalCopy())
+      Thread.yield();
+
+    f.buf.clear();
+    f.uncached.readData(f.buf, f.fileSize - f.buf.capacity());
+    return f.buf;
+  }
+
+  @Benchmark
+  public ByteBuffer write(Files f) throws MessagingException, IOException {
+    f.written.writeData(f.buf, f.next());
+    return f.buf;
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import fuse.Filesystem;
+import fuse.FuseException;
+
+import dk.qabi.imapfs.fake.FakeIMAPServer;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Runs a mix of file operations against a file system from a number of threads and reports the throughput and
+ * latencies of each kind of operation. The file system is on an in-process {@link FakeIMAPServer}, which can add
+ * latency and limit bandwidth, unless the URL of a real server is given.
+ * <p>
+ * Arguments are of the form name=value:
+ * <ul>
+ * <li>threads: number of threads, each working in its own directory (default 4)</li>
+ * <li>duration: seconds to run (default 30)</li>
+ * <li>mix: weights of the operations (default create=1,write=2,read=5,ls=2,rename=1,delete=1)</li>
+ * <li>size: bytes written to a file by create and write (default 65536)</li>
+ * <li>url: URL of an IMAP server to use instead of the fake one</li>
+ * <li>trace: file to record a trace of the calls to, which {@link TraceReplay} can replay</li>
+ * <li>anything else is an option of the fake server, see {@link FakeIMAPServer#configure}</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+  private static final String[] OPERATIONS = {"create", "write", "read", "ls", "rename", "delete"};
+
+  private Filesystem fs;
+  private int size;
+  private int[] weights = new int[OPERATIONS.length];
+  private int totalWeight;
+  private Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+  private volatile boolean stopped;
+
+  LoadGenerator(Filesystem fs, int size, String mix) {
+    this.fs = fs;
+    this.size = size;
+
+    for (String part : mix.split(",")) {
+      String[] nv = part.split("=");
+      int i = indexOf(nv[0].trim());
+      if (i < 0 || nv.length != 2)
+        throw new IllegalArgumentException("Unknown operation '" + part + "' in mix");
+      weights[i] = Integer.parseInt(nv[1].trim());
+      totalWeight += weights[i];
+    }
+    if (totalWeight <= 0)
+      throw new IllegalArgumentException("Empty mix '" + mix + "'");
+
+    for (String op : OPERATIONS)
+      histograms.put(op, new LatencyHistogram());
+  }
+
+  private static int indexOf(String op) {
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      if (OPERATIONS[i].equals(op))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * The work of one thread, in a directory of its own
+   */
+  private class Worker implements Runnable {
+    private String dir;
+    private Random random;
+    private List<String> files = new ArrayList<String>();
+    private int nextName;
+    private ByteBuffer buf = ByteBuffer.allocate(65536);
+    private byte[] data;
+
+    Worker(int index) {
+      this.dir = "/load" + index;
+      this.random = new Random(index);
+      this.data = new byte[size];
+      random.nextBytes(data);
+    }
+
+    public void run() {
+      try {
+        fs.mkdir(dir, 0755);
+      } catch (FuseException e) {
+        System.err.println("Cannot create " + dir + ": " + e);
+        return;
+      }
+
+      while (!stopped) {
+        int pick = random.nextInt(totalWeight);
+        int op = 0;
+        while (pick >= weights[op])
+          pick -= weights[op++];
+
+        // Operations on files need a file to work on
+        if (files.isEmpty() && op != 0 && op != 3)
+          op = 0;
+
+        LatencyHistogram h = histograms.get(OPERATIONS[op]);
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+          run(OPERATIONS[op]);
+        } catch (Exception e) {
+          failed = true;
+          if (h.getErrors() == 0)
+            System.err.println("First failure of " + OPERATIONS[op] + ": " + e);
+        }
+        h.record(System.nanoTime() - start, failed);
+      }
+    }
+
+    private void run(String op) throws FuseException {
+      if (op.equals("create")) {
+        String path = dir + "/f" + nextName++;
+        fs.mknod(path, 0100644, 0);
+        files.add(path);
+        write(path);
+      } else if (op.equals("write")) {
+        write(pickFile());
+      } else if (op.equals("read")) {
+        String path = pickFile();
+        long fh = fs.open(path, 0);
+        try {
+          for (long offset = 0; offset < size; offset += buf.capacity()) {
+            buf.clear();
+            fs.read(path, fh, buf, offset);
+          }
+        } finally {
+          fs.release(path, fh, 0);
+        }
+      } else if (op.equals("ls")) {
+        fs.getdir(dir);
+      } else if (op.equals("rename")) {
+        String from = pickFile();
+        String to = dir + "/f" + nextName++;
+        fs.rename(from, to);
+        files.set(files.indexOf(from), to);
+      } else if (op.equals("delete")) {
+        String path = pickFile();
+        fs.unlink(path);
+        files.remove(path);
+      }
+    }
+
+    private String pickFile() {
+      return files.get(random.nextInt(files.size()));
+    }
+
+    private void write(String path) throws FuseException {
+      long fh = fs.open(path, 1);
+      try {
+        for (int offset = 0; offset < size; offset += 65536) {
+          fs.write(path, fh, false, ByteBuffer.wrap(data, offset, Math.min(65536, size - offset)), offset);
+        }
+        fs.flush(path, fh);
+      } finally {
+        fs.release(path, fh, 0);
+      }
+    }
+  }
+
+  /**
+   * Runs the workload
+   * @param threads number of threads
+   * @param seconds how long to run
+   * @return the number of operations per second
+   */
+  double run(int threads, int seconds) throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Worker(i), "load-" + i);
+      workers[i].start();
+    }
+
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    stopped = true;
+    for (Thread t : workers)
+      t.join();
+    long elapsed = System.nanoTime() - start;
+
+    long count = 0;
+    for (LatencyHistogram h : histograms.values())
+      count += h.getCount();
+    return count * 1e9 / elapsed;
+  }
+
+  String getReport() {
+    StringBuffer sb = new StringBuffer();
+    for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      LatencyHistogram h = e.getValue();
+      if (h.getCount() == 0)
+        continue;
+      sb.append("  ").append(e.getKey()).append(": count=").append(h.getCount()).append(" errors=")
+          .append(h.getErrors()).append(" mean=").append(h.getMean()).append("us p50<")
+          .append(h.getPercentile(0.5)).append("us p99<").append(h.getPercentile(0.99)).append("us p99.9<")
+          .append(h.getPercentile(0.999)).append("us\n");
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = 4;
+    int duration = 30;
+    int size = 65536;
+    String mix = "create=1,write=2,read=5,ls=2,rename=1,delete=1";
+    String url = null;
+    String traceFile = null;
+    List<String> serverOptions = new ArrayList<String>();
+
+    for (String arg : args) {
+      if (arg.startsWith("threads="))
+        threads = Integer.parseInt(arg.substring(8));
+      else if (arg.startsWith("duration="))
+        duration = Integer.parseInt(arg.substring(9));
+      else if (arg.startsWith("size="))
+        size = Integer.parseInt(arg.substring(5));
+      else if (arg.startsWith("mix="))
+        mix = arg.substring(4);
+      else if (arg.startsWith("url="))
+        url = arg.substring(4);
+      else if (arg.startsWith("trace="))
+        traceFile = arg.substring(6);
+      else
+        serverOptions.add(arg);
+    }
+
+    // A snapshot of an earlier run would describe files that are not there
+    if (System.getProperty("imapfs.snapshot") == null)
+      System.setProperty("imapfs.snapshot", "");
+
+    FakeIMAPServer server = null;
+    if (url == null) {
+      server = new FakeIMAPServer(0);
+      for (String option : serverOptions)
+        server.configure(option);
+      server.start();
+      url = server.getURL("load", "imapfs");
+    } else if (!serverOptions.isEmpty()) {
+      throw new IllegalArgumentException("Options " + serverOptions + " only apply to the fake server");
+    }
+
+    IMAPFileSystem fs = new IMAPFileSystem(new URL(null, url, new IMAPStreamHandler()));
+    TraceRecorder trace = null;
+    if (traceFile != null)
+      trace = new TraceRecorder(new File(traceFile), Configuration.getTraceFileSize(), Configuration.getTraceFiles());
+    LoadGenerator generator = new LoadGenerator(trace != null ? new TraceFilesystem(fs, trace) : fs, size, mix);
+    try {
+      System.out.println("Running " + threads + " threads for " + duration + "s against " + url);
+      double rate = generator.run(threads, duration);
+
+      System.out.println(String.format("%.1f ops/s", rate));
+      System.out.print(generator.getReport());
+      if (server != null) {
+        System.out.println("server commands:");
+        for (Map.Entry<String, Long> e : server.getCommandCounts().entrySet())
+          System.out.println("  " + e.getKey() + ": " + e.getValue());
+      }
+      System.out.println(Metrics.getInstance().getReport());
+    } finally {
+      if (trace != null)
+        trace.close();
+      fs.close();
+      if (server != null)
+        server.close();
+    }
+  }
+}
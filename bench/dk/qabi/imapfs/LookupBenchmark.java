@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.util.concurrent.TimeUnit;
+import fuse.FuseException;
+import javax.mail.MessagingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving paths, as done by every FUSE call: through the path cache, by walking the tree, and of paths that do not
+ * exist
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+  @Param({"1", "4", "8"})
+  public int depth;
+
+  @Param({"10", "1000"})
+  public int fanOut;
+
+  private IMAPFileSystem fs;
+  private IMAPDirectory root;
+  private String[] paths;
+  private String[] missing;
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    MemoryTree tree = new MemoryTree(depth, fanOut, 0);
+    root = tree.getRoot();
+    fs = new IMAPFileSystem(root);
+    paths = tree.getDeepestFiles();
+    missing = tree.getMissingFiles();
+
+    for (String path : paths)
+      fs.findEntry(path);
+  }
+
+  private int nextIndex() {
+    next = (next + 1) % paths.length;
+    return next;
+  }
+
+  @Benchmark
+  public IMAPEntry cached() throws FuseException {
+    return fs.findEntry(paths[nextIndex()]);
+  }
+
+  @Benchmark
+  public IMAPEntry walk() throws MessagingException {
+    return root.get(paths[nextIndex()].substring(1));
+  }
+
+  @Benchmark
+  public Object missing() {
+    try {
+      return fs.findEntry(missing[nextIndex()]);
+    } catch (FuseException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A tree of directories and files held in memory instead of on an IMAP server, for the benchmarks. Messages are
+ * stored the way {@link IMAPFile} uploads them, and parsed back as they would be fetched, so reading a file decodes
+ * its data like reading it from the server does, only without the round trips.
+ *
+ * The tree is a chain of <code>depth</code> nested directories <code>d1/d2/...</code>, each holding
+ * <code>fanOut</code> entries: the next directory and files <code>f0, f1, ...</code>, the deepest only files.
+ */
+class MemoryTree {
+
+  private IMAPDirectory root = new IMAPDirectory("INBOX");
+  private String deepest;
+  private int fanOut;
+
+  /**
+   * @param depth number of nested directories
+   * @param fanOut number of entries of each directory
+   * @param fileSize size of the files
+   * @throws MessagingException if the messages cannot be built
+   * @throws IOException if I/O errors occur
+   */
+  MemoryTree(int depth, int fanOut, int fileSize) throws MessagingException, IOException {
+    this.fanOut = fanOut;
+
+    byte[] data = new byte[fileSize];
+    new Random(42).nextBytes(data);
+
+    IMAPDirectory dir = root;
+    String folderName = "INBOX";
+    String path = "";
+    for (int level = 1; level <= depth; level++) {
+      String name = "d" + level;
+      folderName += "." + name;
+      path += "/" + name;
+
+      IMAPDirectory child = new IMAPDirectory(folderName, name, dir);
+      Map<String, IMAPEntry> entries = createFiles(dir, fanOut - 1, data);
+      entries.put(name, child);
+      dir.restore(1, entries);
+      dir = child;
+    }
+    dir.restore(1, createFiles(dir, fanOut, data));
+
+    this.deepest = path;
+  }
+
+  private static Map<String, IMAPEntry> createFiles(IMAPDirectory dir, int count, byte[] data)
+      throws MessagingException, IOException {
+    Map<String, IMAPEntry> entries = new HashMap<String, IMAPEntry>();
+    for (int i = 0; i < count; i++) {
+      IMAPFile file = new IMAPFile(createMessage("f" + i, data), dir);
+      entries.put(file.getName(), file);
+    }
+    return entries;
+  }
+
+  /**
+   * Get a message holding the data of a file, as it would be fetched from the server after uploading it
+   * @param name name of the file
+   * @param data content of the file
+   * @return the message
+   * @throws MessagingException if the message cannot be built
+   * @throws IOException if I/O errors occur
+   */
+  static Message createMessage(String name, byte[] data) throws MessagingException, IOException {
+    File tmp = File.createTempFile("imapfs-bench", ".dat");
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+
+      MimeMessage msg = new FileMessage(tmp, 0, data.length, null);
+      msg.setSubject(name);
+      msg.setHeader(IMAPFile.SIZE_HEADER, String.valueOf(data.length));
+      msg.setSentDate(new Date());
+      msg.saveChanges();
+
+      ByteArrayOutputStream stored = new ByteArrayOutputStream(data.length * 4 / 3 + 1024);
+      msg.writeTo(stored);
+      return new MimeMessage(Session.getDefaultInstance(new Properties(), null),
+          new ByteArrayInputStream(stored.toByteArray()));
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  IMAPDirectory getRoot() {
+    return root;
+  }
+
+  /**
+   * @return absolute paths of the files of the deepest directory
+   */
+  String[] getDeepestFiles() {
+    String[] paths = new String[fanOut];
+    for (int i = 0; i < fanOut; i++)
+      paths[i] = deepest + "/f" + i;
+    return paths;
+  }
+
+  /**
+   * @return absolute paths of files that do not exist in the deepest directory
+   */
+  String[] getMissingFiles() {
+    String[] paths = new String[fanOut];
+    for (int i = 0; i < fanOut; i++)
+      paths[i] = deepest + "/missing" + i;
+    return paths;
+  }
+}
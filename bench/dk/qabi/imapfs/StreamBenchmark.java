@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.qabi.imapfs.util.FileSliceDataSource;
+
+/**
+ * Streaming the local copy of a file when it is uploaded, e.g. after a write or a truncate: reading a range of the
+ * copy through {@link FileSliceDataSource} alone, and writing it as the base64 encoded message that is appended
+ * through {@link FileMessage}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+  @Param({"4096", "1048576"})
+  public int fileSize;
+
+  private File file;
+  private byte[] buffer = new byte[65536];
+  private FileMessage message;
+
+  /* Counts what is written, like a connection to a server that takes anything */
+  private static class Sink extends OutputStream {
+    long count;
+
+    public void write(int b) {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, MessagingException {
+    byte[] data = new byte[fileSize];
+    new Random(42).nextBytes(data);
+
+    file = File.createTempFile("imapfs-bench", ".dat");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+
+    message = new FileMessage(file, 0, fileSize, null);
+    message.setSubject("bench");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public long slice() throws IOException {
+    InputStream in = new FileSliceDataSource(file, 0, fileSize).getInputStream();
+    try {
+      long total = 0;
+      int n;
+      while ((n = in.read(buffer, 0, buffer.length)) > 0)
+        total += n;
+      return total;
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public long message() throws IOException {
+    Sink sink = new Sink();
+    message.writeTo(sink);
+    return sink.count;
+  }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import fuse.Filesystem;
+import fuse.FuseException;
+
+import dk.qabi.imapfs.fake.FakeIMAPServer;
+import dk.qabi.imapfs.util.PathUtil;
+
+/**
+ * Replays a trace recorded by {@link TraceRecorder} against a file system on an in-process {@link FakeIMAPServer},
+ * or a real server, and compares the latencies with the recorded ones.
+ * <p>
+ * Calls are replayed one at a time, in the order they started, so that a replay does the same thing every time;
+ * calls that overlapped when recorded do not overlap when replayed. Before replaying, the directories and files the
+ * trace uses without creating them are created, files as large as the trace reads them. Data written is a fixed
+ * pattern rather than what was written.
+ * <p>
+ * Arguments are the files of the trace, oldest first, and options of the form name=value:
+ * <ul>
+ * <li>speed: how many times faster than recorded to replay, or 0 for as fast as possible (default 1)</li>
+ * <li>url: URL of an IMAP server to use instead of the fake one</li>
+ * <li>dump: true to print the calls instead of replaying them</li>
+ * <li>anything else is an option of the fake server, see {@link FakeIMAPServer#configure}</li>
+ * </ul>
+ */
+public class TraceReplay {
+
+  private Filesystem fs;
+  private double speed;
+
+  private Map<String, LatencyHistogram> recorded = new TreeMap<String, LatencyHistogram>();
+  private Map<String, LatencyHistogram> replayed = new TreeMap<String, LatencyHistogram>();
+  private int mismatches;
+  private long maxLag;
+
+  /* Handles of the replay by recorded handle */
+  private Map<Long, Long> handles = new HashMap<Long, Long>();
+
+  private ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+  private byte[] data = new byte[65536];
+
+  TraceReplay(Filesystem fs, double speed) {
+    this.fs = fs;
+    this.speed = speed;
+  }
+
+  /**
+   * Reads the calls of a trace
+   * @param files the files of the trace, oldest first
+   * @return the calls, in the order they started
+   * @throws IOException if a file cannot be read
+   */
+  static List<TraceReader.Record> read(List<File> files) throws IOException {
+    List<TraceReader.Record> records = new ArrayList<TraceReader.Record>();
+    for (File file : files) {
+      TraceReader reader = new TraceReader(file);
+      try {
+        TraceReader.Record r;
+        while ((r = reader.next()) != null)
+          records.add(r);
+      } finally {
+        reader.close();
+      }
+    }
+
+    // Calls are recorded as they finish
+    Collections.sort(records, new Comparator<TraceReader.Record>() {
+      public int compare(TraceReader.Record a, TraceReader.Record b) {
+        return a.start < b.start ? -1 : a.start > b.start ? 1 : 0;
+      }
+    });
+    return records;
+  }
+
+  /**
+   * Creates the directories and files that the calls use without creating them
+   * @param records the calls
+   */
+  void prepare(List<TraceReader.Record> records) throws FuseException {
+    Set<String> seen = new HashSet<String>();
+    Set<String> created = new HashSet<String>();
+    Set<String> dirs = new TreeSet<String>();
+    Set<String> files = new TreeSet<String>();
+    Map<String, Long> extents = new HashMap<String, Long>();
+
+    for (TraceReader.Record r : records) {
+      // The first path of a symlink is its target, which need not exist
+      String path = r.op == TraceRecorder.SYMLINK ? null : r.path;
+
+      if (r.op == TraceRecorder.READ) {
+        Long extent = extents.get(path);
+        extents.put(path, Math.max(extent != null ? extent : 0, r.offset + r.length));
+      }
+
+      // A path first used by a call that succeeded, and did not create it, was there before the trace began
+      if (path != null && seen.add(path)) {
+        if (r.op == TraceRecorder.MKNOD || r.op == TraceRecorder.MKDIR)
+          created.add(path);
+        else if (!r.failed && (r.op == TraceRecorder.GETDIR || r.op == TraceRecorder.RMDIR))
+          dirs.add(path);
+        else if (!r.failed)
+          files.add(path);
+      }
+      if (r.path2 != null && seen.add(r.path2))
+        created.add(r.path2);
+
+      // Whatever is used is in a directory, which is there unless the trace creates it
+      for (String p : new String[]{path, r.path2}) {
+        if (p == null)
+          continue;
+        for (String parent = PathUtil.extractParent(p); parent != null && !parent.equals("/");
+             parent = PathUtil.extractParent(parent)) {
+          if (!created.contains(parent))
+            dirs.add(parent);
+        }
+      }
+    }
+
+    for (String dir : dirs) {
+      files.remove(dir);
+      if (ControlDirectory.handles(dir))
+        continue;
+      try {
+        fs.mkdir(dir, 0755);
+      } catch (FuseException e) {
+        // There already
+      }
+    }
+
+    for (String path : files) {
+      if (ControlDirectory.handles(path))
+        continue;
+      Long size = extents.get(path);
+      try {
+        fs.mknod(path, 0100644, 0);
+      } catch (FuseException e) {
+        continue;
+      }
+
+      long fh = fs.open(path, 1);
+      try {
+        for (long offset = 0; size != null && offset < size; offset += data.length)
+          fs.write(path, fh, false, ByteBuffer.wrap(data, 0, (int) Math.min(data.length, size - offset)), offset);
+        fs.flush(path, fh);
+      } finally {
+        fs.release(path, fh, 0);
+      }
+    }
+    System.out.println("Created " + dirs.size() + " directories and " + files.size() + " files used by the trace");
+  }
+
+  /**
+   * Replays calls
+   * @param records the calls, in the order they started
+   * @return the number of calls per second
+   */
+  double replay(List<TraceReader.Record> records) throws InterruptedException {
+    if (records.isEmpty())
+      return 0;
+
+    long first = records.get(0).start;
+    long began = System.nanoTime();
+
+    for (TraceReader.Record r : records) {
+      if (speed > 0) {
+        long due = (long) ((r.start - first) / speed);
+        long now = (System.nanoTime() - began) / 1000;
+        if (due > now)
+          Thread.sleep((due - now) / 1000, (int) ((due - now) % 1000) * 1000);
+        else
+          maxLag = Math.max(maxLag, now - due);
+      }
+
+      long start = System.nanoTime();
+      boolean failed = false;
+      try {
+        replay(r);
+      } catch (FuseException e) {
+        failed = true;
+      }
+      getHistogram(replayed, r.getName()).record(System.nanoTime() - start, failed);
+      getHistogram(recorded, r.getName()).record(r.latency * 1000, r.failed);
+      if (failed != r.failed)
+        mismatches++;
+    }
+
+    return records.size() * 1e9 / (System.nanoTime() - began);
+  }
+
+  private static LatencyHistogram getHistogram(Map<String, LatencyHistogram> histograms, String name) {
+    LatencyHistogram h = histograms.get(name);
+    if (h == null) {
+      h = new LatencyHistogram();
+      histograms.put(name, h);
+    }
+    return h;
+  }
+
+  private void replay(TraceReader.Record r) throws FuseException {
+    switch (r.op) {
+      case TraceRecorder.GETATTR:
+        fs.getattr(r.path);
+        break;
+      case TraceRecorder.READLINK:
+        fs.readlink(r.path);
+        break;
+      case TraceRecorder.GETDIR:
+        fs.getdir(r.path);
+        break;
+      case TraceRecorder.MKNOD:
+        fs.mknod(r.path, (int) r.length, 0);
+        break;
+      case TraceRecorder.MKDIR:
+        fs.mkdir(r.path, (int) r.length);
+        break;
+      case TraceRecorder.UNLINK:
+        fs.unlink(r.path);
+        break;
+      case TraceRecorder.RMDIR:
+        fs.rmdir(r.path);
+        break;
+      case TraceRecorder.SYMLINK:
+        fs.symlink(r.path, r.path2);
+        break;
+      case TraceRecorder.RENAME:
+        fs.rename(r.path, r.path2);
+        break;
+      case TraceRecorder.LINK:
+        fs.link(r.path, r.path2);
+        break;
+      case TraceRecorder.CHMOD:
+        fs.chmod(r.path, (int) r.length);
+        break;
+      case TraceRecorder.CHOWN:
+        fs.chown(r.path, (int) r.offset, (int) r.length);
+        break;
+      case TraceRecorder.TRUNCATE:
+        fs.truncate(r.path, r.offset);
+        break;
+      case TraceRecorder.UTIME:
+        fs.utime(r.path, (int) r.offset, (int) r.length);
+        break;
+      case TraceRecorder.STATFS:
+        fs.statfs();
+        break;
+      case TraceRecorder.OPEN:
+        long fh = fs.open(r.path, (int) r.length);
+        if (r.failed)
+          fs.release(r.path, fh, 0); // there will be no release of it
+        else
+          handles.put(r.fh, fh);
+        break;
+      case TraceRecorder.READ:
+        if (readBuffer.capacity() < r.length)
+          readBuffer = ByteBuffer.allocate((int) r.length);
+        readBuffer.clear();
+        readBuffer.limit((int) r.length);
+        fs.read(r.path, getHandle(r), readBuffer, r.offset);
+        break;
+      case TraceRecorder.WRITE:
+        if (data.length < r.length)
+          data = new byte[(int) r.length];
+        fs.write(r.path, getHandle(r), false, ByteBuffer.wrap(data, 0, (int) r.length), r.offset);
+        break;
+      case TraceRecorder.FLUSH:
+        fs.flush(r.path, getHandle(r));
+        break;
+      case TraceRecorder.RELEASE:
+        fs.release(r.path, getHandle(r), (int) r.length);
+        handles.remove(r.fh);
+        break;
+      case TraceRecorder.FSYNC:
+        fs.fsync(r.path, getHandle(r), r.length != 0);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operation " + r.op);
+    }
+  }
+
+  /**
+   * Get the handle of the replay for the recorded handle of a call, opening the file if it was opened before the
+   * trace began
+   */
+  private long getHandle(TraceReader.Record r) throws FuseException {
+    Long fh = handles.get(r.fh);
+    if (fh == null) {
+      fh = fs.open(r.path, 2);
+      handles.put(r.fh, fh);
+    }
+    return fh;
+  }
+
+  String getReport() {
+    StringBuffer sb = new StringBuffer();
+    for (Map.Entry<String, LatencyHistogram> e : replayed.entrySet()) {
+      LatencyHistogram h = e.getValue();
+      LatencyHistogram r = recorded.get(e.getKey());
+      sb.append("  ").append(e.getKey()).append(": count=").append(h.getCount()).append(" errors=")
+          .append(h.getErrors()).append(" (recorded ").append(r.getErrors()).append(')');
+      sb.append(" mean=").append(h.getMean()).append("us (").append(r.getMean()).append("us)");
+      sb.append(" p50<").append(h.getPercentile(0.5)).append("us (").append(r.getPercentile(0.5)).append("us)");
+      sb.append(" p99<").append(h.getPercentile(0.99)).append("us (").append(r.getPercentile(0.99)).append("us)");
+      sb.append('\n');
+    }
+    sb.append("  calls failing differently than recorded: ").append(mismatches).append('\n');
+    if (speed > 0)
+      sb.append("  most behind schedule: ").append(maxLag / 1000).append("ms\n");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    double speed = 1;
+    String url = null;
+    boolean dump = false;
+    List<File> files = new ArrayList<File>();
+    List<String> serverOptions = new ArrayList<String>();
+
+    for (String arg : args) {
+      if (arg.startsWith("speed="))
+        speed = Double.parseDouble(arg.substring(6));
+      else if (arg.startsWith("url="))
+        url = arg.substring(4);
+      else if (arg.startsWith("dump="))
+        dump = Boolean.valueOf(arg.substring(5));
+      else if (arg.indexOf('=') < 0)
+        files.add(new File(arg));
+      else
+        serverOptions.add(arg);
+    }
+    if (files.isEmpty()) {
+      System.err.println("Usage: TraceReplay <trace file>... [speed=n] [url=imap://...] [dump=true] [server options]");
+      System.exit(1);
+    }
+
+    List<TraceReader.Record> records = read(files);
+    if (dump) {
+      for (TraceReader.Record r : records)
+        System.out.println(r);
+      return;
+    }
+
+    // A snapshot of an earlier run would describe files that are not there
+    if (System.getProperty("imapfs.snapshot") == null)
+      System.setProperty("imapfs.snapshot", "");
+
+    FakeIMAPServer server = null;
+    if (url == null) {
+      server = new FakeIMAPServer(0);
+      for (String option : serverOptions)
+        server.configure(option);
+      server.start();
+      url = server.getURL("replay", "imapfs");
+    } else if (!serverOptions.isEmpty()) {
+      throw new IllegalArgumentException("Options " + serverOptions + " only apply to the fake server");
+    }
+
+    IMAPFileSystem fs = new IMAPFileSystem(new URL(null, url, new IMAPStreamHandler()));
+    TraceReplay replay = new TraceReplay(fs, speed);
+    try {
+      replay.prepare(records);
+      Metrics.getInstance().reset();
+      Map<String, Long> before = server != null ? server.getCommandCounts() : null;
+
+      System.out.println("Replaying " + records.size() + " calls at " + (speed > 0 ? speed + "x" : "full speed")
+          + " against " + url);
+      double rate = replay.replay(records);
+
+      System.out.println(String.format("%.1f calls/s", rate));
+      System.out.println("replayed (recorded):");
+      System.out.print(replay.getReport());
+      if (server != null) {
+        System.out.println("server commands:");
+        for (Map.Entry<String, Long> e : server.getCommandCounts().entrySet()) {
+          Long earlier = before.get(e.getKey());
+          long count = e.getValue() - (earlier != null ? earlier : 0);
+          if (count > 0)
+            System.out.println("  " + e.getKey() + ": " + count);
+        }
+      }
+      System.out.println(Metrics.getInstance().getReport());
+    } finally {
+      fs.close();
+      if (server != null)
+        server.close();
+    }
+  }
+}
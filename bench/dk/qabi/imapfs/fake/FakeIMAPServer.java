@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs.fake;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An IMAP server held in memory, implementing what this file system and JavaMail use of IMAP4rev1 along with
+ * LITERAL+, UIDPLUS, MOVE, CONDSTORE, IDLE and QUOTA, each of which can be turned off. Any user name and password is
+ * accepted. It runs in the same process as the client, on a port of the loopback interface.
+ *
+ * To make it behave like a server far away, each command can be delayed before it completes, and the bandwidth of
+ * each connection can be limited.
+ */
+public class FakeIMAPServer {
+  private Log log = LogFactory.getLog(getClass());
+
+  static final char SEPARATOR = '/';
+
+  private ServerSocket serverSocket;
+  private List<FakeSession> sessions = new CopyOnWriteArrayList<FakeSession>();
+
+  /* Mailboxes by name, INBOX in upper case */
+  private Map<String, FakeMailbox> mailboxes = new TreeMap<String, FakeMailbox>();
+  private long nextUidValidity = System.currentTimeMillis() / 1000;
+
+  private Map<String, String> disabled = new ConcurrentHashMap<String, String>();
+  private Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+  private long defaultLatency;
+  private long bandwidth;
+  private long storageLimit;
+  private long messageLimit;
+
+  private Map<String, AtomicLong> commandCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * @param port port to listen on, or 0 for any free port
+   * @throws IOException if the port cannot be listened on
+   */
+  public FakeIMAPServer(int port) throws IOException {
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    createMailbox("INBOX");
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @param user user name to put in the URL
+   * @param mailbox mailbox to mount
+   * @return an URL of the server for mounting
+   */
+  public String getURL(String user, String mailbox) {
+    return "imap://" + user + ":secret@127.0.0.1:" + getPort() + "/" + mailbox;
+  }
+
+  /**
+   * Starts accepting connections in the background
+   */
+  public void start() {
+    Thread acceptor = new Thread("Fake IMAP server") {
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            Socket socket = serverSocket.accept();
+            FakeSession session = new FakeSession(FakeIMAPServer.this, socket);
+            sessions.add(session);
+            Thread t = new Thread(session, "Fake IMAP session " + socket.getPort());
+            t.setDaemon(true);
+            t.start();
+          } catch (IOException e) {
+            if (!serverSocket.isClosed())
+              log.warn("Error accepting connection", e);
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    log.info("Fake IMAP server listening on port " + getPort());
+  }
+
+  /**
+   * Stops accepting connections and closes those open
+   */
+  public void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      log.debug("Error closing server socket", e);
+    }
+    for (FakeSession session : sessions)
+      session.close();
+  }
+
+  void closed(FakeSession session) {
+    sessions.remove(session);
+  }
+
+  /**
+   * Turns a capability on or off, e.g. to see how the file system copes with servers without UIDPLUS
+   * @param capability one of LITERAL+, UIDPLUS, MOVE, CONDSTORE, IDLE and QUOTA
+   * @param enabled whether to announce and support it
+   */
+  public void setCapability(String capability, boolean enabled) {
+    String name = capability.toUpperCase(Locale.US);
+    if (enabled)
+      disabled.remove(name);
+    else
+      disabled.put(name, name);
+  }
+
+  boolean hasCapability(String capability) {
+    return !disabled.containsKey(capability);
+  }
+
+  String getCapabilities() {
+    StringBuffer sb = new StringBuffer("IMAP4rev1");
+    for (String c : new String[]{"LITERAL+", "UIDPLUS", "MOVE", "CONDSTORE", "IDLE", "QUOTA"}) {
+      if (hasCapability(c))
+        sb.append(' ').append(c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Sets how long a command takes before it completes, on top of the time it takes to run
+   * @param command the command, e.g. "FETCH" for both FETCH and UID FETCH, or "UID FETCH" for UID FETCH only
+   * @param millis the delay in milliseconds
+   */
+  public void setLatency(String command, long millis) {
+    latencies.put(command.toUpperCase(Locale.US), millis);
+  }
+
+  /**
+   * Sets how long commands without a latency of their own take before they complete
+   * @param millis the delay in milliseconds
+   */
+  public void setDefaultLatency(long millis) {
+    this.defaultLatency = millis;
+  }
+
+  long getLatency(String command) {
+    Long latency = latencies.get(command);
+    if (latency == null && command.startsWith("UID "))
+      latency = latencies.get(command.substring(4));
+    return latency != null ? latency : defaultLatency;
+  }
+
+  /**
+   * Limits the rate of each direction of each connection opened from now on
+   * @param bytesPerSecond the rate, or 0 for no limit
+   */
+  public void setBandwidth(long bytesPerSecond) {
+    this.bandwidth = bytesPerSecond;
+  }
+
+  long getBandwidth() {
+    return bandwidth;
+  }
+
+  /**
+   * Sets the quota of the user, shared by all mailboxes. Without limits the server tells that there is no quota.
+   * @param storageLimit storage limit in bytes, or 0 for none
+   * @param messageLimit limit on the number of messages, or 0 for none
+   */
+  public synchronized void setQuota(long storageLimit, long messageLimit) {
+    this.storageLimit = storageLimit;
+    this.messageLimit = messageLimit;
+  }
+
+  synchronized long getStorageLimit() {
+    return storageLimit;
+  }
+
+  synchronized long getMessageLimit() {
+    return messageLimit;
+  }
+
+  /**
+   * @return the number of bytes stored in all mailboxes
+   */
+  synchronized long getStorageUsage() {
+    long usage = 0;
+    for (FakeMailbox m : mailboxes.values())
+      usage += m.getSize();
+    return usage;
+  }
+
+  /**
+   * @return the number of messages in all mailboxes
+   */
+  synchronized long getMessageUsage() {
+    long usage = 0;
+    for (FakeMailbox m : mailboxes.values())
+      usage += m.getMessageCount();
+    return usage;
+  }
+
+  void counted(String command) {
+    AtomicLong count = commandCounts.get(command);
+    if (count == null) {
+      synchronized (commandCounts) {
+        count = commandCounts.get(command);
+        if (count == null) {
+          count = new AtomicLong();
+          commandCounts.put(command, count);
+        }
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * @return the number of each command received, by command
+   */
+  public Map<String, Long> getCommandCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : commandCounts.entrySet())
+      counts.put(e.getKey(), e.getValue().get());
+    return counts;
+  }
+
+  private static String normalize(String name) {
+    if (name.endsWith(String.valueOf(SEPARATOR)))
+      name = name.substring(0, name.length() - 1);
+    if (name.equalsIgnoreCase("INBOX") || name.toUpperCase(Locale.US).startsWith("INBOX" + SEPARATOR))
+      name = "INBOX" + name.substring(5);
+    return name;
+  }
+
+  synchronized FakeMailbox getMailbox(String name) {
+    return mailboxes.get(normalize(name));
+  }
+
+  /**
+   * Creates a mailbox, and those above it that do not exist
+   * @return false if it already exists
+   */
+  synchronized boolean createMailbox(String name) {
+    name = normalize(name);
+    if (name.length() == 0 || mailboxes.containsKey(name))
+      return false;
+
+    for (int i = name.indexOf(SEPARATOR); i > 0; i = name.indexOf(SEPARATOR, i + 1)) {
+      String parent = name.substring(0, i);
+      if (!mailboxes.containsKey(parent))
+        mailboxes.put(parent, new FakeMailbox(parent, nextUidValidity++));
+    }
+    mailboxes.put(name, new FakeMailbox(name, nextUidValidity++));
+    return true;
+  }
+
+  synchronized boolean deleteMailbox(String name) {
+    name = normalize(name);
+    return !name.equals("INBOX") && mailboxes.remove(name) != null;
+  }
+
+  /**
+   * Renames a mailbox along with those below it
+   * @return false if the mailbox does not exist or the new name is taken
+   */
+  synchronized boolean renameMailbox(String from, String to) {
+    from = normalize(from);
+    to = normalize(to);
+    if (!mailboxes.containsKey(from) || mailboxes.containsKey(to) || from.equals("INBOX"))
+      return false;
+
+    String prefix = from + SEPARATOR;
+    for (String name : new ArrayList<String>(mailboxes.keySet())) {
+      if (name.equals(from) || name.startsWith(prefix)) {
+        FakeMailbox m = mailboxes.remove(name);
+        m.name = to + name.substring(from.length());
+        mailboxes.put(m.name, m);
+      }
+    }
+    for (int i = to.indexOf(SEPARATOR); i > 0; i = to.indexOf(SEPARATOR, i + 1)) {
+      String parent = to.substring(0, i);
+      if (!mailboxes.containsKey(parent))
+        mailboxes.put(parent, new FakeMailbox(parent, nextUidValidity++));
+    }
+    return true;
+  }
+
+  /**
+   * @param pattern a LIST pattern, where % matches anything but the separator and * matches anything
+   * @return the names of the mailboxes matching
+   */
+  synchronized List<String> listMailboxes(String pattern) {
+    StringBuffer regex = new StringBuffer();
+    for (char c : normalize(pattern).toCharArray()) {
+      if (c == '*')
+        regex.append(".*");
+      else if (c == '%')
+        regex.append("[^").append(Pattern.quote(String.valueOf(SEPARATOR))).append("]*");
+      else
+        regex.append(Pattern.quote(String.valueOf(c)));
+    }
+
+    Pattern p = Pattern.compile(regex.toString());
+    List<String> names = new ArrayList<String>();
+    for (String name : mailboxes.keySet()) {
+      if (p.matcher(name).matches())
+        names.add(name);
+    }
+    return names;
+  }
+
+  /**
+   * Tells the sessions that have a mailbox selected that it has changed
+   */
+  void changed(FakeMailbox mailbox) {
+    for (FakeSession session : sessions)
+      session.changed(mailbox);
+  }
+
+  /**
+   * Runs a server until killed. Arguments are the port followed by options:
+   * <ul>
+   * <li><code>latency=millis</code> - delay of all commands</li>
+   * <li><code>latency.COMMAND=millis</code> - delay of a command, e.g. <code>latency.FETCH=50</code></li>
+   * <li><code>bandwidth=bytes</code> - bytes per second of each direction of each connection</li>
+   * <li><code>quota=bytes</code> - storage limit</li>
+   * <li><code>no=CAPABILITY</code> - turns off a capability, e.g. <code>no=UIDPLUS</code></li>
+   * </ul>
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: FakeIMAPServer <port> [latency=ms] [latency.COMMAND=ms] [bandwidth=bytes/s] "
+          + "[quota=bytes] [no=CAPABILITY]...");
+      System.exit(1);
+    }
+
+    FakeIMAPServer server = new FakeIMAPServer(Integer.parseInt(args[0]));
+    for (int i = 1; i < args.length; i++)
+      server.configure(args[i]);
+    server.start();
+
+    System.out.println("Listening on " + server.getURL("user", "INBOX"));
+    Thread.sleep(Long.MAX_VALUE);
+  }
+
+  /**
+   * Applies an option as given to {@link #main}
+   * @param option the option, e.g. <code>latency.FETCH=50</code>
+   */
+  public void configure(String option) {
+    int eq = option.indexOf('=');
+    if (eq < 0)
+      throw new IllegalArgumentException("Option '" + option + "' is not of the form name=value");
+
+    String name = option.substring(0, eq);
+    String value = option.substring(eq + 1);
+    if (name.equals("latency"))
+      setDefaultLatency(Long.parseLong(value));
+    else if (name.startsWith("latency."))
+      setLatency(name.substring(8).replace('_', ' '), Long.parseLong(value));
+    else if (name.equals("bandwidth"))
+      setBandwidth(Long.parseLong(value));
+    else if (name.equals("quota"))
+      setQuota(Long.parseLong(value), 0);
+    else if (name.equals("no"))
+      setCapability(value, false);
+    else
+      throw new IllegalArgumentException("Unknown option '" + name + "'");
+  }
+}
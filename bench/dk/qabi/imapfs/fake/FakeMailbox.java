@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs.fake;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A mailbox of the {@link FakeIMAPServer}, holding its messages in UID order
+ */
+class FakeMailbox {
+
+  String name;
+  final long uidValidity;
+
+  private long uidNext = 1;
+  private long highestModSeq = 1;
+  private List<FakeMessage> messages = new ArrayList<FakeMessage>();
+  private long size;
+
+  FakeMailbox(String name, long uidValidity) {
+    this.name = name;
+    this.uidValidity = uidValidity;
+  }
+
+  synchronized long getUidNext() {
+    return uidNext;
+  }
+
+  synchronized long getHighestModSeq() {
+    return highestModSeq;
+  }
+
+  synchronized int getMessageCount() {
+    return messages.size();
+  }
+
+  synchronized int getUnseenCount() {
+    int count = 0;
+    for (FakeMessage m : messages) {
+      if (!m.flags.contains("\\Seen"))
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of bytes of all messages
+   */
+  synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the messages, in UID order
+   */
+  synchronized List<FakeMessage> getMessages() {
+    return new ArrayList<FakeMessage>(messages);
+  }
+
+  /**
+   * @param uid the UID the client knows messages up to
+   * @return the messages with greater UIDs
+   */
+  synchronized List<FakeMessage> getMessagesAfter(long uid) {
+    List<FakeMessage> result = new ArrayList<FakeMessage>();
+    for (int i = messages.size() - 1; i >= 0 && messages.get(i).uid > uid; i--)
+      result.add(0, messages.get(i));
+    return result;
+  }
+
+  synchronized FakeMessage append(byte[] data, Collection<String> flags, Date internalDate) {
+    FakeMessage m = new FakeMessage(uidNext++, data, internalDate != null ? internalDate : new Date());
+    m.flags.addAll(flags);
+    m.modSeq = ++highestModSeq;
+    messages.add(m);
+    size += data.length;
+    return m;
+  }
+
+  /**
+   * Changes the flags of messages
+   * @param msgs the messages
+   * @param flags the flags
+   * @param mode '+' to add the flags, '-' to remove them, or anything else to replace the flags with them
+   * @return the messages whose flags changed
+   */
+  synchronized List<FakeMessage> store(List<FakeMessage> msgs, Collection<String> flags, char mode) {
+    List<FakeMessage> changed = new ArrayList<FakeMessage>();
+    for (FakeMessage m : msgs) {
+      if (m.expunged)
+        continue;
+
+      Set<String> old = new TreeSet<String>(m.flags);
+      if (mode == '+') {
+        m.flags.addAll(flags);
+      } else if (mode == '-') {
+        m.flags.removeAll(flags);
+      } else {
+        m.flags.clear();
+        m.flags.addAll(flags);
+      }
+
+      if (!old.equals(m.flags)) {
+        m.modSeq = ++highestModSeq;
+        changed.add(m);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Removes the messages flagged as deleted
+   * @param uids the UIDs of the messages that may be removed, or null for all
+   * @return true if any were removed
+   */
+  synchronized boolean expunge(Set<Long> uids) {
+    boolean removed = false;
+    for (Iterator<FakeMessage> i = messages.iterator(); i.hasNext();) {
+      FakeMessage m = i.next();
+      if (m.flags.contains("\\Deleted") && (uids == null || uids.contains(m.uid))) {
+        i.remove();
+        m.expunged = true;
+        size -= m.data.length;
+        removed = true;
+      }
+    }
+    if (removed)
+      highestModSeq++;
+    return removed;
+  }
+
+  /**
+   * @return a copy of the flags of a message, as they are now
+   */
+  synchronized Set<String> getFlags(FakeMessage m) {
+    return new TreeSet<String>(m.flags);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs.fake;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.ParameterList;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A message stored by the {@link FakeIMAPServer}. The data never changes; the flags and modification sequence are
+ * only changed by the {@link FakeMailbox} holding the message, with its lock held.
+ */
+class FakeMessage {
+
+  private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+
+  final long uid;
+  final byte[] data;
+  final Date internalDate;
+
+  Set<String> flags = new TreeSet<String>();
+  long modSeq;
+
+  /* Set when expunged, so that sessions can tell their clients */
+  volatile boolean expunged;
+
+  private MimeMessage parsed;
+  private String bodyStructure;
+  private String envelope;
+
+  /* Sections fetched, as clients tend to fetch the same section in parts */
+  private Map<String, byte[]> sections = new HashMap<String, byte[]>();
+
+  FakeMessage(long uid, byte[] data, Date internalDate) {
+    this.uid = uid;
+    this.data = data;
+    this.internalDate = internalDate;
+  }
+
+  private synchronized MimeMessage getParsed() throws MessagingException {
+    if (parsed == null)
+      parsed = new MimeMessage(SESSION, new SharedByteArrayInputStream(data));
+    return parsed;
+  }
+
+  /**
+   * @param name name of the header
+   * @return the values of the header, or null if the message does not have it
+   * @throws MessagingException if the message cannot be parsed
+   */
+  String[] getHeader(String name) throws MessagingException {
+    return getParsed().getHeader(name);
+  }
+
+  String getInternalDate() {
+    SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+    return format.format(internalDate);
+  }
+
+  /**
+   * Get a section of the message, as in <code>BODY[section]</code>
+   * @param spec the section, e.g. "", "HEADER", "1", "1.MIME" or "HEADER.FIELDS (SUBJECT DATE)"
+   * @return the bytes of the section, or null if there is no such section
+   * @throws MessagingException if the message cannot be parsed
+   * @throws IOException if I/O errors occur
+   */
+  synchronized byte[] getSection(String spec) throws MessagingException, IOException {
+    if (spec.length() == 0)
+      return data;
+
+    byte[] section = sections.get(spec);
+    if (section == null) {
+      section = extractSection(spec);
+      if (section != null) {
+        if (sections.size() > 8)
+          sections.clear();
+        sections.put(spec, section);
+      }
+    }
+    return section;
+  }
+
+  private byte[] extractSection(String spec) throws MessagingException, IOException {
+    MimePart part = getParsed();
+    boolean top = true;
+
+    String rest = spec;
+    while (rest.length() > 0 && Character.isDigit(rest.charAt(0))) {
+      int dot = rest.indexOf('.');
+      int index = Integer.parseInt(dot < 0 ? rest : rest.substring(0, dot));
+      rest = dot < 0 ? "" : rest.substring(dot + 1);
+
+      Object content = part.isMimeType("multipart/*") ? part.getContent() : null;
+      if (content instanceof Multipart) {
+        Multipart m = (Multipart) content;
+        if (index < 1 || index > m.getCount())
+          return null;
+        part = (MimePart) m.getBodyPart(index - 1);
+      } else if (index != 1) {
+        // A message that is not multipart only has part 1, its body
+        return null;
+      }
+      top = false;
+    }
+
+    String upper = rest.toUpperCase(Locale.US);
+    if (upper.length() == 0) {
+      return getRawContent(part);
+    } else if (upper.equals("MIME") || upper.equals("HEADER") && top) {
+      return getHeader(part, null, false);
+    } else if (upper.equals("TEXT") && top) {
+      return getRawContent(part);
+    } else if (upper.startsWith("HEADER.FIELDS") && top) {
+      boolean not = upper.startsWith("HEADER.FIELDS.NOT");
+      int open = rest.indexOf('(');
+      int close = rest.lastIndexOf(')');
+      String[] names = open < 0 || close < open ? new String[0] : rest.substring(open + 1, close).trim().split("\\s+");
+      return getHeader(part, names, not);
+    } else {
+      return null;
+    }
+  }
+
+  private static byte[] getRawContent(MimePart part) throws MessagingException, IOException {
+    InputStream in = part instanceof MimeMessage ? ((MimeMessage) part).getRawInputStream()
+        : ((MimeBodyPart) part).getRawInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0)
+        out.write(buf, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] getHeader(MimePart part, String[] names, boolean not) throws MessagingException {
+    Enumeration<?> lines;
+    if (names == null)
+      lines = part.getAllHeaderLines();
+    else if (not)
+      lines = part.getNonMatchingHeaderLines(names);
+    else
+      lines = part.getMatchingHeaderLines(names);
+
+    StringBuffer sb = new StringBuffer();
+    while (lines.hasMoreElements())
+      sb.append(lines.nextElement()).append("\r\n");
+    sb.append("\r\n");
+    return toBytes(sb.toString());
+  }
+
+  /**
+   * @return the <code>BODYSTRUCTURE</code> of the message
+   * @throws MessagingException if the message cannot be parsed
+   * @throws IOException if I/O errors occur
+   */
+  synchronized String getBodyStructure() throws MessagingException, IOException {
+    if (bodyStructure == null) {
+      StringBuffer sb = new StringBuffer();
+      appendBodyStructure(sb, getParsed());
+      bodyStructure = sb.toString();
+    }
+    return bodyStructure;
+  }
+
+  private static void appendBodyStructure(StringBuffer sb, MimePart part) throws MessagingException, IOException {
+    ContentType type = new ContentType(part.getContentType() != null ? part.getContentType() : "text/plain");
+
+    sb.append('(');
+    if (type.match("multipart/*")) {
+      Multipart m = (Multipart) part.getContent();
+      for (int i = 0; i < m.getCount(); i++)
+        appendBodyStructure(sb, (MimePart) m.getBodyPart(i));
+      sb.append(' ').append(quote(type.getSubType().toUpperCase(Locale.US)));
+      sb.append(' ');
+      appendParameters(sb, type.getParameterList());
+      sb.append(' ');
+      appendDisposition(sb, part);
+      sb.append(" NIL");
+    } else {
+      byte[] content = getRawContent(part);
+      String encoding = part.getEncoding();
+
+      sb.append(quote(type.getPrimaryType().toUpperCase(Locale.US)));
+      sb.append(' ').append(quote(type.getSubType().toUpperCase(Locale.US)));
+      sb.append(' ');
+      appendParameters(sb, type.getParameterList());
+      sb.append(' ').append(nstring(part.getContentID()));
+      sb.append(' ').append(nstring(part.getDescription()));
+      sb.append(' ').append(quote(encoding != null ? encoding.toUpperCase(Locale.US) : "7BIT"));
+      sb.append(' ').append(content.length);
+      if (type.match("text/*")) {
+        int lines = 0;
+        for (byte b : content) {
+          if (b == '\n')
+            lines++;
+        }
+        sb.append(' ').append(lines);
+      }
+      sb.append(" NIL ");
+      appendDisposition(sb, part);
+      sb.append(" NIL");
+    }
+    sb.append(')');
+  }
+
+  private static void appendParameters(StringBuffer sb, ParameterList params) {
+    Enumeration<?> names = params != null ? params.getNames() : null;
+    if (names == null || !names.hasMoreElements()) {
+      sb.append("NIL");
+      return;
+    }
+
+    sb.append('(');
+    boolean first = true;
+    while (names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      if (!first)
+        sb.append(' ');
+      sb.append(quote(name.toUpperCase(Locale.US))).append(' ').append(quote(params.get(name)));
+      first = false;
+    }
+    sb.append(')');
+  }
+
+  private static void appendDisposition(StringBuffer sb, MimePart part) throws MessagingException {
+    String[] header = part.getHeader("Content-Disposition");
+    if (header == null || header.length == 0) {
+      sb.append("NIL");
+      return;
+    }
+
+    ContentDisposition disposition = new ContentDisposition(header[0]);
+    sb.append('(').append(quote(disposition.getDisposition().toUpperCase(Locale.US))).append(' ');
+    appendParameters(sb, disposition.getParameterList());
+    sb.append(')');
+  }
+
+  /**
+   * @return the <code>ENVELOPE</code> of the message, with the addresses left out
+   * @throws MessagingException if the message cannot be parsed
+   */
+  synchronized String getEnvelope() throws MessagingException {
+    if (envelope == null) {
+      MimeMessage m = getParsed();
+      envelope = "(" + nstring(m.getHeader("Date", null)) + " " + nstring(m.getHeader("Subject", null))
+          + " NIL NIL NIL NIL NIL NIL " + nstring(m.getHeader("In-Reply-To", null)) + " "
+          + nstring(m.getHeader("Message-ID", null)) + ")";
+    }
+    return envelope;
+  }
+
+  /**
+   * @return the string as an IMAP quoted string, or as a literal if it cannot be quoted
+   */
+  static String quote(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x20 || c > 0x7e)
+        return "{" + toBytes(s).length + "}\r\n" + s;
+    }
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  static String nstring(String s) {
+    return s == null ? "NIL" : quote(s);
+  }
+
+  static byte[] toBytes(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
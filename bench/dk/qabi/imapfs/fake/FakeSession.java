@@ -0,0 +1,968 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs.fake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.mail.MessagingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A connection to the {@link FakeIMAPServer}. Commands are run one at a time by the thread of the session, which
+ * also tells the client about changes made by other sessions to the selected mailbox: after each command, except
+ * that expunges are held back during FETCH, STORE, SEARCH and COPY, and right away while idling.
+ */
+class FakeSession implements Runnable {
+  private Log log = LogFactory.getLog(getClass());
+
+  private static final String[] SYSTEM_FLAGS = {"\\Answered", "\\Flagged", "\\Deleted", "\\Seen", "\\Draft"};
+
+  /* How often to look for changes while idling */
+  private static final int IDLE_POLL = 50;
+
+  private FakeIMAPServer server;
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  /* Part of a line read before a read timed out */
+  private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+  /* Responses of the command being run, written when it completes */
+  private ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+  /* The line being parsed, and the position in it */
+  private String line;
+  private int pos;
+
+  private boolean authenticated;
+  private volatile FakeMailbox selected;
+  private boolean readOnly;
+
+  /* The messages of the selected mailbox as known by the client, by sequence number - 1 */
+  private List<FakeMessage> view;
+  private long knownUid;
+  private long syncedModSeq;
+  private volatile boolean changed;
+
+  /**
+   * An error telling the client that a command failed (NO) or was not understood (BAD)
+   */
+  private static class CommandException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    String status;
+
+    CommandException(String status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  FakeSession(FakeIMAPServer server, Socket socket) throws IOException {
+    this.server = server;
+    this.socket = socket;
+    socket.setTcpNoDelay(true);
+
+    Throttle inThrottle = new Throttle(server.getBandwidth());
+    Throttle outThrottle = new Throttle(server.getBandwidth());
+    this.in = new BufferedInputStream(inThrottle.wrap(socket.getInputStream()), 65536);
+    this.out = new BufferedOutputStream(outThrottle.wrap(socket.getOutputStream()), 65536);
+  }
+
+  /**
+   * Called by the server when a mailbox has been changed by any session
+   */
+  void changed(FakeMailbox mailbox) {
+    if (mailbox == selected)
+      changed = true;
+  }
+
+  void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.debug("Error closing socket", e);
+    }
+  }
+
+  public void run() {
+    try {
+      write("* OK Fake IMAP server ready\r\n");
+      out.flush();
+
+      while (true) {
+        List<Object> command;
+        try {
+          command = readCommand();
+        } catch (CommandException e) {
+          write("* BAD " + e.getMessage() + "\r\n");
+          out.flush();
+          continue;
+        }
+        if (command == null)
+          break;
+        if (command.size() < 2 || !(command.get(0) instanceof String) || !(command.get(1) instanceof String)) {
+          write("* BAD Missing command\r\n");
+          out.flush();
+          continue;
+        }
+
+        if (!run(command))
+          break;
+      }
+    } catch (IOException e) {
+      if (!socket.isClosed())
+        log.debug("Session ended", e);
+    } finally {
+      close();
+      server.closed(this);
+    }
+  }
+
+  /**
+   * Runs a command
+   * @return false if the session is over
+   */
+  private boolean run(List<Object> command) throws IOException {
+    String tag = (String) command.get(0);
+    String name = ((String) command.get(1)).toUpperCase(Locale.US);
+    int first = 2;
+    if (name.equals("UID") && command.size() > 2 && command.get(2) instanceof String) {
+      name = "UID " + ((String) command.get(2)).toUpperCase(Locale.US);
+      first = 3;
+    }
+    List<Object> args = command.subList(first, command.size());
+    server.counted(name);
+
+    // Like a real server, tell about messages other sessions appended or expunged before a UID command refers to them
+    if (name.startsWith("UID "))
+      sync(true);
+
+    String result;
+    boolean more = true;
+    try {
+      result = "OK " + execute(tag, name, args);
+      more = !name.equals("LOGOUT");
+    } catch (CommandException e) {
+      result = e.status + " " + e.getMessage();
+    } catch (MessagingException e) {
+      log.warn("Error running " + name, e);
+      result = "NO " + e.getMessage();
+    } catch (RuntimeException e) {
+      log.warn("Error running " + name, e);
+      result = "BAD " + e;
+    }
+
+    boolean expunges = !name.endsWith("FETCH") && !name.endsWith("STORE") && !name.endsWith("SEARCH")
+        && !name.endsWith("COPY");
+    sync(expunges);
+
+    long latency = server.getLatency(name);
+    if (latency > 0 && !name.equals("IDLE")) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while delaying " + name);
+      }
+    }
+
+    if (log.isDebugEnabled())
+      log.debug("S: " + new String(response.toByteArray(), "ISO-8859-1") + tag + " " + result);
+    response.writeTo(out);
+    response.reset();
+    write(tag + " " + result + "\r\n");
+    out.flush();
+    return more;
+  }
+
+  /**
+   * @return the text of the tagged OK
+   */
+  private String execute(String tag, String name, List<Object> args)
+      throws CommandException, IOException, MessagingException {
+    if (name.equals("CAPABILITY")) {
+      untagged("CAPABILITY " + server.getCapabilities());
+      return "CAPABILITY completed";
+    } else if (name.equals("NOOP") || name.equals("CHECK")) {
+      return name + " completed";
+    } else if (name.equals("LOGOUT")) {
+      untagged("BYE Logging out");
+      return "LOGOUT completed";
+    } else if (name.equals("LOGIN")) {
+      string(args, 0);
+      string(args, 1);
+      authenticated = true;
+      return "LOGIN completed";
+    } else if (name.equals("AUTHENTICATE")) {
+      throw new CommandException("NO", "Use LOGIN");
+    }
+
+    if (!authenticated)
+      throw new CommandException("BAD", "Not logged in");
+
+    if (name.equals("SELECT") || name.equals("EXAMINE")) {
+      return select(string(args, 0), name.equals("EXAMINE"));
+    } else if (name.equals("CREATE")) {
+      if (!server.createMailbox(string(args, 0)))
+        throw new CommandException("NO", "Mailbox exists");
+      return "CREATE completed";
+    } else if (name.equals("DELETE")) {
+      if (!server.deleteMailbox(string(args, 0)))
+        throw new CommandException("NO", "No such mailbox");
+      return "DELETE completed";
+    } else if (name.equals("RENAME")) {
+      if (!server.renameMailbox(string(args, 0), string(args, 1)))
+        throw new CommandException("NO", "Cannot rename mailbox");
+      return "RENAME completed";
+    } else if (name.equals("SUBSCRIBE") || name.equals("UNSUBSCRIBE") || name.equals("ENABLE")) {
+      return name + " completed";
+    } else if (name.equals("LIST") || name.equals("LSUB")) {
+      list(name, string(args, 0), string(args, 1));
+      return name + " completed";
+    } else if (name.equals("STATUS")) {
+      status(string(args, 0), list(args, 1));
+      return "STATUS completed";
+    } else if (name.equals("APPEND")) {
+      return append(args);
+    } else if (name.equals("GETQUOTAROOT")) {
+      String mailbox = string(args, 0);
+      if (server.getStorageLimit() > 0 || server.getMessageLimit() > 0) {
+        untagged("QUOTAROOT " + FakeMessage.quote(mailbox) + " \"\"");
+        quota();
+      } else {
+        untagged("QUOTAROOT " + FakeMessage.quote(mailbox));
+      }
+      return "GETQUOTAROOT completed";
+    } else if (name.equals("GETQUOTA")) {
+      if (server.getStorageLimit() <= 0 && server.getMessageLimit() <= 0)
+        throw new CommandException("NO", "No such quota root");
+      quota();
+      return "GETQUOTA completed";
+    }
+
+    if (selected == null)
+      throw new CommandException("BAD", "No mailbox selected");
+
+    if (name.equals("CLOSE") || name.equals("UNSELECT")) {
+      if (name.equals("CLOSE") && !readOnly && selected.expunge(null))
+        server.changed(selected);
+      selected = null;
+      view = null;
+      return name + " completed";
+    } else if (name.equals("EXPUNGE") || name.equals("UID EXPUNGE")) {
+      checkWritable();
+      Set<Long> uids = null;
+      if (name.equals("UID EXPUNGE")) {
+        uids = new HashSet<Long>();
+        for (FakeMessage m : resolve(string(args, 0), true))
+          uids.add(m.uid);
+      }
+      if (selected.expunge(uids))
+        server.changed(selected);
+      return name + " completed";
+    } else if (name.equals("FETCH") || name.equals("UID FETCH")) {
+      fetch(resolve(string(args, 0), name.startsWith("UID")), args.get(1), name.startsWith("UID"));
+      return name + " completed";
+    } else if (name.equals("STORE") || name.equals("UID STORE")) {
+      checkWritable();
+      store(resolve(string(args, 0), name.startsWith("UID")), string(args, 1), args.get(2), name.startsWith("UID"));
+      return name + " completed";
+    } else if (name.equals("SEARCH") || name.equals("UID SEARCH")) {
+      search(args, name.startsWith("UID"));
+      return name + " completed";
+    } else if (name.equals("COPY") || name.equals("UID COPY")
+        || name.equals("UID MOVE") && server.hasCapability("MOVE")) {
+      if (name.equals("UID MOVE"))
+        checkWritable();
+      return copy(resolve(string(args, 0), name.startsWith("UID")), string(args, 1), name.equals("UID MOVE"));
+    } else if (name.equals("IDLE") && server.hasCapability("IDLE")) {
+      idle();
+      return "IDLE terminated";
+    }
+
+    throw new CommandException("BAD", "Unknown command " + name);
+  }
+
+  private void checkWritable() throws CommandException {
+    if (readOnly)
+      throw new CommandException("NO", "Mailbox is read-only");
+  }
+
+  private String select(String name, boolean examine) throws CommandException {
+    FakeMailbox mailbox = server.getMailbox(name);
+    this.selected = null;
+    this.view = null;
+    if (mailbox == null)
+      throw new CommandException("NO", "No such mailbox");
+
+    synchronized (mailbox) {
+      this.view = mailbox.getMessages();
+      this.knownUid = mailbox.getUidNext() - 1;
+      this.syncedModSeq = mailbox.getHighestModSeq();
+      this.readOnly = examine;
+      this.changed = false;
+      this.selected = mailbox;
+
+      StringBuffer flags = new StringBuffer();
+      for (String f : SYSTEM_FLAGS)
+        flags.append(flags.length() > 0 ? " " : "").append(f);
+
+      untagged("FLAGS (" + flags + ")");
+      untagged("OK [PERMANENTFLAGS (" + flags + " \\*)] Flags permitted");
+      untagged(view.size() + " EXISTS");
+      untagged("0 RECENT");
+      untagged("OK [UIDVALIDITY " + mailbox.uidValidity + "] UIDs valid");
+      untagged("OK [UIDNEXT " + mailbox.getUidNext() + "] Predicted next UID");
+      if (server.hasCapability("CONDSTORE"))
+        untagged("OK [HIGHESTMODSEQ " + mailbox.getHighestModSeq() + "] Highest");
+    }
+    return (examine ? "[READ-ONLY]" : "[READ-WRITE]") + " Selected";
+  }
+
+  private void list(String command, String reference, String pattern) throws IOException {
+    if (pattern.length() == 0) {
+      untagged(command + " (\\Noselect) \"" + FakeIMAPServer.SEPARATOR + "\" \"\"");
+      return;
+    }
+    for (String name : server.listMailboxes(reference + pattern))
+      untagged(command + " () \"" + FakeIMAPServer.SEPARATOR + "\" " + FakeMessage.quote(name));
+  }
+
+  private void status(String name, List<Object> items) throws CommandException {
+    FakeMailbox mailbox = server.getMailbox(name);
+    if (mailbox == null)
+      throw new CommandException("NO", "No such mailbox");
+
+    synchronized (mailbox) {
+      StringBuffer sb = new StringBuffer();
+      for (Object item : items) {
+        String attr = ((String) item).toUpperCase(Locale.US);
+        long value;
+        if (attr.equals("MESSAGES"))
+          value = mailbox.getMessageCount();
+        else if (attr.equals("RECENT"))
+          value = 0;
+        else if (attr.equals("UIDNEXT"))
+          value = mailbox.getUidNext();
+        else if (attr.equals("UIDVALIDITY"))
+          value = mailbox.uidValidity;
+        else if (attr.equals("UNSEEN"))
+          value = mailbox.getUnseenCount();
+        else if (attr.equals("HIGHESTMODSEQ") && server.hasCapability("CONDSTORE"))
+          value = mailbox.getHighestModSeq();
+        else
+          throw new CommandException("BAD", "Unknown status item " + attr);
+        sb.append(sb.length() > 0 ? " " : "").append(attr).append(' ').append(value);
+      }
+      untagged("STATUS " + FakeMessage.quote(mailbox.name) + " (" + sb + ")");
+
+      // Along with the status, so that the client sees both as of the same moment
+      if (mailbox == selected)
+        sync(true);
+    }
+  }
+
+  private String append(List<Object> args) throws CommandException {
+    FakeMailbox mailbox = server.getMailbox(string(args, 0));
+    if (mailbox == null)
+      throw new CommandException("NO", "[TRYCREATE] No such mailbox");
+
+    List<String> flags = new ArrayList<String>();
+    Date date = null;
+    byte[] data = null;
+    for (int i = 1; i < args.size(); i++) {
+      Object arg = args.get(i);
+      if (arg instanceof List) {
+        for (Object f : (List) arg)
+          flags.add((String) f);
+      } else if (arg instanceof byte[]) {
+        data = (byte[]) arg;
+      } else {
+        date = parseDate((String) arg);
+      }
+    }
+    if (data == null)
+      throw new CommandException("BAD", "Missing message");
+
+    if (server.getStorageLimit() > 0 && server.getStorageUsage() + data.length > server.getStorageLimit()
+        || server.getMessageLimit() > 0 && server.getMessageUsage() + 1 > server.getMessageLimit())
+      throw new CommandException("NO", "[OVERQUOTA] Quota exceeded");
+
+    FakeMessage m = mailbox.append(data, flags, date);
+    server.changed(mailbox);
+
+    if (server.hasCapability("UIDPLUS"))
+      return "[APPENDUID " + mailbox.uidValidity + " " + m.uid + "] APPEND completed";
+    else
+      return "APPEND completed";
+  }
+
+  private static Date parseDate(String s) {
+    try {
+      return new SimpleDateFormat("d-MMM-yyyy HH:mm:ss Z", Locale.US).parse(s.trim());
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  private void quota() {
+    StringBuffer sb = new StringBuffer();
+    if (server.getStorageLimit() > 0)
+      sb.append("STORAGE ").append(server.getStorageUsage() / 1024).append(' ').append(server.getStorageLimit() / 1024);
+    if (server.getMessageLimit() > 0) {
+      sb.append(sb.length() > 0 ? " " : "");
+      sb.append("MESSAGE ").append(server.getMessageUsage()).append(' ').append(server.getMessageLimit());
+    }
+    untagged("QUOTA \"\" (" + sb + ")");
+  }
+
+  /**
+   * Get the messages of a sequence set, e.g. "1:4,7,9:*"
+   * @param set the set
+   * @param uid whether the set holds UIDs rather than sequence numbers
+   * @return the messages, in the order of the mailbox
+   */
+  private List<FakeMessage> resolve(String set, boolean uid) throws CommandException {
+    boolean[] included = new boolean[view.size()];
+    long last = uid ? (view.isEmpty() ? 0 : view.get(view.size() - 1).uid) : view.size();
+
+    try {
+      for (String range : set.split(",")) {
+        int colon = range.indexOf(':');
+        long from = "*".equals(colon < 0 ? range : range.substring(0, colon)) ? last
+            : Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+        long to = colon < 0 ? from : "*".equals(range.substring(colon + 1)) ? last
+            : Long.parseLong(range.substring(colon + 1));
+        if (from > to) {
+          long t = from;
+          from = to;
+          to = t;
+        }
+
+        for (int i = 0; i < view.size(); i++) {
+          long n = uid ? view.get(i).uid : i + 1;
+          if (n >= from && n <= to)
+            included[i] = true;
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new CommandException("BAD", "Invalid sequence set " + set);
+    }
+
+    List<FakeMessage> msgs = new ArrayList<FakeMessage>();
+    for (int i = 0; i < included.length; i++) {
+      if (included[i])
+        msgs.add(view.get(i));
+    }
+    return msgs;
+  }
+
+  private int getSequenceNumber(FakeMessage m) {
+    return view.indexOf(m) + 1;
+  }
+
+  private String getFlags(FakeMessage m) {
+    StringBuffer sb = new StringBuffer("(");
+    for (String f : selected.getFlags(m))
+      sb.append(sb.length() > 1 ? " " : "").append(f);
+    return sb.append(')').toString();
+  }
+
+  private void fetch(List<FakeMessage> msgs, Object itemArg, boolean uid)
+      throws CommandException, IOException, MessagingException {
+    List<String> items = new ArrayList<String>();
+    if (itemArg instanceof List) {
+      for (Object item : (List) itemArg)
+        items.add((String) item);
+    } else {
+      String macro = ((String) itemArg).toUpperCase(Locale.US);
+      if (macro.equals("ALL") || macro.equals("FAST") || macro.equals("FULL")) {
+        items.add("FLAGS");
+        items.add("INTERNALDATE");
+        items.add("RFC822.SIZE");
+        if (!macro.equals("FAST"))
+          items.add("ENVELOPE");
+        if (macro.equals("FULL"))
+          items.add("BODY");
+      } else {
+        items.add((String) itemArg);
+      }
+    }
+
+    for (FakeMessage m : msgs) {
+      ByteArrayOutputStream fetched = new ByteArrayOutputStream();
+      boolean seen = false;
+      boolean uidSent = false;
+      boolean flagsSent = false;
+
+      for (String item : items) {
+        String upper = item.toUpperCase(Locale.US);
+        StringBuffer sb = new StringBuffer();
+        byte[] literal = null;
+
+        if (upper.equals("UID")) {
+          sb.append("UID ").append(m.uid);
+          uidSent = true;
+        } else if (upper.equals("FLAGS")) {
+          flagsSent = true;
+          sb.append("FLAGS ").append(getFlags(m));
+        } else if (upper.equals("INTERNALDATE")) {
+          sb.append("INTERNALDATE \"").append(m.getInternalDate()).append('"');
+        } else if (upper.equals("RFC822.SIZE")) {
+          sb.append("RFC822.SIZE ").append(m.data.length);
+        } else if (upper.equals("ENVELOPE")) {
+          sb.append("ENVELOPE ").append(m.getEnvelope());
+        } else if (upper.equals("BODYSTRUCTURE") || upper.equals("BODY")) {
+          sb.append(upper).append(' ').append(m.getBodyStructure());
+        } else if (upper.equals("MODSEQ")) {
+          continue; // not sent, as JavaMail cannot parse it
+        } else if (upper.equals("RFC822") || upper.equals("RFC822.HEADER") || upper.equals("RFC822.TEXT")) {
+          String spec = upper.equals("RFC822") ? "" : upper.substring(7);
+          sb.append(upper).append(' ');
+          literal = m.getSection(spec);
+          seen |= !upper.equals("RFC822.HEADER");
+        } else if (upper.startsWith("BODY[") || upper.startsWith("BODY.PEEK[")) {
+          int open = item.indexOf('[');
+          int close = item.lastIndexOf(']');
+          if (close < open)
+            throw new CommandException("BAD", "Invalid fetch item " + item);
+          String spec = item.substring(open + 1, close);
+          String partial = item.substring(close + 1);
+
+          byte[] section = m.getSection(spec);
+          sb.append("BODY[").append(spec).append(']');
+          if (section != null && partial.startsWith("<") && partial.endsWith(">")) {
+            String[] range = partial.substring(1, partial.length() - 1).split("\\.");
+            int start = (int) Math.min(section.length, Long.parseLong(range[0]));
+            int count = range.length > 1 ? (int) Math.min(section.length - start, Long.parseLong(range[1]))
+                : section.length - start;
+            byte[] slice = new byte[count];
+            System.arraycopy(section, start, slice, 0, count);
+            section = slice;
+            sb.append('<').append(start).append('>');
+          }
+          sb.append(' ');
+          if (section != null)
+            literal = section;
+          else
+            sb.append("NIL");
+          seen |= !upper.startsWith("BODY.PEEK");
+        } else {
+          throw new CommandException("BAD", "Unknown fetch item " + item);
+        }
+
+        if (fetched.size() > 0)
+          fetched.write(' ');
+        fetched.write(FakeMessage.toBytes(sb.toString()));
+        if (literal != null) {
+          fetched.write(FakeMessage.toBytes("{" + literal.length + "}\r\n"));
+          fetched.write(literal);
+        }
+      }
+
+      if (seen && !readOnly && !selected.store(single(m), single("\\Seen"), '+').isEmpty()) {
+        server.changed(selected);
+        if (!flagsSent)
+          fetched.write(FakeMessage.toBytes((fetched.size() > 0 ? " " : "") + "FLAGS " + getFlags(m)));
+      }
+      if (uid && !uidSent)
+        fetched.write(FakeMessage.toBytes((fetched.size() > 0 ? " " : "") + "UID " + m.uid));
+
+      write(response, "* " + getSequenceNumber(m) + " FETCH (");
+      fetched.writeTo(response);
+      write(response, ")\r\n");
+    }
+  }
+
+  private static <T> List<T> single(T item) {
+    List<T> list = new ArrayList<T>();
+    list.add(item);
+    return list;
+  }
+
+  private void store(List<FakeMessage> msgs, String item, Object flagArg, boolean uid) throws CommandException {
+    String upper = item.toUpperCase(Locale.US);
+    char mode = upper.charAt(0);
+    boolean silent = upper.endsWith(".SILENT");
+    if (!upper.matches("[+-]?FLAGS(\\.SILENT)?"))
+      throw new CommandException("BAD", "Unknown store item " + item);
+
+    List<String> flags = new ArrayList<String>();
+    if (flagArg instanceof List) {
+      for (Object f : (List) flagArg)
+        flags.add((String) f);
+    } else {
+      flags.add((String) flagArg);
+    }
+
+    if (!selected.store(msgs, flags, mode).isEmpty())
+      server.changed(selected);
+
+    if (!silent) {
+      for (FakeMessage m : msgs) {
+        untagged(getSequenceNumber(m) + " FETCH (FLAGS " + getFlags(m) + (uid ? " UID " + m.uid : "") + ")");
+      }
+    }
+  }
+
+  private void search(List<Object> args, boolean uid) throws CommandException, MessagingException {
+    List<FakeMessage> msgs = new ArrayList<FakeMessage>(view);
+
+    for (int i = 0; i < args.size(); i++) {
+      if (!(args.get(i) instanceof String))
+        throw new CommandException("BAD", "Unsupported search criterion");
+
+      String key = ((String) args.get(i)).toUpperCase(Locale.US);
+      List<FakeMessage> matching;
+      if (key.equals("ALL")) {
+        continue;
+      } else if (key.equals("UID")) {
+        matching = resolve(string(args, ++i), true);
+      } else if (key.equals("MODSEQ")) {
+        long modSeq = Long.parseLong(string(args, ++i));
+        matching = new ArrayList<FakeMessage>();
+        synchronized (selected) {
+          for (FakeMessage m : msgs) {
+            if (m.modSeq >= modSeq)
+              matching.add(m);
+          }
+        }
+      } else if (key.equals("HEADER")) {
+        String header = string(args, ++i);
+        String value = string(args, ++i).toLowerCase(Locale.US);
+        matching = new ArrayList<FakeMessage>();
+        for (FakeMessage m : msgs) {
+          String[] values = m.getHeader(header);
+          for (int j = 0; values != null && j < values.length; j++) {
+            if (values[j].toLowerCase(Locale.US).contains(value)) {
+              matching.add(m);
+              break;
+            }
+          }
+        }
+      } else if (key.equals("DELETED") || key.equals("UNDELETED")) {
+        matching = new ArrayList<FakeMessage>();
+        for (FakeMessage m : msgs) {
+          if (selected.getFlags(m).contains("\\Deleted") == key.equals("DELETED"))
+            matching.add(m);
+        }
+      } else if (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*') {
+        matching = resolve(key, false);
+      } else {
+        throw new CommandException("BAD", "Unsupported search criterion " + key);
+      }
+      msgs.retainAll(matching);
+    }
+
+    StringBuffer sb = new StringBuffer("SEARCH");
+    for (FakeMessage m : msgs)
+      sb.append(' ').append(uid ? m.uid : getSequenceNumber(m));
+    untagged(sb.toString());
+  }
+
+  private String copy(List<FakeMessage> msgs, String destName, boolean move) throws CommandException {
+    FakeMailbox dest = server.getMailbox(destName);
+    if (dest == null)
+      throw new CommandException("NO", "[TRYCREATE] No such mailbox");
+
+    StringBuffer from = new StringBuffer();
+    StringBuffer to = new StringBuffer();
+    for (FakeMessage m : msgs) {
+      Set<String> flags = selected.getFlags(m);
+      FakeMessage copy = dest.append(m.data, flags, m.internalDate);
+      from.append(from.length() > 0 ? "," : "").append(m.uid);
+      to.append(to.length() > 0 ? "," : "").append(copy.uid);
+    }
+    if (!msgs.isEmpty())
+      server.changed(dest);
+
+    String copyUid = server.hasCapability("UIDPLUS") && !msgs.isEmpty()
+        ? "[COPYUID " + dest.uidValidity + " " + from + " " + to + "] " : "";
+
+    if (move) {
+      if (copyUid.length() > 0)
+        untagged("OK " + copyUid + "Moved");
+
+      Set<Long> uids = new HashSet<Long>();
+      for (FakeMessage m : msgs)
+        uids.add(m.uid);
+      selected.store(msgs, single("\\Deleted"), '+');
+      if (selected.expunge(uids))
+        server.changed(selected);
+      return "UID MOVE completed";
+    }
+
+    return copyUid + "COPY completed";
+  }
+
+  /**
+   * Tells the client about changes to the selected mailbox as they happen, until the client sends DONE
+   */
+  private void idle() throws IOException, CommandException {
+    write("+ idling\r\n");
+    out.flush();
+
+    socket.setSoTimeout(IDLE_POLL);
+    try {
+      while (true) {
+        if (changed) {
+          sync(true);
+          response.writeTo(out);
+          response.reset();
+          out.flush();
+        }
+
+        String done;
+        try {
+          done = readLine();
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        if (done == null)
+          throw new EOFException("Connection closed while idling");
+        if (done.trim().equalsIgnoreCase("DONE"))
+          return;
+        throw new CommandException("BAD", "Expected DONE");
+      }
+    } finally {
+      socket.setSoTimeout(0);
+    }
+  }
+
+  /**
+   * Tells the client about messages added to the selected mailbox, flags changed and, if allowed, messages
+   * expunged since it was last told
+   */
+  private void sync(boolean expunges) {
+    FakeMailbox mailbox = selected;
+    if (mailbox == null)
+      return;
+
+    changed = false;
+    synchronized (mailbox) {
+      if (expunges) {
+        for (int i = view.size() - 1; i >= 0; i--) {
+          if (view.get(i).expunged) {
+            untagged((i + 1) + " EXPUNGE");
+            view.remove(i);
+          }
+        }
+      }
+
+      long previousUid = knownUid;
+      List<FakeMessage> added = mailbox.getMessagesAfter(knownUid);
+      if (!added.isEmpty()) {
+        view.addAll(added);
+        knownUid = added.get(added.size() - 1).uid;
+        untagged(view.size() + " EXISTS");
+      }
+
+      long highest = mailbox.getHighestModSeq();
+      if (highest > syncedModSeq) {
+        for (int i = 0; i < view.size(); i++) {
+          FakeMessage m = view.get(i);
+          if (m.uid <= previousUid && !m.expunged && m.modSeq > syncedModSeq)
+            untagged((i + 1) + " FETCH (FLAGS " + getFlags(m) + ")");
+        }
+        syncedModSeq = highest;
+      }
+    }
+  }
+
+  private void untagged(String s) {
+    write(response, "* " + s + "\r\n");
+  }
+
+  private void write(String s) throws IOException {
+    out.write(FakeMessage.toBytes(s));
+  }
+
+  private static void write(ByteArrayOutputStream buf, String s) {
+    byte[] bytes = FakeMessage.toBytes(s);
+    buf.write(bytes, 0, bytes.length);
+  }
+
+  private static String string(List<Object> args, int index) throws CommandException {
+    if (index >= args.size())
+      throw new CommandException("BAD", "Missing argument");
+    Object arg = args.get(index);
+    if (arg instanceof byte[])
+      return new String((byte[]) arg, 0, ((byte[]) arg).length);
+    if (!(arg instanceof String))
+      throw new CommandException("BAD", "Expected a string");
+    return (String) arg;
+  }
+
+  private static List<Object> list(List<Object> args, int index) throws CommandException {
+    if (index >= args.size())
+      throw new CommandException("BAD", "Missing argument");
+    Object arg = args.get(index);
+    if (arg instanceof List)
+      return new ArrayList<Object>((List<?>) arg);
+    List<Object> list = new ArrayList<Object>();
+    list.add(arg);
+    return list;
+  }
+
+  /**
+   * @return a line without CRLF, or null at the end of the stream
+   */
+  private String readLine() throws IOException {
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        byte[] bytes = partialLine.toByteArray();
+        partialLine.reset();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, "ISO-8859-1");
+      }
+      partialLine.write(b);
+    }
+    return null;
+  }
+
+  /**
+   * Reads a command: atoms and quoted strings as strings, literals as byte arrays and parenthesized lists as lists
+   * @return the parts of the command, or null at the end of the stream
+   */
+  private List<Object> readCommand() throws IOException, CommandException {
+    line = readLine();
+    if (line == null)
+      return null;
+    pos = 0;
+    if (log.isDebugEnabled())
+      log.debug("C: " + line);
+
+    List<Object> parts = parse(false);
+    line = null;
+    return parts;
+  }
+
+  private List<Object> parse(boolean nested) throws IOException, CommandException {
+    List<Object> parts = new ArrayList<Object>();
+    while (true) {
+      while (pos < line.length() && line.charAt(pos) == ' ')
+        pos++;
+      if (pos >= line.length()) {
+        if (nested)
+          throw new CommandException("BAD", "Unterminated list");
+        return parts;
+      }
+
+      char c = line.charAt(pos);
+      if (c == ')') {
+        if (!nested)
+          throw new CommandException("BAD", "Unexpected )");
+        pos++;
+        return parts;
+      } else if (c == '(') {
+        pos++;
+        parts.add(parse(true));
+      } else if (c == '"') {
+        parts.add(parseQuoted());
+      } else if (c == '{' && line.endsWith("}")) {
+        parts.add(parseLiteral());
+      } else {
+        parts.add(parseAtom());
+      }
+    }
+  }
+
+  private String parseQuoted() throws CommandException {
+    StringBuffer sb = new StringBuffer();
+    for (pos++; pos < line.length(); pos++) {
+      char c = line.charAt(pos);
+      if (c == '\\' && pos + 1 < line.length()) {
+        sb.append(line.charAt(++pos));
+      } else if (c == '"') {
+        pos++;
+        return sb.toString();
+      } else {
+        sb.append(c);
+      }
+    }
+    throw new CommandException("BAD", "Unterminated quoted string");
+  }
+
+  private byte[] parseLiteral() throws IOException, CommandException {
+    String spec = line.substring(pos + 1, line.length() - 1);
+    boolean nonSync = spec.endsWith("+");
+    int length;
+    try {
+      length = Integer.parseInt(nonSync ? spec.substring(0, spec.length() - 1) : spec);
+    } catch (NumberFormatException e) {
+      throw new CommandException("BAD", "Invalid literal");
+    }
+
+    if (!nonSync) {
+      write("+ Ready for literal data\r\n");
+      out.flush();
+    }
+
+    byte[] data = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int n = in.read(data, read, length - read);
+      if (n < 0)
+        throw new EOFException("Connection closed in literal");
+      read += n;
+    }
+
+    // The command goes on after the literal
+    line = readLine();
+    if (line == null)
+      throw new EOFException("Connection closed after literal");
+    pos = 0;
+    return data;
+  }
+
+  private String parseAtom() {
+    int start = pos;
+    int brackets = 0;
+    while (pos < line.length()) {
+      char c = line.charAt(pos);
+      if (c == '[')
+        brackets++;
+      else if (c == ']')
+        brackets--;
+      else if (brackets == 0 && (c == ' ' || c == '(' || c == ')'))
+        break;
+      pos++;
+    }
+    return line.substring(start, pos);
+  }
+}
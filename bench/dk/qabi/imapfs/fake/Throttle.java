@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs.fake;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Limits the rate of bytes through a stream. Bursts of up to a tenth of a second worth of bytes go through right away;
+ * beyond that, whoever transfers waits until the rate is met again.
+ */
+class Throttle {
+
+  private long bytesPerSecond;
+  private double credit;
+  private long last = System.nanoTime();
+
+  /**
+   * @param bytesPerSecond the rate, or 0 for no limit
+   */
+  Throttle(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Accounts for bytes transferred, waiting if they exceed the rate
+   * @param bytes number of bytes
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  void transferred(int bytes) throws InterruptedIOException {
+    if (bytesPerSecond <= 0 || bytes <= 0)
+      return;
+
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      credit = Math.min(bytesPerSecond / 10.0, credit + (now - last) * bytesPerSecond / 1e9);
+      last = now;
+      credit -= bytes;
+      wait = credit < 0 ? (long) (-credit * 1000 / bytesPerSecond) : 0;
+    }
+
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+    }
+  }
+
+  InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1)
+          transferred(1);
+        return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        transferred(n);
+        return n;
+      }
+    };
+  }
+
+  OutputStream wrap(OutputStream out) {
+    return new FilterOutputStream(out) {
+      public void write(int b) throws IOException {
+        out.write(b);
+        transferred(1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+        // In slices, so that the data is sent at the rate rather than in bursts
+        int slice = (int) Math.max(1024, Math.min(65536, bytesPerSecond / 20));
+        for (int pos = off; pos < off + len; pos += slice) {
+          int n = Math.min(slice, off + len - pos);
+          out.write(b, pos, n);
+          transferred(n);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import fuse.FuseDirEnt;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.FuseStat;
+import javax.mail.MessagingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The virtual directory <code>/.imapfs</code>, which shows the state of the file system as files, without any IMAP
+ * traffic:
+ * <ul>
+ * <li><code>stats</code> - the {@link Metrics} report, quota usage and write-back queue</li>
+ * <li><code>cache</code> - the local copies in the {@link DiskStore}</li>
+ * <li><code>connections</code> - the connections of the pool</li>
+ * </ul>
+ * Lines written to the write-only file <code>control</code> are run as commands:
+ * <ul>
+ * <li><code>drop-cache [path]</code> - deletes the local copies of a file, of the files of a directory, or of all
+ * files, except those pinned</li>
+ * <li><code>prefetch path</code> - fetches a file, or the files of a directory, into local copies</li>
+ * <li><code>flush-all</code> - uploads all files waiting to be uploaded, and expunges all deleted messages</li>
+ * </ul>
+ */
+class ControlDirectory {
+  private Log log = LogFactory.getLog(getClass());
+
+  static final String NAME = ".imapfs";
+  static final String PATH = "/" + NAME;
+
+  private static final String CONTROL = "control";
+  private static final String[] FILES = {"stats", "cache", "connections", CONTROL};
+
+  /* How long generated content is reused, so that its size as stat'ed matches what is read right after */
+  private static final long CONTENT_TTL = 1000;
+
+  private IMAPFileSystem fs;
+  private int time = (int) (System.currentTimeMillis() / 1000L);
+
+  private static class Content {
+    byte[] data;
+    long generated;
+  }
+
+  private static class Handle {
+    String name;
+    byte[] data;
+    StringBuffer input = new StringBuffer();
+  }
+
+  private Map<String, Content> contents = new ConcurrentHashMap<String, Content>();
+  private Map<Long, Handle> handles = new ConcurrentHashMap<Long, Handle>();
+
+  ControlDirectory(IMAPFileSystem fs) {
+    this.fs = fs;
+  }
+
+  /**
+   * @param path absolute path
+   * @return true if the path is the control directory or below it
+   */
+  static boolean handles(String path) {
+    return path != null && (path.equals(PATH) || path.startsWith(PATH + "/"));
+  }
+
+  /**
+   * @return the name of the file the path refers to, or null for the directory itself
+   */
+  private static String getFileName(String path) throws FuseException {
+    if (path.equals(PATH))
+      return null;
+
+    String name = path.substring(PATH.length() + 1);
+    for (String f : FILES) {
+      if (f.equals(name))
+        return name;
+    }
+    throw new FuseException("Path '" + path + "' not found").initErrno(FuseException.ENOENT);
+  }
+
+  FuseStat getattr(String path) throws FuseException {
+    String name = getFileName(path);
+
+    FuseStat stat = new FuseStat();
+    if (name == null)
+      stat.mode = FuseFtype.TYPE_DIR | 0x16d; // octal 555
+    else if (CONTROL.equals(name))
+      stat.mode = FuseFtype.TYPE_FILE | 0x92; // octal 222
+    else
+      stat.mode = FuseFtype.TYPE_FILE | 0x124; // octal 444
+    stat.nlink = 1;
+    stat.uid = 1000;
+    stat.gid = 1000;
+    stat.size = name != null && !CONTROL.equals(name) ? getContent(name).length : 0;
+    stat.atime = stat.mtime = stat.ctime = time;
+    stat.blocks = (int) ((stat.size + 511) / 512);
+    return stat;
+  }
+
+  FuseDirEnt[] getdir(String path) throws FuseException {
+    if (getFileName(path) != null)
+      throw new FuseException("Not a directory").initErrno(FuseException.ENOTDIR);
+
+    FuseDirEnt[] entries = new FuseDirEnt[FILES.length];
+    for (int i = 0; i < FILES.length; i++) {
+      entries[i] = new FuseDirEnt();
+      entries[i].name = FILES[i];
+      entries[i].mode = FuseFtype.TYPE_FILE;
+    }
+    return entries;
+  }
+
+  /**
+   * @return the entry of the control directory, for listing the root directory
+   */
+  static FuseDirEnt getDirEnt() {
+    FuseDirEnt entry = new FuseDirEnt();
+    entry.name = NAME;
+    entry.mode = FuseFtype.TYPE_DIR;
+    return entry;
+  }
+
+  void open(String path, long fh) throws FuseException {
+    String name = getFileName(path);
+    if (name == null)
+      throw new FuseException("Cannot open directory entry").initErrno(FuseException.EACCES);
+
+    Handle handle = new Handle();
+    handle.name = name;
+    if (!CONTROL.equals(name))
+      handle.data = getContent(name);
+    handles.put(fh, handle);
+  }
+
+  /**
+   * Accepts truncating the control file, as done when it is written to with &gt;, and refuses anything else
+   */
+  void truncate(String path) throws FuseException {
+    if (!CONTROL.equals(getFileName(path)))
+      throw new FuseException("'" + path + "' cannot be changed").initErrno(FuseException.EACCES);
+  }
+
+  /**
+   * @param fh file handle
+   * @return true if the handle is of a file of the control directory
+   */
+  boolean isOpen(long fh) {
+    return handles.containsKey(fh);
+  }
+
+  void read(long fh, ByteBuffer buf, long offset) throws FuseException {
+    Handle handle = handles.get(fh);
+    if (handle.data == null)
+      throw new FuseException("'" + handle.name + "' is write-only").initErrno(FuseException.EACCES);
+
+    if (offset < handle.data.length)
+      buf.put(handle.data, (int) offset, (int) Math.min(buf.remaining(), handle.data.length - offset));
+  }
+
+  void write(long fh, ByteBuffer buf) throws FuseException {
+    Handle handle = handles.get(fh);
+    if (handle.data != null)
+      throw new FuseException("'" + handle.name + "' is read-only").initErrno(FuseException.EACCES);
+
+    byte[] bytes = new byte[buf.remaining()];
+    buf.get(bytes);
+    try {
+      handle.input.append(new String(bytes, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+
+    int eol;
+    while ((eol = handle.input.indexOf("\n")) != -1) {
+      String line = handle.input.substring(0, eol);
+      handle.input.delete(0, eol + 1);
+      execute(line);
+    }
+  }
+
+  void release(long fh) throws FuseException {
+    Handle handle = handles.remove(fh);
+    if (handle != null && handle.input.length() > 0)
+      execute(handle.input.toString());
+  }
+
+  private byte[] getContent(String name) {
+    long now = System.currentTimeMillis();
+
+    Content content = contents.get(name);
+    if (content == null || now - content.generated > CONTENT_TTL) {
+      content = new Content();
+      content.data = generate(name);
+      content.generated = now;
+      contents.put(name, content);
+    }
+    return content.data;
+  }
+
+  private byte[] generate(String name) {
+    StringBuffer sb = new StringBuffer();
+
+    if ("stats".equals(name)) {
+      sb.append(Metrics.getInstance().getReport()).append('\n');
+
+      QuotaUsage quota = QuotaUsage.getInstance();
+      if (quota.isKnown()) {
+        sb.append("quota storage=").append(quota.getStorageUsage()).append('/').append(quota.getStorageLimit());
+        sb.append(" messages=").append(quota.getMessageUsage()).append('/').append(quota.getMessageLimit()).append('\n');
+      }
+
+      WriteBackQueue writeBack = fs.getWriteBackQueue();
+      if (writeBack != null) {
+        sb.append("write-back queued=").append(writeBack.getQueueLength()).append(" lag=").append(writeBack.getLag());
+        sb.append("ms uploads=").append(writeBack.getUploads()).append(" last upload lag=");
+        sb.append(writeBack.getLastUploadLag()).append("ms\n");
+      }
+    } else if ("cache".equals(name)) {
+      sb.append("disk usage=").append(DiskStore.getInstance().getUsage()).append('\n');
+      for (String line : DiskStore.getInstance().describe())
+        sb.append(line).append('\n');
+    } else if ("connections".equals(name)) {
+      for (String line : fs.getPool().describe())
+        sb.append(line).append('\n');
+    }
+
+    try {
+      return sb.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void execute(String line) throws FuseException {
+    line = line.trim();
+    if (line.length() == 0)
+      return;
+
+    String[] parts = line.split("\\s+", 2);
+    String command = parts[0];
+    String arg = parts.length > 1 ? parts[1] : null;
+    log.info("control command: " + line);
+
+    try {
+      if ("drop-cache".equals(command)) {
+        if (arg == null)
+          dropCache(fs.getRoot(), true);
+        else
+          dropCache(fs.findAttachedEntry(arg), false);
+      } else if ("prefetch".equals(command) && arg != null) {
+        IMAPEntry entry = fs.findAttachedEntry(arg);
+        if (entry instanceof IMAPFile) {
+          ((IMAPFile) entry).prefetch();
+        } else {
+          for (IMAPEntry child : ((IMAPDirectory) entry).getChildren(false)) {
+            if (child instanceof IMAPFile && !((IMAPFile) child).isDetached())
+              ((IMAPFile) child).prefetch();
+          }
+        }
+      } else if ("flush-all".equals(command) && arg == null) {
+        fs.flushAll();
+      } else {
+        throw new FuseException("Unknown command '" + line + "'").initErrno(FuseException.EINVAL);
+      }
+    } catch (MessagingException e) {
+      log.error("IMAP error running '" + line + "'", e);
+      throw new FuseException("IMAP error running '" + line + "'").initErrno(FuseException.ECOMM);
+    } catch (IOException e) {
+      log.error("I/O error running '" + line + "'", e);
+      throw new FuseException("I/O error running '" + line + "'").initErrno(FuseException.EIO);
+    }
+  }
+
+  /**
+   * Deletes the local copies of a file or of the files known in a directory
+   */
+  private void dropCache(IMAPEntry entry, boolean recursive) {
+    if (entry instanceof IMAPFile) {
+      if (!((IMAPFile) entry).dropLocalCopy())
+        log.info("Local copy of '" + entry.getAbsoluteName() + "' is pinned");
+      return;
+    }
+
+    Map<String, IMAPEntry> children = ((IMAPDirectory) entry).getKnownChildren();
+    if (children == null)
+      return;
+
+    for (IMAPEntry child : children.values()) {
+      if (child instanceof IMAPFile || recursive)
+        dropCache(child, recursive);
+    }
+  }
+}
@@ -1,10 +1,24 @@
 package dk.qabi.imapfs;
 
-import dk.qabi.imapfs.util.PathUtil;
 import dk.qabi.imapfs.util.Configuration;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Local copies of files, kept within the configured maximum disk usage.
+ *
+ * Copies are tracked in least recently used order. When the disk usage exceeds the maximum, a background thread
+ * evicts the least recently used copies of files that are neither open nor modified locally, until the usage is
+ * within the limit again. Evicting is left to a thread of its own so that it never holds the lock of one file while
+ * waiting for that of another.
+ */
 public class DiskStore {
   private static DiskStore instance = new DiskStore();
 
@@ -12,18 +26,169 @@ public class DiskStore {
     return instance;
   }
 
+  private Log log = LogFactory.getLog(getClass());
+
+  private static class Entry {
+    File file;
+    IMAPFile owner;
+    long size;
+  }
+
+  /* Access ordered, so the least recently used copy comes first */
+  private Map<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+  private long usage;
+  private long nextCopy;
+
+  private DiskStore() {
+    deleteStaleCopies();
+
+    Thread evictor = new Thread("DiskStore evictor") {
+      public void run() {
+        evictForever();
+      }
+    };
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  /**
+   * Deletes the copies left by an earlier mount. They belong to no file, so they would never be evicted, and their
+   * names are given out again.
+   */
+  private void deleteStaleCopies() {
+    File[] files = Configuration.getDiskstoreFolder().listFiles();
+    if (files == null)
+      return;
+
+    int deleted = 0;
+    for (File f : files) {
+      if (f.isFile() && f.getName().matches("copy[0-9]+")) {
+        if (f.delete())
+          deleted++;
+        else
+          log.warn("Cannot delete stale local copy " + f);
+      }
+    }
+    if (deleted > 0)
+      log.info("Deleted " + deleted + " local copies left by an earlier mount");
+  }
+
+  /**
+   * Get the location of a new local copy of a file, and start tracking it. Copies are named by a counter rather than
+   * by the path of the file, so a copy stays with its file when the file is renamed or moved, and a new file at the
+   * old path gets a copy of its own.
+   * @param size the size of the copy to make room for
+   * @param owner the file the copy is of
+   * @return the local file
+   */
+  public File getFile(long size, IMAPFile owner) {
+    Entry e = new Entry();
+    e.owner = owner;
+
+    synchronized (this) {
+      e.file = new File(Configuration.getDiskstoreFolder(), "copy" + nextCopy++);
+      entries.put(e.file, e);
+      setSize(e, size);
+    }
+
+    return e.file;
+  }
+
+  /**
+   * Marks a local copy as just used
+   * @param file the local file
+   * @param size the current size of the copy
+   */
+  public synchronized void touch(File file, long size) {
+    Entry e = entries.get(file);
+    if (e != null)
+      setSize(e, size);
+  }
+
+  /**
+   * Stops tracking a local copy that has been deleted
+   * @param file the local file
+   */
+  public synchronized void remove(File file) {
+    Entry e = entries.remove(file);
+    if (e != null)
+      usage -= e.size;
+  }
+
+  public synchronized long getUsage() {
+    return usage;
+  }
+
+  /**
+   * @return one line per local copy, least recently used first, with the file it is of, the bytes stored and whether
+   * it is modified locally or otherwise pinned
+   */
+  public String[] describe() {
+    List<Entry> copies;
+    synchronized (this) {
+      copies = new ArrayList<Entry>(entries.values());
+    }
+
+    // The files are asked without holding the lock of the store, which files take while holding their own
+    String[] lines = new String[copies.size()];
+    for (int i = 0; i < lines.length; i++) {
+      Entry e = copies.get(i);
+      IMAPFile owner = e.owner;
+      lines[i] = owner.getAbsoluteName() + " bytes=" + e.size + (owner.isDirty() ? " dirty" : "")
+          + (owner.isPinned() ? " pinned" : "");
+    }
+    return lines;
+  }
+
+  private void setSize(Entry e, long size) {
+    usage += size - e.size;
+    e.size = size;
+
+    if (usage > Configuration.getMaxDiskUsage())
+      notifyAll();
+  }
+
+  private void evictForever() {
+    while (true) {
+      try {
+        List<Entry> victims = new ArrayList<Entry>();
+
+        synchronized (this) {
+          long max = Configuration.getMaxDiskUsage();
+          while (usage <= max)
+            wait();
+
+          long excess = usage - max;
+          for (Entry e : entries.values()) {
+            if (excess <= 0)
+              break;
+            if (!e.owner.isPinned()) {
+              victims.add(e);
+              excess -= e.size;
+            }
+          }
+        }
 
-  public File getFile(String path, long size) {
-    final String parentPath = PathUtil.extractParent(path);
+        int evicted = 0;
+        for (Entry e : victims) {
+          if (e.owner.evict(e.file))
+            evicted++;
+        }
+        Metrics.getInstance().evicted(evicted);
 
-    File parent;
-    if (!"/".equals(parentPath))
-      parent = new File(Configuration.getDiskstoreFolder(), parentPath);
-    else
-      parent = Configuration.getDiskstoreFolder();
+        if (evicted < victims.size() || victims.isEmpty()) {
+          // The rest is in use, so wait for some of it to be released
+          synchronized (this) {
+            wait(1000);
+          }
+        }
 
-    parent.mkdirs();
-    
-    return new File(parent, PathUtil.extractName(path));
+        log.debug("evicted " + evicted + " local copies, disk usage is now " + getUsage());
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        log.error("Error evicting local copies", e);
+      }
+    }
   }
 }
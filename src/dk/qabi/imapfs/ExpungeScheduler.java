@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.mail.Message;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Collects messages flagged as deleted and expunges them in batches per directory, either when a batch is full or
+ * when the first message of it has waited for the configured delay.
+ */
+class ExpungeScheduler {
+  private static ExpungeScheduler instance = new ExpungeScheduler();
+
+  static ExpungeScheduler getInstance() {
+    return instance;
+  }
+
+  private Log log = LogFactory.getLog(getClass());
+
+  private static class Batch {
+    long scheduled;
+    List<Message> messages = new ArrayList<Message>();
+  }
+
+  private Map<IMAPDirectory, Batch> batches = new LinkedHashMap<IMAPDirectory, Batch>();
+
+  private ExpungeScheduler() {
+    Thread expunger = new Thread("Expunger") {
+      public void run() {
+        expungeForever();
+      }
+    };
+    expunger.setDaemon(true);
+    expunger.start();
+  }
+
+  /**
+   * Schedules messages that have been flagged as deleted to be expunged
+   * @param dir the directory holding the messages
+   * @param messages the messages
+   */
+  synchronized void schedule(IMAPDirectory dir, List<Message> messages) {
+    if (messages.isEmpty())
+      return;
+
+    Batch batch = batches.get(dir);
+    if (batch == null) {
+      batch = new Batch();
+      batch.scheduled = System.currentTimeMillis();
+      batches.put(dir, batch);
+    }
+    batch.messages.addAll(messages);
+
+    notifyAll();
+  }
+
+  /**
+   * Forgets the messages scheduled for a directory, e.g. because the folder has been expunged anyway
+   * @param dir the directory
+   */
+  synchronized void cancel(IMAPDirectory dir) {
+    batches.remove(dir);
+  }
+
+  /**
+   * Expunges everything scheduled right away
+   */
+  void expungeAll() {
+    List<IMAPDirectory> dirs;
+    synchronized (this) {
+      dirs = new ArrayList<IMAPDirectory>(batches.keySet());
+    }
+
+    for (IMAPDirectory dir : dirs)
+      expunge(dir);
+  }
+
+  /**
+   * Expunges what is scheduled for a directory right away
+   * @param dir the directory
+   */
+  void expunge(IMAPDirectory dir) {
+    Batch batch;
+    synchronized (this) {
+      batch = batches.remove(dir);
+    }
+    if (batch == null)
+      return;
+
+    try {
+      dir.expungeMessages(batch.messages);
+      log.debug("expunged " + batch.messages.size() + " message(s) of '" + dir.getAbsoluteName() + "'");
+    } catch (Exception e) {
+      log.error("Error expunging messages of '" + dir.getAbsoluteName() + "'", e);
+    }
+  }
+
+  private void expungeForever() {
+    while (true) {
+      IMAPDirectory due = null;
+
+      try {
+        synchronized (this) {
+          while (due == null) {
+            long now = System.currentTimeMillis();
+            long delay = Configuration.getExpungeDelay();
+            int batchSize = Configuration.getExpungeBatchSize();
+            long wait = 0;
+
+            for (Map.Entry<IMAPDirectory, Batch> e : batches.entrySet()) {
+              Batch batch = e.getValue();
+              long at = batch.scheduled + delay;
+              if (at <= now || batch.messages.size() >= batchSize) {
+                due = e.getKey();
+                break;
+              } else if (wait == 0 || at - now < wait) {
+                wait = at - now;
+              }
+            }
+
+            if (due == null)
+              wait(wait);
+          }
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      expunge(due);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import com.sun.mail.iap.Literal;
+import dk.qabi.imapfs.util.FileSliceDataSource;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Properties;
+
+/**
+ * A message holding a range of a local file as its data attachment, which can be appended as a literal streamed
+ * straight from the file. Unlike appending a plain {@link MimeMessage}, the message is never held in memory to find
+ * its size: the size of the base64 encoded data follows from the length of the range.
+ */
+class FileMessage extends MimeMessage implements Literal {
+
+  private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  /**
+   * The largest number of bytes of data a message can hold, in whole base64 lines, as the size of an appended message
+   * must fit in an int. Room is left for the headers.
+   */
+  static final long MAX_LENGTH =
+      (Integer.MAX_VALUE - 1024 * 1024) / IMAPChunk.BASE64_LINE_LENGTH * IMAPChunk.BASE64_LINE_BYTES;
+
+  private File file;
+  private long offset;
+  private long length;
+  private MimeBodyPart part;
+
+  /* The message as written before and after the encoded data */
+  private byte[] head;
+  private byte[] tail;
+
+  /**
+   * @param file the local file
+   * @param offset offset of the first byte of the data
+   * @param length number of bytes of data
+   * @param contentType content type of the data, or null
+   * @throws MessagingException if the message cannot be built
+   */
+  FileMessage(File file, long offset, long length, String contentType) throws MessagingException {
+    super(Session.getDefaultInstance(new Properties(), null));
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+
+    part = new MimeBodyPart();
+    part.setDataHandler(new DataHandler(new FileSliceDataSource(file, offset, length)));
+    part.setFileName(IMAPFile.DATA_ATTCH_NAME);
+    if (contentType != null)
+      part.setHeader("Content-Type", contentType);
+    part.setHeader("Content-Transfer-Encoding", IMAPChunk.DATA_ENCODING);
+
+    MimeMultipart m = new MimeMultipart();
+    m.addBodyPart(part);
+    setContent(m);
+  }
+
+  protected void updateHeaders() throws MessagingException {
+    super.updateHeaders();
+    this.head = null;
+  }
+
+  /**
+   * Writes the message as it is before and after the encoded data, so that its size is known. Called before the
+   * message is appended, as the size cannot fail to be told then.
+   * @throws MessagingException if the headers cannot be written, or the message is too large to append
+   */
+  void prepare() throws MessagingException {
+    if (head != null)
+      return;
+
+    if (!saved)
+      saveChanges();
+
+    String boundary = new ContentType(getContentType()).getParameter("boundary");
+
+    byte[] head;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeLines(out, getAllHeaderLines());
+      out.write(CRLF);
+      out.write(("--" + boundary).getBytes("US-ASCII"));
+      out.write(CRLF);
+      writeLines(out, part.getAllHeaderLines());
+      out.write(CRLF);
+      head = out.toByteArray();
+
+      this.tail = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+    } catch (IOException e) {
+      throw new MessagingException("Error writing message headers", e);
+    }
+
+    long size = head.length + getEncodedLength() + tail.length;
+    if (size > Integer.MAX_VALUE)
+      throw new MessagingException("Message of " + size + " bytes is too large to append");
+    this.head = head;
+  }
+
+  private static void writeLines(OutputStream out, Enumeration<?> lines) throws IOException {
+    while (lines.hasMoreElements()) {
+      out.write(((String) lines.nextElement()).getBytes("US-ASCII"));
+      out.write(CRLF);
+    }
+  }
+
+  /**
+   * Get the number of bytes of the base64 encoded data, written in lines of {@link IMAPChunk#BASE64_LINE_BYTES}
+   * decoded bytes separated by CRLF
+   */
+  private long getEncodedLength() {
+    long lines = (length + IMAPChunk.BASE64_LINE_BYTES - 1) / IMAPChunk.BASE64_LINE_BYTES;
+    return (length + 2) / 3 * 4 + Math.max(0, lines - 1) * CRLF.length;
+  }
+
+  /**
+   * @return the size of the message, which has been prepared
+   */
+  public int size() {
+    return (int) (head.length + getEncodedLength() + tail.length);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    try {
+      prepare();
+    } catch (MessagingException e) {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    out.write(head);
+
+    InputStream in = new FileSliceDataSource(file, offset, length).getInputStream();
+    try {
+      byte[] line = new byte[IMAPChunk.BASE64_LINE_BYTES];
+      byte[] encoded = new byte[IMAPChunk.BASE64_LINE_LENGTH];
+      boolean first = true;
+      int n;
+
+      while ((n = readLine(in, line)) > 0) {
+        if (!first)
+          out.write(CRLF);
+        out.write(encoded, 0, encode(line, n, encoded));
+        first = false;
+      }
+    } finally {
+      in.close();
+    }
+
+    out.write(tail);
+  }
+
+  /**
+   * Reads as many bytes as fit in the buffer unless the end of the stream is reached first
+   */
+  private static int readLine(InputStream in, byte[] buf) throws IOException {
+    int count = 0;
+    while (count < buf.length) {
+      int n = in.read(buf, count, buf.length - count);
+      if (n < 0)
+        break;
+      count += n;
+    }
+    return count;
+  }
+
+  private static int encode(byte[] in, int count, byte[] out) {
+    int pos = 0;
+    for (int i = 0; i < count; i += 3) {
+      int b0 = in[i] & 0xff;
+      int b1 = i + 1 < count ? in[i + 1] & 0xff : 0;
+      int b2 = i + 2 < count ? in[i + 2] & 0xff : 0;
+
+      out[pos++] = (byte) BASE64[b0 >> 2];
+      out[pos++] = (byte) BASE64[((b0 & 0x03) << 4) | (b1 >> 4)];
+      out[pos++] = (byte) (i + 1 < count ? BASE64[((b1 & 0x0f) << 2) | (b2 >> 6)] : '=');
+      out[pos++] = (byte) (i + 2 < count ? BASE64[b2 & 0x3f] : '=');
+    }
+    return pos;
+  }
+}
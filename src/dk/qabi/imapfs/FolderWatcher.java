@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.mail.MessagingException;
+import javax.mail.event.MessageChangedEvent;
+import javax.mail.event.MessageChangedListener;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches the most recently listed directories with IDLE, each on a connection of its own, so that their children
+ * can be used without asking the server whether anything changed. Any EXISTS, EXPUNGE or FETCH reported for the folder
+ * of a watched directory marks its children as out of date, which also drops the paths below it from the path cache,
+ * and the next lookup or listing synchronizes the directory incrementally.
+ *
+ * IDLE only reports changes to the messages of the folder, so the children of a watched directory are also marked
+ * out of date every {@link #RENEW_INTERVAL} when the IDLE is renewed, to find subfolders created elsewhere.
+ */
+class FolderWatcher {
+  private static Log log = LogFactory.getLog(FolderWatcher.class);
+
+  /* How often IDLE is ended and started again, well within the 30 minutes servers let it last */
+  private static final long RENEW_INTERVAL = 10 * 60 * 1000;
+
+  /* How long to wait before connecting again after an error */
+  private static final long RETRY_DELAY = 30 * 1000;
+
+  private URL url;
+  private Slot[] slots;
+  private Timer timer = new Timer("IDLE renewal", true);
+  private volatile boolean closed;
+
+  /* The directories to watch, most recently listed first */
+  private LinkedList<IMAPDirectory> hot = new LinkedList<IMAPDirectory>();
+
+  /**
+   * @param url URL to connect to
+   * @param connections number of directories to watch, each on a connection of its own
+   */
+  FolderWatcher(URL url, int connections) {
+    this.url = url;
+    this.slots = new Slot[connections];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new Slot(i + 1);
+      slots[i].start();
+    }
+
+    timer.schedule(new TimerTask() {
+      public void run() {
+        for (Slot slot : slots)
+          slot.renew();
+      }
+    }, RENEW_INTERVAL, RENEW_INTERVAL);
+  }
+
+  /**
+   * @param dir a directory
+   * @return true if changes to the directory on the server are currently being reported
+   */
+  boolean isWatched(IMAPDirectory dir) {
+    for (Slot slot : slots) {
+      IMAPFolder f = slot.folder;
+      // A directory renamed since is not what the slot is idling on
+      if (slot.watching == dir && f != null && f.getFullName().equals(dir.getFolderName()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Tells that a directory has been listed, which makes it the first to be watched, possibly instead of the least
+   * recently listed directory being watched
+   * @param dir the directory
+   */
+  void listed(IMAPDirectory dir) {
+    synchronized (this) {
+      if (closed)
+        return;
+
+      if (!hot.isEmpty() && hot.getFirst() == dir)
+        return;
+
+      boolean wasHot = hot.remove(dir);
+      hot.addFirst(dir);
+      if (wasHot)
+        return;
+
+      if (hot.size() > slots.length)
+        hot.removeLast();
+
+      notifyAll();
+    }
+
+    // Slots watching a directory no longer hot end their IDLE, and pick up the new one
+    for (Slot slot : slots)
+      slot.renewIfCold();
+  }
+
+  /**
+   * Tells that directories have been renamed, so that slots idling on their folders by the old names pick them up by
+   * their new names
+   */
+  void renamed() {
+    for (Slot slot : slots)
+      slot.renewIfRenamed();
+  }
+
+  /**
+   * Stops watching and closes the connections
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      hot.clear();
+      notifyAll();
+    }
+    timer.cancel();
+
+    for (Slot slot : slots)
+      slot.close();
+  }
+
+  /**
+   * Called by a slot to get the directory it should watch next
+   * @return a hot directory not watched by any other slot, or null when closed
+   */
+  private synchronized IMAPDirectory nextTarget() {
+    while (!closed) {
+      for (IMAPDirectory dir : hot) {
+        boolean taken = false;
+        for (Slot slot : slots)
+          taken |= slot.target == dir;
+        if (!taken)
+          return dir;
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Look again
+      }
+    }
+    return null;
+  }
+
+  private synchronized boolean isHot(IMAPDirectory dir) {
+    return hot.contains(dir);
+  }
+
+  private synchronized void drop(IMAPDirectory dir) {
+    hot.remove(dir);
+  }
+
+  /**
+   * A connection and the thread idling on it
+   */
+  private class Slot extends Thread implements MessageCountListener, MessageChangedListener {
+    private IMAPConnection con;
+
+    /* The directory claimed by the slot, and the directory whose changes are being reported */
+    private volatile IMAPDirectory target;
+    private volatile IMAPDirectory watching;
+    private volatile IMAPFolder folder;
+
+    Slot(int number) {
+      super("IDLE " + number);
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!closed) {
+        IMAPDirectory dir;
+        synchronized (FolderWatcher.this) {
+          dir = nextTarget();
+          target = dir;
+        }
+        if (dir == null)
+          break;
+
+        try {
+          watch(dir);
+        } catch (MessagingException e) {
+          if (closed)
+            break;
+
+          log.warn("Error watching '" + dir.getAbsoluteName() + "', retrying later", e);
+          drop(dir);
+          disconnect();
+          try {
+            Thread.sleep(RETRY_DELAY);
+          } catch (InterruptedException ie) {
+            // Go on
+          }
+        } finally {
+          target = null;
+        }
+      }
+
+      disconnect();
+    }
+
+    private void watch(IMAPDirectory dir) throws MessagingException {
+      if (con == null) {
+        con = new IMAPConnection(url);
+        if (!((IMAPStore) con.getRootFolder().getStore()).hasCapability("IDLE")) {
+          log.warn("Server does not support IDLE, not watching directories");
+          FolderWatcher.this.close();
+          return;
+        }
+      }
+
+      IMAPFolder f = con.getFolder(dir.getFolderName());
+      f.addMessageCountListener(this);
+      f.addMessageChangedListener(this);
+      this.folder = f;
+      try {
+        while (!closed && isHot(dir) && f.getFullName().equals(dir.getFolderName())) {
+          // Whatever changed before the folder was selected or while not idling is found by synchronizing
+          dir.clearChildren();
+          watching = dir;
+          log.debug("Watching '" + dir.getAbsoluteName() + "'");
+          f.idle();
+          watching = null;
+        }
+      } finally {
+        watching = null;
+        this.folder = null;
+        f.removeMessageCountListener(this);
+        f.removeMessageChangedListener(this);
+      }
+    }
+
+    /**
+     * Makes the slot end its IDLE, from the timer thread
+     */
+    void renew() {
+      final IMAPFolder f = folder;
+      if (f == null)
+        return;
+
+      try {
+        timer.schedule(new TimerTask() {
+          public void run() {
+            try {
+              IMAPCommands.noop(f);
+            } catch (Exception e) {
+              log.debug("Error ending IDLE", e);
+            }
+          }
+        }, 0);
+      } catch (IllegalStateException e) {
+        // Closed, so the IDLE ends anyway
+      }
+    }
+
+    void renewIfCold() {
+      IMAPDirectory dir = target;
+      if (dir != null && !isHot(dir))
+        renew();
+    }
+
+    void renewIfRenamed() {
+      IMAPDirectory dir = target;
+      IMAPFolder f = folder;
+      if (dir != null && f != null && !f.getFullName().equals(dir.getFolderName()))
+        renew();
+    }
+
+    private void disconnect() {
+      watching = null;
+      if (con != null) {
+        try {
+          con.close();
+        } catch (MessagingException e) {
+          log.debug("Error closing IDLE connection", e);
+        }
+        con = null;
+      }
+    }
+
+    void close() {
+      // Closing the connection makes the IDLE fail, and the thread notices that the watcher is closed
+      IMAPConnection c = con;
+      watching = null;
+      if (c != null) {
+        try {
+          c.close();
+        } catch (MessagingException e) {
+          log.debug("Error closing IDLE connection", e);
+        }
+      }
+    }
+
+    private void changed() {
+      IMAPDirectory dir = target;
+      if (dir != null)
+        dir.clearChildren();
+    }
+
+    public void messagesAdded(MessageCountEvent e) {
+      changed();
+    }
+
+    public void messagesRemoved(MessageCountEvent e) {
+      changed();
+    }
+
+    public void messageChanged(MessageChangedEvent e) {
+      changed();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import javax.mail.*;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ *
+ * This class represents a message holding (part of) the data of a file as its first attachment
+ *
+ */
+class IMAPChunk {
+
+  static final String DATA_ENCODING = "base64";
+
+  /* Our base64 encoder writes lines of 76 characters plus CRLF, each holding 57 decoded bytes */
+  static final int BASE64_LINE_BYTES = 57;
+  static final int BASE64_LINE_LENGTH = 78;
+
+  /**
+   * Told about the progress of {@link IMAPChunk#transferTo}
+   */
+  interface Progress {
+    /**
+     * @param position position in the file up to which data has been written
+     */
+    void transferred(long position);
+  }
+
+  private Message msg;
+  private IMAPDirectory dir;
+  private String dataSection;
+  private String dataEncoding;
+
+  IMAPChunk(Message msg, IMAPDirectory dir) {
+    this.msg = msg;
+    this.dir = dir;
+  }
+
+  Message getMessage() {
+    return msg;
+  }
+
+  /**
+   * Get a chunk for the same data stored in another message, e.g. after the message has been moved
+   * @param msg the message now holding the data
+   * @param dir the directory of the message
+   * @return the chunk
+   */
+  IMAPChunk movedTo(Message msg, IMAPDirectory dir) {
+    IMAPChunk chunk = new IMAPChunk(msg, dir);
+    chunk.dataSection = dataSection;
+    chunk.dataEncoding = dataEncoding;
+    return chunk;
+  }
+
+  /**
+   * Determines whether arbitrary byte ranges of the data attachment can be fetched from the server, i.e. whether
+   * the message is on the server and uses a transfer encoding where decoded offsets can be mapped to encoded ones.
+   *
+   * @return true if {@link #fetch} can fetch only the requested range
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  boolean isRangeFetchable() throws MessagingException {
+    if (!(msg instanceof IMAPMessage))
+      return false;
+
+    if (dataSection == null) {
+      BODYSTRUCTURE bs = IMAPCommands.fetchBodyStructure((IMAPFolder) msg.getFolder(), getUID());
+      if (bs != null && bs.isMulti() && bs.bodies != null && bs.bodies.length > 0) {
+        dataSection = "1";
+        dataEncoding = bs.bodies[0].encoding;
+      } else {
+        dataSection = "";
+      }
+    }
+
+    return dataSection.length() > 0 && dataEncoding != null
+        && (isBase64() || "binary".equalsIgnoreCase(dataEncoding));
+  }
+
+  private boolean isBase64() {
+    return DATA_ENCODING.equalsIgnoreCase(dataEncoding);
+  }
+
+  /**
+   * Get the decoded data of the chunk, starting at the given offset. For base64 encoded chunks the offset must be a
+   * multiple of {@link #BASE64_LINE_BYTES}.
+   *
+   * @param start offset of the first decoded byte
+   * @param count number of decoded bytes wanted; the returned stream may hold more
+   * @return a stream of decoded data
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  InputStream fetch(long start, long count) throws MessagingException, IOException {
+    if (!isRangeFetchable()) {
+      InputStream in = getInputStream();
+      long skipped = 0;
+      while (skipped < start) {
+        long n = in.skip(start - skipped);
+        if (n <= 0)
+          break;
+        skipped += n;
+      }
+      return in;
+    }
+
+    long encodedStart;
+    long encodedCount;
+    if (isBase64()) {
+      encodedStart = start / BASE64_LINE_BYTES * BASE64_LINE_LENGTH;
+      encodedCount = (count + BASE64_LINE_BYTES - 1) / BASE64_LINE_BYTES * BASE64_LINE_LENGTH;
+    } else {
+      encodedStart = start;
+      encodedCount = count;
+    }
+
+    InputStream in = fetchPartial(encodedStart, encodedCount).toByteArrayInputStream();
+
+    if (isBase64())
+      return MimeUtility.decode(in, DATA_ENCODING);
+    else
+      return in;
+  }
+
+  /**
+   * Writes decoded data of the chunk to a file. Data that can be fetched by range is fetched in blocks of the
+   * configured fetch block size, so only one block is held in memory at a time.
+   *
+   * @param start offset of the first decoded byte, a multiple of {@link #BASE64_LINE_BYTES} for base64 data
+   * @param count number of decoded bytes to write
+   * @param out channel of the file to write to
+   * @param position position in the file of the first byte
+   * @param progress told whenever data has been written, or null
+   * @return the number of bytes written, fewer than requested if the data ends first
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  long transferTo(long start, long count, FileChannel out, long position, Progress progress)
+      throws MessagingException, IOException {
+    long blockSize = count;
+    if (isRangeFetchable())
+      blockSize = Math.max(1, Configuration.getFetchBlockSize() / BASE64_LINE_BYTES) * BASE64_LINE_BYTES;
+
+    byte[] buffer = new byte[65536];
+    long done = 0;
+    boolean more = true;
+
+    while (more && done < count) {
+      long length = Math.min(blockSize, count - done);
+      InputStream in = fetch(start + done, length);
+      try {
+        long end = done + length;
+        int read = 0;
+        while (done < end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - done))) > 0) {
+          ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+          while (bb.hasRemaining())
+            done += out.write(bb, position + done);
+          Metrics.getInstance().fetched(read);
+          if (progress != null)
+            progress.transferred(position + done);
+        }
+        more = read > 0;
+      } finally {
+        in.close();
+      }
+    }
+
+    return done;
+  }
+
+  private long getUID() throws MessagingException {
+    return ((UIDFolder) msg.getFolder()).getUID(msg);
+  }
+
+  /**
+   * Fetches encoded data, on a connection of its own if connections are pooled
+   */
+  private ByteArray fetchPartial(long start, long count) throws MessagingException {
+    long uid = getUID();
+    IMAPConnectionPool pool = dir.getPool();
+
+    if (pool == null)
+      return IMAPCommands.fetchPartial((IMAPFolder) msg.getFolder(), uid, dataSection, start, count);
+
+    IMAPConnection con = pool.borrow(dir.getFolderName());
+    try {
+      return IMAPCommands.fetchPartial(pool.getFolder(con, dir.getFolderName()), uid, dataSection, start, count);
+    } finally {
+      pool.release(con);
+    }
+  }
+
+  /**
+   * Estimates the decoded size of the data from the size of the data attachment as stored, which for messages on the
+   * server is told by the BODYSTRUCTURE, so no data is fetched. The estimate is never less than the actual size: for
+   * base64 it assumes lines of the longest length allowed and counts padding as data.
+   *
+   * @return the estimated size in bytes, or -1 if not known
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  long estimateDataSize() throws MessagingException {
+    Object content;
+    try {
+      content = msg.getContent();
+    } catch (IOException e) {
+      throw new MessagingException("Error getting structure of message", e);
+    }
+
+    if (!(content instanceof Multipart))
+      return 0; // no attachments -> no data
+
+    BodyPart part = ((Multipart) content).getBodyPart(0);
+    long encoded = part.getSize();
+    if (encoded < 0)
+      return -1;
+
+    if (part instanceof MimePart && DATA_ENCODING.equalsIgnoreCase(((MimePart) part).getEncoding())) {
+      long chars = encoded - encoded / BASE64_LINE_LENGTH * 2; // without the CRLF ending each line
+      return chars / 4 * 3;
+    } else {
+      // Decoding other encodings never makes the data larger
+      return encoded;
+    }
+  }
+
+  /**
+   * Get the decoded data of the whole chunk
+   *
+   * @return a stream of decoded data
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  InputStream getInputStream() throws IOException, MessagingException {
+    Object content = msg.getContent();
+
+    if (content instanceof Multipart) {
+      Multipart m = (Multipart) content;
+      BodyPart part = m.getBodyPart(0);
+      return part.getInputStream();
+    } else {
+      // Not a multipart -> no attachemts -> no data
+      return new ByteArrayInputStream(new byte[0]);
+    }
+  }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.Literal;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Item;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * IMAP commands that are not exposed by the JavaMail API, issued directly on the protocol of a folder.
+ */
+class IMAPCommands {
+
+  private static final Pattern COPYUID = Pattern.compile("\\[COPYUID \\d+ ([0-9:,]+) ([0-9:,]+)\\]", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * The state of a folder as reported by <code>STATUS</code>
+   */
+  static class FolderStatus {
+    long uidValidity = -1;
+    long uidNext = -1;
+    int messages = -1;
+    /* -1 if the server does not support CONDSTORE */
+    long highestModSeq = -1;
+  }
+
+  /**
+   * Gets the UIDVALIDITY, UIDNEXT, number of messages and, if the server supports CONDSTORE, HIGHESTMODSEQ of a
+   * folder. Unlike {@link IMAPFolder#getStatus} this knows HIGHESTMODSEQ, and it also works on the selected folder,
+   * in which case pending EXISTS and EXPUNGE responses are processed by the folder as well.
+   *
+   * @param folder folder to get the status of
+   * @return the status
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static FolderStatus status(IMAPFolder folder) throws MessagingException {
+    final String name = folder.getFullName();
+
+    return (FolderStatus) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Argument items = new Argument();
+        items.writeAtom("UIDVALIDITY");
+        items.writeAtom("UIDNEXT");
+        items.writeAtom("MESSAGES");
+        if (p.hasCapability("CONDSTORE"))
+          items.writeAtom("HIGHESTMODSEQ");
+
+        Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(name));
+        args.writeArgument(items);
+
+        Metrics.getInstance().command("STATUS");
+        Response[] r = p.command("STATUS", args);
+        p.notifyResponseHandlers(r);
+
+        Response response = r[r.length-1];
+        if (!response.isOK()) {
+          p.handleResult(response);
+          return null;
+        }
+
+        FolderStatus status = new FolderStatus();
+        for (Response resp : r) {
+          if (resp instanceof IMAPResponse && ((IMAPResponse) resp).keyEquals("STATUS")) {
+            resp.readAtomString(); // mailbox name
+            resp.skipSpaces();
+            if (resp.readByte() != '(')
+              continue;
+
+            String attr;
+            while ((attr = resp.readAtom()) != null && attr.length() > 0) {
+              long value = resp.readLong();
+              if (attr.equalsIgnoreCase("UIDVALIDITY"))
+                status.uidValidity = value;
+              else if (attr.equalsIgnoreCase("UIDNEXT"))
+                status.uidNext = value;
+              else if (attr.equalsIgnoreCase("MESSAGES"))
+                status.messages = (int) value;
+              else if (attr.equalsIgnoreCase("HIGHESTMODSEQ"))
+                status.highestModSeq = value;
+            }
+          }
+        }
+        return status;
+      }
+    });
+  }
+
+  /**
+   * Finds the messages whose flags have changed or that have been added since a given modification sequence, using
+   * the <code>MODSEQ</code> search criterion of CONDSTORE.
+   *
+   * @param folder opened folder
+   * @param modSeq modification sequence the caller is up to date with
+   * @return the UIDs of the changed messages
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static long[] searchChangedSince(IMAPFolder folder, final long modSeq) throws MessagingException {
+    return (long[]) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Metrics.getInstance().command("UID SEARCH");
+        Response[] r = p.command("UID SEARCH MODSEQ " + (modSeq + 1), null);
+        p.notifyResponseHandlers(r);
+
+        Response response = r[r.length-1];
+        if (!response.isOK()) {
+          p.handleResult(response);
+          return null;
+        }
+
+        List<Long> uids = new ArrayList<Long>();
+        for (Response resp : r) {
+          if (resp instanceof IMAPResponse && ((IMAPResponse) resp).keyEquals("SEARCH")) {
+            long uid;
+            // the list of UIDs may be followed by "(MODSEQ n)", where reading numbers stops
+            while ((uid = resp.readLong()) != -1)
+              uids.add(uid);
+          }
+        }
+
+        long[] result = new long[uids.size()];
+        for (int i = 0; i < result.length; i++)
+          result[i] = uids.get(i);
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Fetches the flags of the given messages again. The folder picks them up from the FETCH responses, also for
+   * messages whose flags were already loaded.
+   *
+   * @param folder opened folder holding the messages
+   * @param uids UIDs of the messages
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static void refreshFlags(IMAPFolder folder, long[] uids) throws MessagingException {
+    if (uids.length == 0)
+      return;
+
+    final String set = toSet(uids);
+
+    folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Metrics.getInstance().command("UID FETCH");
+        Response[] r = p.command("UID FETCH " + set + " (FLAGS)", null);
+        p.notifyResponseHandlers(r);
+        p.handleResult(r[r.length-1]);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Sends a NOOP on the connection of a folder. If another thread is in {@link IMAPFolder#idle} on the folder, the
+   * IDLE is ended first, so this is also how to make that thread return.
+   *
+   * @param folder opened folder
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static void noop(IMAPFolder folder) throws MessagingException {
+    folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Metrics.getInstance().command("NOOP");
+        p.noop();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Fetches the BODYSTRUCTURE of a message
+   * @param folder opened folder holding the message
+   * @param uid UID of the message
+   * @return the body structure, or null if the server did not return one
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static BODYSTRUCTURE fetchBodyStructure(IMAPFolder folder, long uid) throws MessagingException {
+    return (BODYSTRUCTURE) uidFetch(folder, uid, "BODYSTRUCTURE", BODYSTRUCTURE.class);
+  }
+
+  /**
+   * Fetches part of a body section using a partial <code>BODY.PEEK[section]&lt;start.count&gt;</code>, which unlike
+   * the JavaMail partial fetch is not limited to 2GB offsets.
+   *
+   * @param folder opened folder holding the message
+   * @param uid UID of the message
+   * @param section section specifier, e.g. "1" for the first body part
+   * @param start offset of the first (encoded) byte to fetch
+   * @param count number of (encoded) bytes to fetch
+   * @return the raw bytes as stored on the server, possibly fewer than requested near the end of the section
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static ByteArray fetchPartial(IMAPFolder folder, long uid, String section, long start, long count) throws MessagingException {
+    String item = "BODY.PEEK[" + section + "]<" + start + "." + count + ">";
+    BODY body = (BODY) uidFetch(folder, uid, item, BODY.class);
+
+    if (body == null || body.getByteArray() == null)
+      return new ByteArray(0);
+    else
+      return body.getByteArray();
+  }
+
+  /**
+   * Appends a message whose content is written by a literal, so that the message can be streamed to the server.
+   * With LITERAL+ the literal is sent without waiting for the server to accept it.
+   *
+   * @param folder folder to append to
+   * @param data the message
+   * @return the UID of the appended message, or -1 if the server does not tell it (no UIDPLUS)
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static long append(IMAPFolder folder, final Literal data) throws MessagingException {
+    final String name = folder.getFullName();
+
+    AppendUID uid = (AppendUID) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Metrics.getInstance().command("APPEND");
+        return p.appenduid(name, new Flags(), null, data, true);
+      }
+    });
+
+    return uid != null ? uid.uid : -1;
+  }
+
+  /**
+   * Moves messages to another folder with <code>UID MOVE</code> (RFC 6851), or copies them with
+   * <code>UID COPY</code>. If the server supports UIDPLUS it tells the UIDs of the messages in the destination.
+   *
+   * @param folder opened folder holding the messages
+   * @param uids UIDs of the messages
+   * @param dest full name of the destination folder
+   * @param move true to move, false to copy
+   * @return the UIDs in the destination folder in the same order, or null if the server did not tell them all
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  static long[] copyMessages(IMAPFolder folder, final long[] uids, final String dest, final boolean move)
+      throws MessagingException {
+    return (long[]) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(dest));
+
+        Metrics.getInstance().command(move ? "UID MOVE" : "UID COPY");
+        Response[] r = p.command((move ? "UID MOVE " : "UID COPY ") + toSet(uids), args);
+        p.notifyResponseHandlers(r);
+        p.handleResult(r[r.length-1]);
+
+        // MOVE reports COPYUID in an untagged OK, COPY in the tagged one
+        Map<Long, Long> copied = new HashMap<Long, Long>();
+        for (Response resp : r) {
+          Matcher m = COPYUID.matcher(resp.toString());
+          if (m.find()) {
+            long[] from = parseSet(m.group(1));
+            long[] to = parseSet(m.group(2));
+            for (int i = 0; i < from.length && i < to.length; i++)
+              copied.put(from[i], to[i]);
+          }
+        }
+
+        long[] result = new long[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+          Long uid = copied.get(uids[i]);
+          if (uid == null)
+            return null;
+          result[i] = uid;
+        }
+        return result;
+      }
+    });
+  }
+
+  private static String toSet(long[] uids) {
+    StringBuilder set = new StringBuilder();
+    for (long uid : uids) {
+      if (set.length() > 0)
+        set.append(',');
+      set.append(uid);
+    }
+    return set.toString();
+  }
+
+  /**
+   * Expands a sequence set like "4,7:9" to the numbers it holds, in order
+   */
+  private static long[] parseSet(String set) {
+    List<Long> numbers = new ArrayList<Long>();
+    for (String range : set.split(",")) {
+      int colon = range.indexOf(':');
+      if (colon < 0) {
+        numbers.add(Long.parseLong(range));
+      } else {
+        long first = Long.parseLong(range.substring(0, colon));
+        long last = Long.parseLong(range.substring(colon + 1));
+        long step = first <= last ? 1 : -1;
+        for (long n = first; n != last + step; n += step)
+          numbers.add(n);
+      }
+    }
+
+    long[] result = new long[numbers.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = numbers.get(i);
+    return result;
+  }
+
+  /**
+   * Issues a <code>UID FETCH</code> of a single message and returns the requested item of the response
+   */
+  private static Item uidFetch(IMAPFolder folder, final long uid, final String item, final Class<? extends Item> type) throws MessagingException {
+    return (Item) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException {
+        Metrics.getInstance().command("UID FETCH");
+        Response[] r = p.command("UID FETCH " + uid + " (" + item + ")", null);
+        p.notifyResponseHandlers(r);
+
+        Response response = r[r.length-1];
+        if (response.isOK()) {
+          for (Response resp : r) {
+            if (resp instanceof FetchResponse && ((FetchResponse) resp).getItem(type) != null)
+              return ((FetchResponse) resp).getItem(type);
+          }
+          return null;
+        }
+
+        p.handleResult(response);
+        return null;
+      }
+    });
+  }
+}
@@ -21,15 +21,34 @@ import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.IMAPFolder;
 
 import javax.mail.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.net.URL;
 import java.io.PrintStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 public class IMAPConnection {
+  private Log log = LogFactory.getLog(getClass());
+
   private Folder folder;
   private IMAPStore store;
+  private String host;
+  private int port;
+  private String username;
+  private String password;
+
+  /* Folders opened on this connection, by full name */
+  private Map<String, IMAPFolder> openFolders = new HashMap<String, IMAPFolder>();
+
+  /* Folders whose home is another connection, opened while this one was borrowed, least recently used first */
+  private Map<String, IMAPFolder> guestFolders = new LinkedHashMap<String, IMAPFolder>(16, 0.75f, true);
 
   public IMAPConnection(URL url) throws MessagingException {
     Properties props = new Properties();
@@ -44,15 +63,12 @@ public class IMAPConnection {
 
     store = (IMAPStore) session.getStore(url.getProtocol());
 
-    String username = null;
-    String password = null;
-
     String userinfo = url.getUserInfo();
     if (userinfo != null) {
       String[] parts = userinfo.split(":");
 
       username = parts[0].replace('=', '@');
-      
+
       if (parts.length > 1)
         password = parts[1];
     }
@@ -63,7 +79,9 @@ public class IMAPConnection {
     if (password == null)
       password = System.getProperty("imapfs.password");
 
-    store.connect(url.getHost(), username, password);
+    this.host = url.getHost();
+    this.port = url.getPort();
+    store.connect(host, port, username, password);
 
     String path = url.getPath();
     if (path.startsWith("/"))
@@ -79,6 +97,7 @@ public class IMAPConnection {
       folder.create(Folder.HOLDS_MESSAGES);
 
     folder.open(Folder.READ_WRITE);
+    openFolders.put(folder.getFullName(), (IMAPFolder) folder);
   }
 
   public Quota getQuota() throws MessagingException {
@@ -90,7 +109,91 @@ public class IMAPConnection {
       return null;
   }
 
-  public IMAPFolder getRootFolder() {
-    return (IMAPFolder) folder;
+  public IMAPFolder getRootFolder() throws MessagingException {
+    return getFolder(folder.getFullName());
+  }
+
+  /**
+   * Get a folder opened for reading and writing on this connection. The connection is re-established and the folder
+   * re-opened if either has been closed, e.g. because of a network failure or a server timeout.
+   *
+   * @param fullName full name of the folder
+   * @return the opened folder
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  public synchronized IMAPFolder getFolder(String fullName) throws MessagingException {
+    if (!store.isConnected()) {
+      log.info("Reconnecting to " + host);
+      openFolders.clear();
+      guestFolders.clear();
+      store.connect(host, port, username, password);
+    }
+
+    IMAPFolder f = openFolders.get(fullName);
+    if (f == null) {
+      f = (IMAPFolder) store.getFolder(fullName);
+      openFolders.put(fullName, f);
+    }
+
+    if (!f.isOpen() && f.exists())
+      f.open(Folder.READ_WRITE);
+
+    return f;
+  }
+
+  /**
+   * Get a folder whose home is another connection, opened on this one while it is borrowed. As every open folder takes
+   * a connection to the server of its own, the least recently used of these are closed when there are more than
+   * <code>max</code>. Only the borrower uses them, so none is in use when closed.
+   *
+   * @param fullName full name of the folder
+   * @param max number of such folders to keep open
+   * @return the opened folder
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  public synchronized IMAPFolder getGuestFolder(String fullName, int max) throws MessagingException {
+    IMAPFolder f = getFolder(fullName);
+    guestFolders.put(fullName, f);
+
+    Iterator<Map.Entry<String, IMAPFolder>> i = guestFolders.entrySet().iterator();
+    while (guestFolders.size() > Math.max(1, max)) {
+      Map.Entry<String, IMAPFolder> eldest = i.next();
+      i.remove();
+      openFolders.remove(eldest.getKey());
+      try {
+        if (eldest.getValue().isOpen())
+          eldest.getValue().close(false);
+      } catch (MessagingException e) {
+        log.warn("Could not close " + eldest.getKey(), e);
+      }
+    }
+
+    return f;
+  }
+
+  /**
+   * Forgets a folder that has been deleted or renamed
+   * @param fullName full name of the folder
+   */
+  public synchronized void forgetFolder(String fullName) {
+    openFolders.remove(fullName);
+    guestFolders.remove(fullName);
+  }
+
+  public boolean isConnected() {
+    return store.isConnected();
+  }
+
+  /**
+   * @return the full names of the folders opened on this connection
+   */
+  public synchronized String[] getOpenFolderNames() {
+    return openFolders.keySet().toArray(new String[openFolders.size()]);
+  }
+
+  public synchronized void close() throws MessagingException {
+    openFolders.clear();
+    guestFolders.clear();
+    store.close();
   }
 }
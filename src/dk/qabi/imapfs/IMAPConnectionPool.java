@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import com.sun.mail.imap.IMAPFolder;
+
+import dk.qabi.imapfs.util.Configuration;
+
+import javax.mail.MessagingException;
+import javax.mail.Quota;
+import java.net.URL;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of authenticated IMAP connections.
+ *
+ * Every folder has a home connection, chosen by its name, on which directory listings and updates are done. Data
+ * fetches borrow a connection exclusively, preferring the home connection of the folder but taking any idle one
+ * when it is busy, so that reads of files in the same folder can run in parallel.
+ *
+ * Each open folder takes a connection to the server of its own besides that of its store. A folder stays open on its
+ * home connection while its directory is in use, whereas at most {@link Configuration#getGuestFolders} folders are
+ * kept open on each connection for fetches borrowed away from their home. A pool of n connections thus holds at most
+ * n * (1 + guest folders) connections to the server, plus one for each directory in use.
+ */
+public class IMAPConnectionPool {
+  private Log log = LogFactory.getLog(getClass());
+
+  private IMAPConnection[] connections;
+  private int[] borrowed;
+
+  /**
+   * @param url URL to connect to
+   * @param size number of connections
+   * @throws MessagingException when an IMAP communication error occurs
+   */
+  public IMAPConnectionPool(URL url, int size) throws MessagingException {
+    this.connections = new IMAPConnection[Math.max(1, size)];
+    this.borrowed = new int[connections.length];
+
+    for (int i = 0; i < connections.length; i++)
+      connections[i] = new IMAPConnection(url);
+
+    log.info("Opened " + connections.length + " IMAP connection(s) to " + url.getHost());
+  }
+
+  public int getSize() {
+    return connections.length;
+  }
+
+  private int getHomeIndex(String folderName) {
+    return (folderName.hashCode() & 0x7fffffff) % connections.length;
+  }
+
+  /**
+   * Get the home connection of a folder
+   * @param folderName full name of the folder
+   * @return the connection
+   */
+  public IMAPConnection getConnection(String folderName) {
+    return connections[getHomeIndex(folderName)];
+  }
+
+  /**
+   * Get a folder opened on its home connection
+   * @param folderName full name of the folder
+   * @return the folder
+   * @throws MessagingException when an IMAP communication error occurs
+   */
+  public IMAPFolder getFolder(String folderName) throws MessagingException {
+    return getConnection(folderName).getFolder(folderName);
+  }
+
+  /**
+   * Get a folder opened on a borrowed connection, closing the least recently used of the folders opened there away
+   * from their home connection when there are too many
+   * @param con connection taken with {@link #borrow}
+   * @param folderName full name of the folder
+   * @return the folder
+   * @throws MessagingException when an IMAP communication error occurs
+   */
+  public IMAPFolder getFolder(IMAPConnection con, String folderName) throws MessagingException {
+    if (con == getConnection(folderName))
+      return con.getFolder(folderName);
+    else
+      return con.getGuestFolder(folderName, Configuration.getGuestFolders());
+  }
+
+  public IMAPFolder getRootFolder() throws MessagingException {
+    return connections[0].getRootFolder();
+  }
+
+  public Quota getQuota() throws MessagingException {
+    return connections[0].getQuota();
+  }
+
+  /**
+   * Takes a connection for exclusive use, waiting for one to become idle if all are borrowed
+   * @param folderName full name of the folder the connection will be used for
+   * @return a connection, which must be given back with {@link #release}
+   * @throws MessagingException if interrupted while waiting
+   */
+  public synchronized IMAPConnection borrow(String folderName) throws MessagingException {
+    int home = getHomeIndex(folderName);
+
+    while (true) {
+      for (int i = 0; i < connections.length; i++) {
+        int index = (home + i) % connections.length;
+        if (borrowed[index] == 0) {
+          borrowed[index]++;
+          return connections[index];
+        }
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new MessagingException("Interrupted waiting for an IMAP connection", e);
+      }
+    }
+  }
+
+  public synchronized void release(IMAPConnection con) {
+    for (int i = 0; i < connections.length; i++) {
+      if (connections[i] == con) {
+        borrowed[i]--;
+        notifyAll();
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return one line per connection telling whether it is connected and borrowed, and the folders opened on it
+   */
+  public synchronized String[] describe() {
+    String[] lines = new String[connections.length];
+    for (int i = 0; i < connections.length; i++) {
+      IMAPConnection con = connections[i];
+      StringBuffer sb = new StringBuffer();
+      sb.append(i).append(con.isConnected() ? " connected" : " disconnected");
+      sb.append(borrowed[i] > 0 ? " borrowed" : " idle");
+      sb.append(" folders=");
+      String[] names = con.getOpenFolderNames();
+      for (int j = 0; j < names.length; j++)
+        sb.append(j > 0 ? "," : "").append(names[j]);
+      lines[i] = sb.toString();
+    }
+    return lines;
+  }
+
+  /**
+   * Forgets a folder that has been deleted or renamed on all connections
+   * @param folderName full name of the folder
+   */
+  public void forgetFolder(String folderName) {
+    for (IMAPConnection con : connections)
+      con.forgetFolder(folderName);
+  }
+
+  public void close() throws MessagingException {
+    for (IMAPConnection con : connections)
+      con.close();
+  }
+}
@@ -18,11 +18,22 @@
 package dk.qabi.imapfs;
 
 import javax.mail.*;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.MessageIDTerm;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.sun.mail.imap.IMAPFolder;
-import dk.qabi.imapfs.util.PathUtil;
+import com.sun.mail.imap.IMAPStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  *
@@ -30,9 +41,23 @@ import dk.qabi.imapfs.util.PathUtil;
  *
  */
 public class IMAPDirectory extends IMAPEntry {
+  private Log log = LogFactory.getLog(getClass());
 
+  private IMAPConnectionPool pool;
+  private String folderName;
   private IMAPFolder folder;
-  private Map<String,IMAPEntry> children;
+
+  /* Replaced as a whole when refetched and updated in place by local changes, so lookups can use it without locking */
+  private volatile Map<String,IMAPEntry> children;
+  private volatile boolean stale;
+
+  /* What the children were built from, so later listings only need to apply what changed on the server */
+  private long uidValidity = -1;
+  private long uidNext;
+  private long highestModSeq = -1;
+  private IMAPFolder syncedFolder;
+  private Map<Long, Message> messages;
+  private Set<IMAPFile> files;
 
   /**
    * Constructor for creating a new directory
@@ -42,10 +67,11 @@ public class IMAPDirectory extends IMAPEntry {
    */
   public IMAPDirectory(String name, IMAPDirectory parent) throws MessagingException {
     this.parent = parent;
-    this.absolutePath = makeAbsolutePath();
     this.name = name;
+    this.absolutePath = makeAbsolutePath();
+    this.pool = parent.pool;
 
-    folder = parent.getChildFolder(name);
+    IMAPFolder folder = parent.getChildFolder(name);
     if (!folder.exists()) {
       if (!folder.create(Folder.HOLDS_MESSAGES))
         throw new MessagingException("Folder '" + name + "' not created");
@@ -53,8 +79,8 @@ public class IMAPDirectory extends IMAPEntry {
       throw new MessagingException("Directory '"+absolutePath+"' already exists");
     }
 
-    if (!folder.isOpen())
-      folder.open(Folder.READ_WRITE);
+    setFolder(folder);
+    parent.putChild(null, this);
   }
 
   /**
@@ -69,16 +95,69 @@ public class IMAPDirectory extends IMAPEntry {
       this.name = folder.getName();
     else
       this.name = "/";
-    this.folder = folder;
 
     if (parent != null) {
       this.absolutePath = makeAbsolutePath();
+      this.pool = parent.pool;
     } else {
       this.absolutePath = "/";
     }
 
-    if (!folder.isOpen())
-      folder.open(Folder.READ_WRITE);
+    setFolder(folder);
+  }
+
+  /**
+   * Constructor for directories loaded from the metadata snapshot, which open their folder when first used
+   * @param folderName full name of the folder
+   * @param name name of the directory
+   * @param parent IMapFileEntry for the parent
+   */
+  IMAPDirectory(String folderName, String name, IMAPDirectory parent) {
+    this.parent = parent;
+    this.name = name;
+    this.absolutePath = makeAbsolutePath();
+    this.pool = parent.pool;
+    this.folderName = folderName;
+  }
+
+  /**
+   * Constructor for the root directory, with folders opened on connections from a pool
+   * @param pool the connections to use
+   * @throws javax.mail.MessagingException if IMAP communication goes wrong
+   */
+  public IMAPDirectory(IMAPConnectionPool pool) throws MessagingException {
+    this.parent = null;
+    this.name = "/";
+    this.absolutePath = "/";
+    this.pool = pool;
+
+    setFolder(pool.getRootFolder());
+  }
+
+  /**
+   * Constructor for a root directory without connections, e.g. for benchmarks, which only knows the children
+   * {@link #restore restored} into it and those of its subdirectories
+   * @param folderName full name of the root folder
+   */
+  IMAPDirectory(String folderName) {
+    this.parent = null;
+    this.name = "/";
+    this.absolutePath = "/";
+    this.folderName = folderName;
+  }
+
+  private void setFolder(IMAPFolder folder) throws MessagingException {
+    this.folderName = folder.getFullName();
+
+    if (pool != null) {
+      // Use the instance opened on the home connection of the folder
+      this.folder = null;
+      getFolder();
+    } else {
+      this.folder = folder;
+      if (!folder.isOpen())
+        folder.open(Folder.READ_WRITE);
+    }
   }
 
   /**
@@ -100,23 +179,301 @@ public class IMAPDirectory extends IMAPEntry {
   }
 
   public IMAPEntry[] getChildren(boolean refetch) throws MessagingException {
+    Map<String, IMAPEntry> entries = getChildMap(refetch);
+    return entries.values().toArray(new IMAPEntry[entries.size()]);
+  }
+
+  private Map<String, IMAPEntry> getChildMap(boolean refetch) throws MessagingException {
+    Map<String, IMAPEntry> entries = children;
+
+    if (refetch || stale || entries == null) {
+      synchronized (this) {
+        entries = children;
+        if (refetch || stale || entries == null) {
+          stale = false;
+          entries = entries == null ? fetchChildren(new HashMap<String, IMAPEntry>()) : resync(entries);
+          children = entries;
+        }
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * What is fetched of all messages when listing, in a single FETCH. Besides what is needed to tell files and
+   * chunks apart this is the envelope (subject and date, along with the internal date and RFC822.SIZE) and size
+   * header, so that stat'ing the files afterwards needs no further round trips.
+   */
+  private static FetchProfile getFetchProfile() {
+    FetchProfile fp = new FetchProfile();
+    fp.add(UIDFolder.FetchProfileItem.UID);
+    fp.add(FetchProfile.Item.FLAGS);
+    fp.add(FetchProfile.Item.ENVELOPE);
+    fp.add(IMAPFile.SIZE_HEADER);
+    fp.add(IMAPFile.CHUNK_HEADER);
+    fp.add(IMAPFile.FILEID_HEADER);
+    fp.add(IMAPFile.CHUNKSIZE_HEADER);
+    fp.add(IMAPFile.META_HEADER);
+    return fp;
+  }
+
+  /**
+   * Builds the children from scratch, fetching what is needed of every message in the folder
+   * @param old the children known, of which directories and files loaded from the metadata snapshot are kept
+   */
+  private Map<String, IMAPEntry> fetchChildren(Map<String, IMAPEntry> old) throws MessagingException {
+    IMAPFolder folder = getFolder();
+    IMAPCommands.FolderStatus status = IMAPCommands.status(folder);
+
+    Message[] all = folder.getMessages();
+    Metrics.getInstance().command("FETCH");
+    folder.fetch(all, getFetchProfile());
+
+    // Detached files are attached to the messages with their UID, unless the UIDs have changed meaning
+    Set<IMAPFile> detached = new HashSet<IMAPFile>();
+    if (files != null && status.uidValidity == uidValidity) {
+      for (IMAPFile file : files) {
+        if (file.isDetached())
+          detached.add(file);
+      }
+    }
+
+    this.messages = new HashMap<Long, Message>();
+    for (Message m : all)
+      messages.put(folder.getUID(m), m);
+    this.files = detached;
+    this.syncedFolder = folder;
+    this.uidValidity = status.uidValidity;
+    this.uidNext = status.uidNext;
+    this.highestModSeq = status.highestModSeq;
+
+    return buildChildren(folder, old, true);
+  }
+
+  /**
+   * Brings the children up to date by applying only the changes on the server since they were built: messages
+   * expunged (as reported by the folder), messages added (UIDs from the last known UIDNEXT) and, if the server
+   * supports CONDSTORE, messages whose flags changed since the last known HIGHESTMODSEQ. Files none of whose
+   * messages changed are kept as they are.
+   */
+  private Map<String, IMAPEntry> resync(Map<String, IMAPEntry> entries) throws MessagingException {
+    IMAPFolder folder = getFolder();
+    if (folder != syncedFolder) {
+      // Opened again after a reconnect or never opened, so the messages known are of no use
+      return fetchChildren(entries);
+    }
 
-    if (refetch || children == null) {
-      children = new HashMap<String, IMAPEntry>();
-      Folder[] folders = folder.list();
-      for (Folder f : folders) {
-        IMAPEntry child = new IMAPDirectory((IMAPFolder) f, this);
-        children.put(child.getName(), child);
+    IMAPCommands.FolderStatus status = IMAPCommands.status(folder);
+
+    if (status.uidValidity != uidValidity) {
+      log.info("UIDVALIDITY of '" + folderName + "' changed, fetching all messages");
+      return fetchChildren(entries);
+    }
+
+    boolean changed = false;
+
+    for (Iterator<Message> i = messages.values().iterator(); i.hasNext();) {
+      if (i.next().isExpunged()) {
+        i.remove();
+        changed = true;
       }
+    }
 
-      Message[] messages = folder.getMessages();
-      for (Message m : messages) {
-        IMAPEntry child = new IMAPFile(m, this);
-        children.put(child.getName(), child);
+    List<Message> added = new ArrayList<Message>();
+    if (status.uidNext != uidNext) {
+      // n:* always includes the last message, even if its UID is less than n
+      Metrics.getInstance().command("UID FETCH");
+      for (Message m : folder.getMessagesByUID(uidNext, UIDFolder.LASTUID)) {
+        if (m != null && !m.isExpunged() && !messages.containsKey(folder.getUID(m)))
+          added.add(m);
       }
     }
 
-    return children.values().toArray(new IMAPEntry[children.size()]);
+    if (status.highestModSeq != highestModSeq && status.highestModSeq != -1 && highestModSeq != -1) {
+      List<Long> known = new ArrayList<Long>();
+      for (long uid : IMAPCommands.searchChangedSince(folder, highestModSeq)) {
+        if (messages.containsKey(uid))
+          known.add(uid);
+      }
+
+      long[] uids = new long[known.size()];
+      for (int i = 0; i < uids.length; i++)
+        uids[i] = known.get(i);
+      IMAPCommands.refreshFlags(folder, uids);
+      changed |= uids.length > 0;
+    }
+
+    Message[] addedMessages = added.toArray(new Message[added.size()]);
+    if (addedMessages.length > 0)
+      Metrics.getInstance().command("FETCH");
+    folder.fetch(addedMessages, getFetchProfile());
+
+    for (Message m : addedMessages)
+      messages.put(folder.getUID(m), m);
+    changed |= addedMessages.length > 0;
+
+    this.uidNext = status.uidNext;
+    this.highestModSeq = status.highestModSeq;
+
+    if (status.messages != messages.size()) {
+      // Expunges the folder has not been told about, which should not happen
+      log.warn("Lost track of the messages in '" + folderName + "', fetching all messages");
+      return fetchChildren(entries);
+    }
+
+    return buildChildren(folder, entries, changed);
+  }
+
+  /**
+   * Builds the children from the subfolders and the known messages, keeping existing entries where possible
+   * @param folder the folder of this directory
+   * @param old the children built last time
+   * @param changed whether the messages have changed since last time
+   * @return the children by name
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  private Map<String, IMAPEntry> buildChildren(IMAPFolder folder, Map<String, IMAPEntry> old, boolean changed)
+      throws MessagingException {
+    Map<String, IMAPEntry> entries = new ConcurrentHashMap<String, IMAPEntry>();
+
+    // Directories are kept, so that their own children survive as well. Opening a folder makes JavaMail forget
+    // that it can hold folders, and list nothing, until the type has been looked up again.
+    folder.getType();
+    Metrics.getInstance().command("LIST");
+    Folder[] folders = folder.list();
+    for (Folder f : folders) {
+      IMAPEntry child = old.get(f.getName());
+      if (!(child instanceof IMAPDirectory))
+        child = new IMAPDirectory((IMAPFolder) f, this);
+      entries.put(child.getName(), child);
+    }
+
+    if (!changed) {
+      for (IMAPEntry child : old.values()) {
+        if (child instanceof IMAPFile)
+          entries.put(child.getName(), child);
+      }
+      return entries;
+    }
+
+    // Chunk messages are not files themselves, but belong to the manifest with the same file id
+    Map<String, Map<Integer, Message>> chunks = new HashMap<String, Map<Integer, Message>>();
+    Map<Long, Message> manifests = new HashMap<Long, Message>();
+    Map<Long, Message> records = new HashMap<Long, Message>();
+    for (Map.Entry<Long, Message> e : messages.entrySet()) {
+      Message m = e.getValue();
+      if (m.isSet(Flags.Flag.DELETED))
+        continue;
+
+      String chunk = IMAPFile.getHeader(m, IMAPFile.CHUNK_HEADER);
+      String meta = IMAPFile.getHeader(m, IMAPFile.META_HEADER);
+      if (meta != null) {
+        // Metadata records give the name and time of the file whose message has the UID they refer to
+        Long uid = Long.valueOf(meta);
+        Message previous = records.get(uid);
+        if (previous == null || folder.getUID(previous) < e.getKey())
+          records.put(uid, m);
+      } else if (chunk != null) {
+        String[] parts = chunk.split(" ");
+        Map<Integer, Message> fileChunks = chunks.get(parts[0]);
+        Message previous = fileChunks != null ? fileChunks.get(Integer.valueOf(parts[1])) : null;
+        if (fileChunks == null) {
+          fileChunks = new HashMap<Integer, Message>();
+          chunks.put(parts[0], fileChunks);
+        }
+        if (previous == null || folder.getUID(previous) < e.getKey())
+          fileChunks.put(Integer.valueOf(parts[1]), m); // later messages replace earlier ones
+      } else {
+        manifests.put(e.getKey(), m);
+      }
+    }
+
+    // Files stored without the size header by other clients get their size from the structure of the message
+    List<Message> unsized = new ArrayList<Message>();
+    for (Message m : manifests.values()) {
+      if (IMAPFile.getHeader(m, IMAPFile.SIZE_HEADER) == null)
+        unsized.add(m);
+    }
+    if (!unsized.isEmpty()) {
+      FetchProfile fp = new FetchProfile();
+      fp.add(FetchProfile.Item.CONTENT_INFO);
+      Metrics.getInstance().command("FETCH");
+      folder.fetch(unsized.toArray(new Message[unsized.size()]), fp);
+    }
+
+    // Files are kept if they are still stored in the same messages, including files that stored these messages
+    // themselves since last time
+    Map<Message, IMAPFile> previous = new HashMap<Message, IMAPFile>();
+    Map<Long, IMAPFile> detached = new HashMap<Long, IMAPFile>();
+    for (IMAPFile file : files) {
+      if (file.isDetached())
+        detached.put(file.getUID(), file);
+      else
+        previous.put(file.getMessage(), file);
+    }
+
+    Set<IMAPFile> newFiles = new HashSet<IMAPFile>();
+    for (Map.Entry<Long, Message> e : manifests.entrySet()) {
+      Message m = e.getValue();
+      String fileId = IMAPFile.getHeader(m, IMAPFile.FILEID_HEADER);
+      Map<Integer, Message> fileChunks = fileId != null ? chunks.get(fileId) : null;
+      Message record = records.get(e.getKey());
+      IMAPFile child = detached.get(e.getKey());
+      if (child != null) {
+        child.attach(m, fileChunks, record);
+      } else {
+        child = previous.get(m);
+        if (child == null || !child.isStoredIn(m, fileChunks, record))
+          child = new IMAPFile(m, fileChunks, record, this);
+      }
+      newFiles.add(child);
+      entries.put(child.getName(), child);
+    }
+    this.files = newFiles;
+
+    return entries;
+  }
+
+  /**
+   * Sets the children as loaded from the metadata snapshot, until the directory is synchronized with the server
+   * @param uidValidity UIDVALIDITY of the folder when the snapshot was saved
+   * @param entries the children by name
+   */
+  synchronized void restore(long uidValidity, Map<String, IMAPEntry> entries) {
+    this.uidValidity = uidValidity;
+    this.files = new HashSet<IMAPFile>();
+    for (IMAPEntry entry : entries.values()) {
+      if (entry instanceof IMAPFile)
+        files.add((IMAPFile) entry);
+    }
+    this.children = new ConcurrentHashMap<String, IMAPEntry>(entries);
+    this.stale = false;
+  }
+
+  /**
+   * @return whether the children have been built from the server since the directory was loaded
+   */
+  boolean isSynchronized() {
+    return syncedFolder != null;
+  }
+
+  /**
+   * @return the children last built or restored, even if out of date, or null if never listed
+   */
+  Map<String, IMAPEntry> getKnownChildren() {
+    return children;
+  }
+
+  long getUidValidity() {
+    return uidValidity;
+  }
+
+  /**
+   * @return the children if they are known and up to date, otherwise null
+   */
+  Map<String, IMAPEntry> getCurrentChildren() {
+    return stale ? null : children;
   }
 
   public IMAPEntry get(String relPath) throws MessagingException {
@@ -126,10 +483,10 @@ public class IMAPDirectory extends IMAPEntry {
     if (pos > -1) {
       String firstPart = relPath.substring(0, pos);
       String rest = relPath.substring(pos+1);
-      result = ((IMAPDirectory)children.get(firstPart)).get(rest);
+      IMAPEntry first = getChildMap(false).get(firstPart);
+      result = first instanceof IMAPDirectory ? ((IMAPDirectory)first).get(rest) : null;
     } else {
-      getChildren(false);
-      result = children.get(relPath);
+      result = getChildMap(false).get(relPath);
     }
 
     return result;
@@ -142,22 +499,259 @@ public class IMAPDirectory extends IMAPEntry {
     }
   }
 
-  void expunge() throws MessagingException {
-    folder.expunge();
-    this.clearChildren();
+  /**
+   * Appends messages to the folder. The messages appended become known to the directory right away if the server
+   * tells their UIDs (UIDPLUS), otherwise the children are marked as out of date. Those not known can be looked up
+   * with {@link #findAppended(Message[], Message[])}.
+   *
+   * @param msgs the messages to append
+   * @return the appended messages on the server, or null for those not known
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  Message[] appendMessages(Message[] msgs) throws MessagingException {
+    IMAPFolder folder = getFolder();
+
+    boolean streamed = false;
+    for (Message m : msgs)
+      streamed |= m instanceof FileMessage;
+
+    Message[] added;
+    if (streamed) {
+      // File data is streamed from disk, one message at a time
+      added = new Message[msgs.length];
+      for (int i = 0; i < msgs.length; i++) {
+        if (msgs[i] instanceof FileMessage) {
+          ((FileMessage) msgs[i]).prepare();
+          long uid = IMAPCommands.append(folder, (FileMessage) msgs[i]);
+          Metrics.getInstance().command("UID FETCH");
+          added[i] = uid != -1 ? folder.getMessageByUID(uid) : null;
+        } else {
+          Metrics.getInstance().command("APPEND");
+          Message[] m = folder.addMessages(new Message[]{msgs[i]});
+          added[i] = m != null ? m[0] : null;
+        }
+      }
+    } else {
+      for (int i = 0; i < msgs.length; i++)
+        Metrics.getInstance().command("APPEND");
+      added = folder.addMessages(msgs);
+    }
+    Metrics.getInstance().appended(QuotaUsage.getInstance().added(msgs));
+
+    if (added == null)
+      added = new Message[msgs.length];
+
+    synchronized (this) {
+      for (Message m : added) {
+        if (m == null)
+          clearChildren(); // picked up from UIDNEXT when next listed
+        else if (messages != null && folder == syncedFolder)
+          messages.put(folder.getUID(m), m);
+      }
+    }
+
+    return added;
+  }
+
+  /**
+   * Looks up appended messages whose UIDs the server did not tell, by their Message-ID. Messages appended from
+   * local data must not be used in their place, as the data may go away.
+   *
+   * @param msgs the messages appended
+   * @param added the messages returned by {@link #appendMessages(Message[])}, of which those missing are filled in
+   * @throws MessagingException if IMAP communication goes wrong, or a message is not found
+   */
+  void findAppended(Message[] msgs, Message[] added) throws MessagingException {
+    IMAPFolder folder = getFolder();
+    for (int i = 0; i < msgs.length; i++) {
+      if (added[i] != null)
+        continue;
+
+      String id = ((MimeMessage) msgs[i]).getMessageID();
+      Message[] found = new Message[0];
+      if (id != null) {
+        Metrics.getInstance().command("SEARCH");
+        found = folder.search(new MessageIDTerm(id));
+      }
+      if (found.length == 0)
+        throw new MessagingException("Appended message " + id + " not found in '" + folderName + "'");
+      added[i] = found[found.length - 1];
+    }
+  }
+
+  /**
+   * Flags messages as deleted, and schedules them to be expunged. Until then they are ignored when listing. Messages
+   * of other folders, e.g. a folder opened before a reconnect, are expunged right away, as the scheduler only knows
+   * the current folders of directories.
+   * @param msgs the messages to remove
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  void removeMessages(Message[] msgs) throws MessagingException {
+    IMAPFolder folder = getFolder();
+
+    Map<IMAPFolder, List<Message>> byFolder = new LinkedHashMap<IMAPFolder, List<Message>>();
+    for (Message m : msgs) {
+      IMAPFolder f = (IMAPFolder) m.getFolder();
+      if (f == null)
+        continue;
+      List<Message> group = byFolder.get(f);
+      if (group == null) {
+        group = new ArrayList<Message>();
+        byFolder.put(f, group);
+      }
+      group.add(m);
+    }
+
+    for (Map.Entry<IMAPFolder, List<Message>> e : byFolder.entrySet()) {
+      IMAPFolder f = e.getKey();
+      List<Message> group = e.getValue();
+      Metrics.getInstance().command("STORE");
+      f.setFlags(group.toArray(new Message[group.size()]), new Flags(Flags.Flag.DELETED), true);
+      if (f == folder)
+        ExpungeScheduler.getInstance().schedule(this, group);
+      else
+        expunge(f, group);
+    }
+  }
+
+  /**
+   * Moves messages of this folder to another directory, with MOVE if the server supports it and otherwise by
+   * copying them and removing the originals. Neither directory is marked as out of date if the server tells the UIDs
+   * of the messages in the destination (UIDPLUS).
+   *
+   * @param msgs the messages to move
+   * @param dest the destination directory
+   * @return the moved messages in the destination folder, or null if they are not known
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  Message[] moveMessages(Message[] msgs, IMAPDirectory dest) throws MessagingException {
+    IMAPFolder folder = getFolder();
+
+    long[] uids = new long[msgs.length];
+    for (int i = 0; i < msgs.length; i++)
+      uids[i] = folder.getUID(msgs[i]);
+
+    boolean move = ((IMAPStore) folder.getStore()).hasCapability("MOVE");
+    long[] destUids = IMAPCommands.copyMessages(folder, uids, dest.getFolderName(), move);
+    if (!move) {
+      // The originals count until expunged
+      QuotaUsage.getInstance().added(msgs);
+      removeMessages(msgs);
+    }
+
+    Message[] moved = null;
+    if (destUids != null) {
+      Metrics.getInstance().command("UID FETCH");
+      moved = dest.getFolder().getMessagesByUID(destUids);
+    }
+    for (int i = 0; moved != null && i < moved.length; i++) {
+      if (moved[i] == null)
+        moved = null;
+    }
+
+    if (moved == null)
+      dest.clearChildren();
+    return moved;
+  }
+
+  /**
+   * Expunges messages flagged as deleted. Only the given messages are expunged if the server supports UID EXPUNGE
+   * (UIDPLUS), otherwise all messages flagged as deleted are.
+   *
+   * @param msgs the messages to expunge
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  synchronized void expungeMessages(List<Message> msgs) throws MessagingException {
+    expunge(getFolder(), msgs);
+  }
+
+  /**
+   * Expunges those of the given messages that are in a folder, see {@link #expungeMessages}
+   */
+  private static void expunge(IMAPFolder folder, List<Message> msgs) throws MessagingException {
+    List<Message> live = new ArrayList<Message>();
+    for (Message m : msgs) {
+      if (m.getFolder() == folder && !m.isExpunged())
+        live.add(m);
+    }
+    if (live.isEmpty())
+      return;
+
+    // The sizes are needed for the quota usage, and are only known of messages listed before
+    Message[] expunged = live.toArray(new Message[live.size()]);
+    FetchProfile fp = new FetchProfile();
+    fp.add(FetchProfile.Item.ENVELOPE);
+    Metrics.getInstance().command("FETCH");
+    folder.fetch(expunged, fp);
+
+    if (((IMAPStore) folder.getStore()).hasCapability("UIDPLUS")) {
+      Metrics.getInstance().command("UID EXPUNGE");
+      folder.expunge(expunged);
+    } else {
+      Metrics.getInstance().command("EXPUNGE");
+      folder.expunge();
+    }
+    QuotaUsage.getInstance().expunged(expunged);
+  }
+
+  /**
+   * Adds or replaces a child without synchronizing with the server
+   * @param oldName the name of the child before, if it has been renamed
+   * @param entry the child
+   */
+  synchronized void putChild(String oldName, IMAPEntry entry) {
+    if (children == null)
+      return;
+
+    if (oldName != null && children.get(oldName) == entry)
+      children.remove(oldName);
+    children.put(entry.getName(), entry);
+    if (entry instanceof IMAPFile)
+      files.add((IMAPFile) entry);
   }
 
-  public IMAPFolder getFolder() {
-    return folder;
+  /**
+   * Removes a child without synchronizing with the server
+   * @param entry the child
+   */
+  synchronized void removeChild(IMAPEntry entry) {
+    if (children == null)
+      return;
+
+    if (children.get(entry.getName()) == entry)
+      children.remove(entry.getName());
+    files.remove(entry);
+  }
+
+  /**
+   * Get the folder of this directory, opened on its home connection if connections are pooled
+   * @return the opened folder
+   * @throws javax.mail.MessagingException if IMAP communication goes wrong
+   */
+  public IMAPFolder getFolder() throws MessagingException {
+    if (pool != null)
+      return pool.getFolder(folderName);
+    else
+      return folder;
+  }
+
+  public String getFolderName() {
+    return folderName;
+  }
+
+  /**
+   * @return the connection pool used by this directory, or null if the folder is used directly
+   */
+  public IMAPConnectionPool getPool() {
+    return pool;
   }
 
   public IMAPFolder getChildFolder(String name) throws MessagingException {
-    return (IMAPFolder) folder.getFolder(name);
+    return (IMAPFolder) getFolder().getFolder(name);
   }
 
   public IMAPFile getChildFile(String name) throws MessagingException {
-    getChildren(true);
-    IMAPEntry entry = children.get(name);
+    IMAPEntry entry = getChildMap(true).get(name);
     if (entry instanceof IMAPFile)
       return (IMAPFile) entry;
     else
@@ -165,9 +759,13 @@ public class IMAPDirectory extends IMAPEntry {
   }
 
   public void delete() throws MessagingException {
+    ExpungeScheduler.getInstance().cancel(this);
+    IMAPFolder folder = getFolder();
     folder.close(true); // close and expunge
     folder.delete(true);
-    folder = null;
+    if (pool != null)
+      pool.forgetFolder(folderName);
+    this.folder = null;
     parent.clearChildren();
   }
 
@@ -179,20 +777,98 @@ public class IMAPDirectory extends IMAPEntry {
     return obj instanceof IMAPDirectory && ((IMAPDirectory) obj).getAbsoluteName().equals(absolutePath);
   }
 
-  public void renameTo(String newPath) throws MessagingException {
+  /**
+   * Renames the folder of this directory, which may also move it into the folder of another directory
+   * @param dest the directory to be in, which may be the current parent
+   * @param newName the new name of the directory
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  public void renameTo(IMAPDirectory dest, String newName) throws MessagingException {
+    // Messages waiting to be expunged are only found in the folders they are in now
+    ExpungeScheduler.getInstance().cancel(this);
+    for (IMAPDirectory dir : getSubdirectories())
+      dir.expungeSubtree();
+
+    IMAPFolder folder = getFolder();
     folder.close(true);
-    if (folder.renameTo(folder.getStore().getFolder(newPath))) {
-      this.absolutePath = newPath;
-      this.name = PathUtil.extractName(newPath);
-      parent.clearChildren();
-    } else
+    String destFolderName = dest.getFolderName();
+    IMAPFolder newFolder = (IMAPFolder) folder.getStore().getFolder(destFolderName.length() > 0
+        ? destFolderName + folder.getSeparator() + newName : newName);
+    if (!folder.renameTo(newFolder))
       throw new MessagingException("Directory not renamed");
 
-    folder.open(Folder.READ_WRITE);
+    // Kept as the child of the destination, so the directories below it survive the next listing
+    parent.removeChild(this);
+    parent.clearChildren();
+    this.parent = dest;
+    this.name = newName;
+    folderRenamed(newFolder);
+    dest.putChild(null, this);
+    dest.clearChildren();
+  }
+
+  /**
+   * Expunges the messages scheduled to be expunged in this directory and the directories below it
+   */
+  private void expungeSubtree() {
+    ExpungeScheduler.getInstance().expunge(this);
+    for (IMAPDirectory dir : getSubdirectories())
+      dir.expungeSubtree();
+  }
+
+  /**
+   * Switches to the folder of this directory by its new name, after the folder or a folder above it has been renamed,
+   * and does the same for the directories below it. The children are synchronized with the folder when next used.
+   * @param newFolder the folder by its new name
+   */
+  private void folderRenamed(IMAPFolder newFolder) throws MessagingException {
+    this.absolutePath = makeAbsolutePath();
+    if (pool != null) {
+      pool.forgetFolder(folderName);
+      this.folderName = newFolder.getFullName();
+    } else {
+      if (folder != null && folder.isOpen()) {
+        try {
+          folder.close(false);
+        } catch (MessagingException e) {
+          log.debug("Error closing '" + folderName + "' after renaming it", e);
+        }
+      }
+      setFolder(newFolder);
+    }
+    clearChildren();
+
+    Map<String, IMAPEntry> entries = children;
+    if (entries == null)
+      return;
+    for (IMAPEntry child : entries.values()) {
+      if (child instanceof IMAPDirectory)
+        ((IMAPDirectory) child).folderRenamed((IMAPFolder) newFolder.getFolder(child.getName()));
+      else
+        child.absolutePath = child.makeAbsolutePath();
+    }
+  }
+
+  /**
+   * @return the directories known to be below this one, without synchronizing with the server
+   */
+  private List<IMAPDirectory> getSubdirectories() {
+    List<IMAPDirectory> dirs = new ArrayList<IMAPDirectory>();
+    Map<String, IMAPEntry> entries = children;
+    if (entries != null) {
+      for (IMAPEntry child : entries.values()) {
+        if (child instanceof IMAPDirectory)
+          dirs.add((IMAPDirectory) child);
+      }
+    }
+    return dirs;
   }
 
+  /**
+   * Marks the children as out of date, so that they are synchronized with the server when next used
+   */
   public void clearChildren() {
-    this.children = null;
+    this.stale = true;
   }
 
 }
\ No newline at end of file
@@ -19,30 +19,95 @@ package dk.qabi.imapfs;
 
 import fuse.FuseException;
 import javax.mail.*;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeMessage;
-import javax.activation.DataSource;
-import javax.activation.DataHandler;
-import javax.activation.FileDataSource;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.io.*;
 
 import dk.qabi.imapfs.util.*;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 
 /**
  *
  * This class represents a file
  *
+ * A file is either stored as a single message with the data as its first attachment, or - when larger than the
+ * configured chunk size - as a manifest message holding the name, size and time of the file plus a number of chunk
+ * messages each holding a fixed-size range of the data. Chunk messages are tied to their manifest by a file id.
+ *
+ * Renaming a file or changing its time only stores a small metadata record message, tied to the message of the file
+ * by its UID, instead of uploading the file again. The record is folded into the message when the file is uploaded.
+ *
  */
 public class IMAPFile extends IMAPEntry {
 
-  private static final String DATA_ATTCH_NAME = "_imapfsdata.bin";
+  static final String SIZE_HEADER = "X-IMAPFS-Filesize";
+  static final String FILEID_HEADER = "X-IMAPFS-Fileid";
+  static final String CHUNKSIZE_HEADER = "X-IMAPFS-Chunksize";
+  static final String CHUNK_HEADER = "X-IMAPFS-Chunk";
+  static final String META_HEADER = "X-IMAPFS-Meta";
+
+  static final String DATA_ATTCH_NAME = "_imapfsdata.bin";
+
   private Message msg;
+  private Message metaMsg;
+
+  /* UID of the message of a file loaded from the metadata snapshot, until attached to the message */
+  private long detachedUid = -1;
+
   private File file;
-  private long serverLastModified;
+  private volatile boolean dirty;
+
+  /* The data of the file. Unless the file is chunked this is just the single message */
+  private IMAPChunk[] chunks;
+  private String fileId;
+  private long chunkSize;
+  private BitSet dirtyChunks = new BitSet();
+
+  /**
+   * A download of the whole file into the local copy, which is read while it goes on
+   */
+  private static class Download {
+    /* Bytes from the start of the local copy written so far */
+    long written;
+    boolean done;
+    Exception failure;
+  }
+
+  /* Blocks of the local copy fetched so far, or null if the local copy is complete */
+  private BitSet fetchedBlocks;
+
+  /* Download of the whole file in progress, or null */
+  private volatile Download download;
+
+  /* Blocks being fetched by read-ahead, which does not hold the lock of the file while fetching */
+  private BitSet fetchingBlocks = new BitSet();
+  private volatile int readingAhead;
+
+  /* Size and time of the file as stored on the server, so that stat'ing it needs no IMAP round trip */
+  private long size = -1;
+  private long time;
+
+  /* Whether the size is estimated from the stored data, for files stored without the size header */
+  private boolean sizeEstimated;
+
+  /* Channel on the local copy, kept open while the file is open */
+  private FileChannel channel;
+  private volatile int openCount;
+
+  /* Modifications of the local copy so far, to tell whether it was modified during an upload */
+  private long modifications;
+
+  /* Whether the local copy is being uploaded without the lock of the file held */
+  private boolean uploading;
 
   /**
    * Constructor for creating a new file
@@ -52,20 +117,26 @@ public class IMAPFile extends IMAPEntry {
    */
   public IMAPFile(String name, IMAPDirectory parent) throws MessagingException {
     this.parent = parent;
-    this.absolutePath = makeAbsolutePath();
     this.name = name;
+    this.absolutePath = makeAbsolutePath();
 
     if (parent.getChildFile(name) != null)
       throw new MessagingException("File '"+absolutePath+"' already exists");
 
     this.msg = new MimeMessage(Session.getDefaultInstance(new Properties(), null));
     msg.setSubject(name);
-    msg.setHeader("X-IMAPFS-Filesize", "0");
+    msg.setHeader(SIZE_HEADER, "0");
     msg.setSentDate(new Date());
     msg.setText("");
     this.msg.saveChanges();
-    parent.getFolder().addMessages(new Message[]{this.msg});
-    parent.clearChildren();
+    cacheAttributes(msg);
+
+    Message[] added = parent.appendMessages(new Message[]{this.msg});
+    if (added[0] != null)
+      this.msg = added[0];
+    this.chunks = new IMAPChunk[]{new IMAPChunk(msg, parent)};
+    if (added[0] != null)
+      parent.putChild(null, this);
   }
 
   /**
@@ -75,13 +146,133 @@ public class IMAPFile extends IMAPEntry {
    * @throws javax.mail.MessagingException if IMAP communication goes wrong
    */
   public IMAPFile(Message msg, IMAPDirectory parent) throws MessagingException {
+    this(msg, null, null, parent);
+  }
+
+  /**
+   * Constructor for files
+   * @param msg IMAP (JavaMail API) message, being the manifest if the file is chunked
+   * @param chunkMessages the chunk messages of a chunked file by index, or null
+   * @param metaMsg the metadata record of the file, or null
+   * @param parent IMapFileEntry for the parent
+   * @throws javax.mail.MessagingException if IMAP communication goes wrong
+   */
+  public IMAPFile(Message msg, Map<Integer, Message> chunkMessages, Message metaMsg, IMAPDirectory parent)
+      throws MessagingException {
     if (parent == null)
       throw new IllegalArgumentException("Parent must be a valid directory");
 
     this.parent = parent;
-    this.name = PathUtil.extractName(msg.getSubject());
+    load(msg, chunkMessages, metaMsg);
+  }
+
+  /**
+   * Constructor for files loaded from the metadata snapshot. Such a file is detached from the server until its
+   * directory has been synchronized, and only its name, size and time can be used until then.
+   * @param name name of the file
+   * @param size size of the file
+   * @param time time of the file
+   * @param uid UID of the message of the file when the snapshot was saved
+   * @param parent IMapFileEntry for the parent
+   */
+  IMAPFile(String name, long size, long time, long uid, IMAPDirectory parent) {
+    this.parent = parent;
+    this.name = name;
+    this.absolutePath = makeAbsolutePath();
+    this.size = size;
+    this.time = time;
+    this.detachedUid = uid;
+    this.chunks = new IMAPChunk[0];
+  }
+
+  /**
+   * Ties a file loaded from the metadata snapshot to its messages. Only called with the lock of the directory held,
+   * which is safe as detached files never wait for the directory while holding their own lock.
+   */
+  synchronized void attach(Message msg, Map<Integer, Message> chunkMessages, Message metaMsg)
+      throws MessagingException {
+    load(msg, chunkMessages, metaMsg);
+    this.detachedUid = -1;
+  }
+
+  boolean isDetached() {
+    return msg == null;
+  }
+
+  /**
+   * @return the UID of the message of the file, or -1 if it is not on the server
+   */
+  long getUID() throws MessagingException {
+    if (isDetached())
+      return detachedUid;
+    else if (msg.getFolder() instanceof UIDFolder)
+      return ((UIDFolder) msg.getFolder()).getUID(msg);
+    else
+      return -1;
+  }
+
+  /**
+   * @return the size of the file as stored on the server, or -1 if not known
+   */
+  long getStoredSize() {
+    return size;
+  }
+
+  private void load(Message msg, Map<Integer, Message> chunkMessages, Message metaMsg) throws MessagingException {
     this.msg = msg;
+    this.metaMsg = metaMsg;
+    cacheAttributes(msg);
+    if (metaMsg != null) {
+      this.name = PathUtil.extractName(metaMsg.getSubject());
+      if (metaMsg.getSentDate() != null)
+        this.time = metaMsg.getSentDate().getTime();
+    } else {
+      this.name = PathUtil.extractName(msg.getSubject());
+    }
     this.absolutePath = makeAbsolutePath();
+
+    this.fileId = getHeader(msg, FILEID_HEADER);
+    if (fileId != null) {
+      this.chunkSize = Long.parseLong(getHeader(msg, CHUNKSIZE_HEADER));
+
+      int count = 0;
+      if (chunkMessages != null) {
+        for (Integer index : chunkMessages.keySet())
+          count = Math.max(count, index + 1);
+      }
+
+      this.chunks = new IMAPChunk[count];
+      for (int i = 0; i < count; i++) {
+        Message m = chunkMessages.get(i);
+        if (m != null)
+          chunks[i] = new IMAPChunk(m, parent);
+      }
+    } else {
+      this.chunks = new IMAPChunk[]{new IMAPChunk(msg, parent)};
+    }
+  }
+
+  /**
+   * Takes the size and time of the file from a message. For messages listed by {@link IMAPDirectory} these have been
+   * prefetched along with the rest of the folder.
+   */
+  private void cacheAttributes(Message m) throws MessagingException {
+    String header = getHeader(m, SIZE_HEADER);
+    this.size = header != null ? Long.parseLong(header) : -1;
+    this.sizeEstimated = false;
+
+    Date date = m.getSentDate();
+    if (date == null)
+      date = m.getReceivedDate();
+    this.time = date != null ? date.getTime() : 0;
+  }
+
+  static String getHeader(Message msg, String name) throws MessagingException {
+    String[] headerValues = msg.getHeader(name);
+    if (headerValues != null && headerValues.length > 0)
+      return headerValues[0].trim();
+    else
+      return null;
   }
 
   /**
@@ -91,21 +282,17 @@ public class IMAPFile extends IMAPEntry {
    * @throws javax.mail.MessagingException if IMAP communication goes wrong
    * @throws java.io.IOException if I/O errors occur
    */
-  public long getSize() throws MessagingException, IOException {
-    String[] headerValues = msg.getHeader("X-IMAPFS-Filesize");
-    if (headerValues != null && headerValues.length > 0) {
-      String header = headerValues[0];
-      return Integer.parseInt(header);
-    } else {
-      InputStream in = msg.getInputStream();
-      int length = 0;
-
-      while (in.available() > 0) {
-        length += in.skip(in.available());
-      }
+  public synchronized long getSize() throws MessagingException, IOException {
+    if (isDirty())
+      return this.file.length();
 
-      return length;
+    if (size == -1 && !isDetached()) {
+      // Not stored by this version; the estimate is corrected when the data is downloaded
+      this.size = Math.max(0, chunks[0].estimateDataSize());
+      this.sizeEstimated = true;
     }
+
+    return size;
   }
 
   /**
@@ -115,7 +302,7 @@ public class IMAPFile extends IMAPEntry {
    * @throws javax.mail.MessagingException if IMAP communication goes wrong
    */
   public long getTime() throws MessagingException {
-    return msg.getSentDate().getTime();
+    return time;
   }
 
   public boolean isDirectory() {
@@ -126,193 +313,1036 @@ public class IMAPFile extends IMAPEntry {
     return false;
   }
 
-  public void readData(ByteBuffer buf, long offset) throws MessagingException, FuseException, IOException {
+  public boolean isChunked() {
+    return fileId != null;
+  }
+
+  public synchronized void readData(ByteBuffer buf, long offset) throws MessagingException, FuseException, IOException {
+    awaitReadAhead(offset, buf.capacity());
+    boolean hit = this.file != null && this.download == null;
 
     if (this.file == null) {
-      // Write to disk
-      this.file = DiskStore.getInstance().getFile(absolutePath, getSize());
-
-      FileOutputStream fos = new FileOutputStream(file);
-      InputStream serverin = getInputStream();
+      if (Configuration.isRangedReads() && isRangeFetchable())
+        createSparseCopy();
+      else
+        startDownload();
+    }
 
-      StreamUtil.pump(serverin, fos, 4096);
-      this.serverLastModified = this.getTime();
+    if (this.download != null) {
+      awaitDownload(offset + buf.capacity());
+      if (this.file == null) {
+        // The local copy was removed while waiting, e.g. by a truncate
+        readData(buf, offset);
+        return;
+      }
     }
 
-    InputStream in = new FileInputStream(this.file);
+    try {
+      if (this.fetchedBlocks != null && fetchRange(offset, buf.capacity()))
+        hit = false;
+      Metrics.getInstance().read(hit);
 
-    if (in.skip(offset) == offset) {
-      byte[] bytes = new byte[(int) Math.min(buf.capacity(), file.length()-offset)];
+      FileChannel ch = getChannel();
+      long pos = offset;
       int nread;
-      nread = in.read(bytes);
+      while (buf.hasRemaining() && (nread = ch.read(buf, pos)) > 0)
+        pos += nread;
+
+      log.info("read " + buf.position() + "/" + buf.capacity() + " requested bytes");
+    } finally {
+      releaseChannel();
+      DiskStore.getInstance().touch(this.file, getLocalSize());
+    }
+  }
+
+  /**
+   * @return the number of bytes of the local copy that are actually stored
+   */
+  private long getLocalSize() {
+    long length = this.file.length();
+    if (this.fetchedBlocks == null)
+      return length;
+    else
+      return Math.min(length, (long) fetchedBlocks.cardinality() * getBlockSize());
+  }
+
+  /**
+   * Determines whether the local copy must be kept, because the file is open or modified locally
+   */
+  boolean isPinned() {
+    return openCount > 0 || dirty || readingAhead > 0 || download != null;
+  }
 
-      if (nread == bytes.length) {
-        buf.put(bytes, 0, nread);
+  /**
+   * Deletes the local copy to free disk space, unless it is pinned
+   * @param copy the local copy to delete
+   * @return true if deleted
+   */
+  synchronized boolean evict(File copy) {
+    if (!copy.equals(this.file)) {
+      // Not used anymore
+      copy.delete();
+      DiskStore.getInstance().remove(copy);
+      return true;
+    }
+
+    if (isPinned())
+      return false;
+
+    deleteLocalCopy();
+    log.debug("evicted local copy of '" + absolutePath + "'");
+    return true;
+  }
+
+  /**
+   * Deletes the local copy on request, unless it is pinned
+   * @return true if there is no local copy anymore
+   */
+  synchronized boolean dropLocalCopy() {
+    return this.file == null || evict(this.file);
+  }
+
+  /**
+   * Fetches the whole file into the local copy, in the background if there is no local copy yet
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  synchronized void prefetch() throws MessagingException, IOException {
+    if (this.file == null) {
+      startDownload();
+    } else if (this.fetchedBlocks != null) {
+      try {
+        fetchRange(0, this.file.length());
+      } finally {
+        releaseChannel();
+        DiskStore.getInstance().touch(this.file, getLocalSize());
+      }
+    }
+  }
+
+  private void deleteLocalCopy() {
+    try {
+      closeChannel();
+    } catch (IOException e) {
+      log.warn("Error closing local copy of '" + absolutePath + "'", e);
+    }
+    this.file.delete();
+    DiskStore.getInstance().remove(this.file);
+    this.file = null;
+    this.fetchedBlocks = null;
+  }
+
+  /**
+   * Downloads the data of all chunks into the local copy
+   */
+  private void download() throws MessagingException, IOException {
+    startDownload();
+    awaitDownload(Long.MAX_VALUE);
+  }
+
+  /**
+   * Starts downloading the data of all chunks into the local copy in the background. Until done, the local copy
+   * may be read up to where it has been written, see {@link #awaitDownload}.
+   */
+  private void startDownload() throws MessagingException, IOException {
+    // An estimated size is an upper bound, but the whole data is downloaded in case it is not known at all
+    long known = getSize();
+    final long size = sizeEstimated ? Long.MAX_VALUE : known;
+    for (int i = 0; i < chunks.length; i++)
+      getChunk(i); // fails here rather than in the background if a chunk is missing
+
+    closeChannel();
+    this.file = DiskStore.getInstance().getFile(known, this);
+    this.fetchedBlocks = null;
+    this.dirty = false;
+
+    final File copy = this.file;
+    final IMAPChunk[] data = chunks;
+    final Download d = new Download();
+    this.download = d;
+
+    // A channel of its own, so that the download goes on when the file is closed
+    final FileChannel out = new RandomAccessFile(copy, "rw").getChannel();
+
+    Thread downloader = new Thread("Download of " + name) {
+      public void run() {
+        IMAPChunk.Progress progress = new IMAPChunk.Progress() {
+          public void transferred(long position) {
+            synchronized (IMAPFile.this) {
+              d.written = position;
+              IMAPFile.this.notifyAll();
+            }
+          }
+        };
+
+        try {
+          try {
+            long pos = 0;
+            for (int i = 0; i < data.length; i++)
+              pos += data[i].transferTo(0, getChunkEnd(i, size) - getChunkStart(i), out, pos, progress);
+            out.truncate(pos);
+          } finally {
+            out.close();
+          }
+        } catch (Exception e) {
+          d.failure = e;
+        } finally {
+          finishDownload(d, copy);
+        }
+      }
+    };
+    downloader.setDaemon(true);
+    downloader.start();
+  }
+
+  private synchronized void finishDownload(Download d, File copy) {
+    d.done = true;
+    if (this.download == d)
+      this.download = null;
+
+    if (d.failure != null) {
+      log.warn("Error downloading '" + absolutePath + "'", d.failure);
+      // A partial copy is of no use once the download has failed
+      if (copy.equals(this.file))
+        deleteLocalCopy();
+    } else if (copy.equals(this.file)) {
+      if (sizeEstimated) {
+        this.size = copy.length();
+        this.sizeEstimated = false;
+      }
+      DiskStore.getInstance().touch(copy, getLocalSize());
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits for the download in progress, if any, to have written the local copy up to the given position
+   */
+  private void awaitDownload(long position) throws MessagingException, IOException {
+    Download d = this.download;
+    if (d == null)
+      return;
+
+    try {
+      while (!d.done && d.written < position)
+        wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted waiting for download of '" + absolutePath + "'");
+    }
+
+    if (d.failure instanceof MessagingException)
+      throw (MessagingException) d.failure;
+    if (d.failure != null) {
+      IOException ioe = new IOException("Error downloading '" + absolutePath + "': " + d.failure.getMessage());
+      ioe.initCause(d.failure);
+      throw ioe;
+    }
+  }
+
+  private IMAPChunk getChunk(int index) throws MessagingException {
+    if (index >= chunks.length || chunks[index] == null)
+      throw new MessagingException("Chunk " + index + " of '" + absolutePath + "' is missing");
+    return chunks[index];
+  }
+
+  /**
+   * Creates an empty local copy of a file that is empty on the server
+   * @param size the size the copy is expected to grow to
+   */
+  private void createEmptyCopy(long size) throws IOException {
+    closeChannel();
+    this.file = DiskStore.getInstance().getFile(size, this);
+    new FileOutputStream(this.file).close();
+  }
+
+  /**
+   * Creates an empty local copy of the full size, which is filled in block by block as it is read
+   */
+  private void createSparseCopy() throws MessagingException, IOException {
+    long size = getSize();
+    closeChannel();
+    this.file = DiskStore.getInstance().getFile(size, this);
+
+    RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+    this.fetchedBlocks = new BitSet();
+    this.dirty = false;
+  }
+
+  /**
+   * Determines whether the local copy can be filled in block by block. Chunks that cannot be fetched by range are
+   * fetched whole when needed, so this is only a concern for single message files.
+   */
+  private boolean isRangeFetchable() throws MessagingException, IOException {
+    // A sparse copy needs the exact size
+    getSize();
+    return isChunked() || (!sizeEstimated && chunks[0].isRangeFetchable());
+  }
+
+  /**
+   * Block size of the local copy, in decoded bytes. Blocks are aligned to whole base64 lines, so each block maps to a
+   * fixed range of the encoded data on the server.
+   */
+  private int getBlockSize() {
+    return Math.max(1, Configuration.getReadBlockSize() / IMAPChunk.BASE64_LINE_BYTES) * IMAPChunk.BASE64_LINE_BYTES;
+  }
+
+  private int getChunkIndex(long offset) {
+    return isChunked() ? (int) (offset / chunkSize) : 0;
+  }
+
+  private long getChunkStart(int index) {
+    return isChunked() ? index * chunkSize : 0;
+  }
+
+  private long getChunkEnd(int index, long size) {
+    return isChunked() ? Math.min((index + 1) * chunkSize, size) : size;
+  }
+
+  /**
+   * Makes sure all blocks overlapping the given range are present in the local copy, fetching contiguous runs of
+   * missing blocks with one partial fetch per chunk.
+   *
+   * @return true if any blocks were fetched
+   */
+  private boolean fetchRange(long offset, long length) throws MessagingException, IOException {
+    long size = this.file.length();
+    long end = Math.min(offset + length, size);
+    if (offset >= end)
+      return false;
+
+    int blockSize = getBlockSize();
+    int first = (int) (offset / blockSize);
+    int last = (int) ((end - 1) / blockSize);
+
+    boolean fetched = false;
+    int block = first;
+    while (block <= last && fetchedBlocks != null) {
+      if (fetchedBlocks.get(block)) {
+        block++;
       } else {
-        log.info("read " + nread + " bytes but expected " + bytes.length);
+        int runEnd = block;
+        while (runEnd < last && !fetchedBlocks.get(runEnd + 1))
+          runEnd++;
+
+        fetchBlocks(block, runEnd, blockSize, size);
+        block = runEnd + 1;
+        fetched = true;
       }
+    }
+    return fetched;
+  }
 
-      log.info("read " + buf.position() + "/" + buf.capacity() + " requested bytes");
-    } else {
-      log.info("could not read beyond file length at requested offset " + offset);
+  private void fetchBlocks(int first, int last, int blockSize, long size) throws MessagingException, IOException {
+    transferBlocks(chunks, getChannel(), first, last, blockSize, size);
+    markFetched(first, last, blockSize, size);
+  }
+
+  private void transferBlocks(IMAPChunk[] data, FileChannel out, int first, int last, int blockSize, long size)
+      throws MessagingException, IOException {
+    long pos = (long) first * blockSize;
+    long end = Math.min((long) (last + 1) * blockSize, size);
+
+    while (pos < end) {
+      int index = getChunkIndex(pos);
+      long chunkStart = getChunkStart(index);
+      long to = Math.min(end, getChunkEnd(index, size));
+
+      if (index >= data.length || data[index] == null)
+        throw new MessagingException("Chunk " + index + " of '" + absolutePath + "' is missing");
+      pos += data[index].transferTo(pos - chunkStart, to - pos, out, pos, null);
+
+      if (pos < to)
+        throw new IOException("Premature end of data in chunk " + index + " of '" + absolutePath + "'");
     }
-    
   }
 
-  private InputStream getInputStream() throws IOException, MessagingException {
-    Object content = msg.getContent();
+  private void markFetched(int first, int last, int blockSize, long size) {
+    fetchedBlocks.set(first, last + 1);
+    log.debug("fetched blocks " + first + "-" + last + " of '" + absolutePath + "'");
 
-    if (content instanceof Multipart) {
-      Multipart m = (Multipart) content;
-      BodyPart part = m.getBodyPart(0);
-      return part.getInputStream();
-    } else {
-      // Not a multipart -> no attachemts -> no data
-      return new ByteArrayInputStream(new byte[0]);
+    if (fetchedBlocks.cardinality() >= (size + blockSize - 1) / blockSize) {
+      log.debug("local copy of '" + absolutePath + "' is complete");
+      this.fetchedBlocks = null;
     }
   }
 
-  public void writeData(ByteBuffer buf, long offset) throws MessagingException, IOException {
+  /**
+   * Fetches the blocks of the given range that are missing from the local copy, for a reader expected to read them
+   * soon. The lock of the file is only held while picking the blocks and registering them as fetched, so that reads
+   * of the blocks already present go on meanwhile. Nothing is done unless the file is open and its local copy is
+   * being filled in block by block.
+   *
+   * @param offset offset of the first byte to fetch
+   * @param length number of bytes to fetch
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  void readAhead(long offset, long length) throws MessagingException, IOException {
+    long end = offset + length;
+
+    while (offset < end) {
+      IMAPChunk[] data;
+      FileChannel out;
+      BitSet blocks;
+      int blockSize;
+      long size;
+      int first;
+      int last;
+
+      synchronized (this) {
+        if (openCount == 0 || this.fetchedBlocks == null)
+          return;
+
+        blockSize = getBlockSize();
+        size = this.file.length();
+        if (offset >= size)
+          return;
+
+        int lastWanted = (int) ((Math.min(end, size) - 1) / blockSize);
+        first = (int) (offset / blockSize);
+        while (first <= lastWanted && (fetchedBlocks.get(first) || fetchingBlocks.get(first)))
+          first++;
+        if (first > lastWanted)
+          return;
+
+        last = first;
+        while (last < lastWanted && !fetchedBlocks.get(last + 1) && !fetchingBlocks.get(last + 1))
+          last++;
+
+        fetchingBlocks.set(first, last + 1);
+        readingAhead++;
+        data = chunks;
+        out = getChannel();
+        blocks = fetchedBlocks;
+      }
+
+      boolean fetched = false;
+      try {
+        transferBlocks(data, out, first, last, blockSize, size);
+        fetched = true;
+      } finally {
+        synchronized (this) {
+          readingAhead--;
+          fetchingBlocks.clear(first, last + 1);
+          // Unless the local copy has been replaced meanwhile
+          if (fetched && this.fetchedBlocks == blocks)
+            markFetched(first, last, blockSize, size);
+          notifyAll();
+        }
+      }
+
+      offset = (long) (last + 1) * blockSize;
+    }
+  }
+
+  /**
+   * Waits for read-ahead of blocks of the given range to finish
+   */
+  private void awaitReadAhead(long offset, long length) throws IOException {
+    int blockSize = getBlockSize();
+    int first = (int) (offset / blockSize);
+    long end = (offset + length + blockSize - 1) / blockSize;
+
+    try {
+      int next;
+      while ((next = fetchingBlocks.nextSetBit(first)) != -1 && next < end)
+        wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted waiting for read-ahead of '" + absolutePath + "'");
+    }
+  }
+
+  /**
+   * Makes sure the local copy holds the server data of all chunks overlapping the given range, so those chunks can
+   * be uploaded again after being modified.
+   */
+  private void fetchChunks(long offset, long length) throws MessagingException, IOException {
+    if (this.fetchedBlocks == null)
+      return;
+
+    long size = this.file.length();
+    if (offset >= size)
+      return;
+
+    long start = getChunkStart(getChunkIndex(offset));
+    long end = getChunkEnd(getChunkIndex(Math.min(offset + length, size) - 1), size);
+    fetchRange(start, end - start);
+  }
+
+  public synchronized void writeData(ByteBuffer buf, long offset) throws MessagingException, IOException {
+    awaitReadAhead(0, Long.MAX_VALUE / 2);
+    awaitDownload(Long.MAX_VALUE);
+
     if (this.file == null) {
-      this.file = DiskStore.getInstance().getFile(absolutePath, offset + buf.capacity());
-      this.serverLastModified = 0;
+      long size = getSize();
+      if (size == 0)
+        createEmptyCopy(offset + buf.capacity());
+      else if (isChunked())
+        createSparseCopy();
+      else
+        download();
+    }
+
+    try {
+      long oldLength = this.file.length();
+      if (isChunked()) {
+        // Only the chunks written to are uploaded on flush
+        fetchChunks(Math.min(offset, oldLength), offset + buf.remaining() - Math.min(offset, oldLength));
+      } else if (this.fetchedBlocks != null) {
+        // The whole content is uploaded on flush, so fill in what has not been read yet
+        fetchRange(0, oldLength);
+      }
+
+      FileChannel out = getChannel();
+      long pos = offset;
+      while (buf.hasRemaining())
+        pos += out.write(buf, pos);
+
+      markModified(Math.min(offset, oldLength), pos, oldLength);
+    } finally {
+      releaseChannel();
+      DiskStore.getInstance().touch(this.file, getLocalSize());
+    }
+  }
+
+  /**
+   * Registers that the file has been opened. The local copy is kept open until the file is released again.
+   */
+  public synchronized void open() {
+    openCount++;
+  }
+
+  /**
+   * Registers that the file has been closed
+   * @throws IOException if I/O errors occur
+   */
+  public synchronized void release() throws IOException {
+    if (openCount > 0)
+      openCount--;
+    releaseChannel();
+  }
+
+  private FileChannel getChannel() throws IOException {
+    if (channel == null)
+      channel = new RandomAccessFile(this.file, "rw").getChannel();
+    return channel;
+  }
+
+  /**
+   * Closes the channel on the local copy unless the file is open
+   */
+  private void releaseChannel() throws IOException {
+    if (openCount == 0)
+      closeChannel();
+  }
+
+  private void closeChannel() throws IOException {
+    if (channel != null) {
+      try {
+        channel.close();
+      } finally {
+        channel = null;
+      }
     }
+  }
 
-    RandomAccessFile out = new RandomAccessFile(this.file, "rwd");
+  /**
+   * Records that the local copy has been modified from the given offset up to the given end
+   */
+  private void markModified(long from, long to, long oldLength) {
+    if (isChunked() && to > from)
+      dirtyChunks.set(getChunkIndex(from), getChunkIndex(to - 1) + 1);
 
-    out.seek(offset);
-    byte[] bytes = new byte[buf.remaining()];
-    buf.get(bytes);
-    out.write(bytes);
+    if (this.fetchedBlocks != null && to > oldLength) {
+      // Data beyond the previous end of file only exists locally
+      int blockSize = getBlockSize();
+      fetchedBlocks.set((int) (oldLength / blockSize), (int) ((to + blockSize - 1) / blockSize));
+    }
+
+    this.dirty = true;
+    this.modifications++;
   }
 
+  /**
+   * Uploads the local copy if it has been modified. The data is appended without holding the lock of the file, so
+   * that the file can be stat'ed, read and written meanwhile. If it is written to, the upload is discarded and done
+   * again, this time holding the lock so that it is not overtaken again.
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
   public void flush() throws MessagingException, IOException {
-    if (!this.isDirty()) // nothing to flush
-      return;
+    if (!upload()) {
+      synchronized (this) {
+        upload();
+      }
+    }
+  }
 
-    MimeMessage newMsg = new MimeMessage((MimeMessage) msg);
-    Object content = msg.getContent();
+  /**
+   * The messages of an upload of the local copy, prepared with the lock of the file held
+   */
+  private static class Upload {
+    File copy;
+    long modifications;
 
-    BodyPart part;
-    Multipart m;
-    if (content instanceof Multipart) {
-      m = (Multipart) content;
-    } else {
-      m = new MimeMultipart();
-      newMsg.setContent(m);
+    /* The file id and chunk size of a chunked file, or null if the file is uploaded as a single message */
+    String fileId;
+    long chunkSize;
+    long length;
+
+    /* The messages holding the data, and for a chunked file the indexes of the chunks they are */
+    Message[] data;
+    List<Integer> indexes = new ArrayList<Integer>();
+    IMAPChunk[] newChunks;
+    List<Message> obsolete = new ArrayList<Message>();
+  }
+
+  /**
+   * Uploads the local copy if it has been modified, installing the uploaded messages unless the local copy was
+   * modified meanwhile
+   * @return false if the local copy was modified during the upload, so it is still to be uploaded
+   */
+  private boolean upload() throws MessagingException, IOException {
+    Upload u;
+    synchronized (this) {
+      awaitUpload();
+      if (!this.isDirty()) // nothing to flush
+        return true;
+
+      u = new Upload();
+      u.copy = this.file;
+      u.modifications = this.modifications;
+      u.length = this.file.length();
+      if (isChunked() || u.length > getConfiguredChunkSize())
+        prepareChunks(u);
+      else
+        prepareMessage(u);
+      this.uploading = true;
     }
 
-    if (m.getCount() < 1) {
-      part = new MimeBodyPart();
-      m.addBodyPart(part, 0);
-    } else {
-      part = m.getBodyPart(0);
+    Message[] added = null;
+    try {
+      added = parent.appendMessages(u.data);
+      parent.findAppended(u.data, added);
+    } finally {
+      synchronized (this) {
+        this.uploading = false;
+        notifyAll();
+      }
     }
 
-    DataSource ds = new FileDataSource(this.file);
-    part.setDataHandler(new DataHandler(ds));
-    part.setFileName(DATA_ATTCH_NAME);
+    synchronized (this) {
+      if (this.file != u.copy || this.modifications != u.modifications) {
+        log.debug("'" + absolutePath + "' was modified while uploading, uploading again");
+        parent.removeMessages(added);
+        return false;
+      }
+
+      if (u.fileId != null)
+        installChunks(u, added);
+      else
+        installReplacement(u.data, added);
 
-    newMsg.setHeader("X-IMAPFS-Filesize", String.valueOf(this.file.length()));
+      this.dirty = false;
+      this.dirtyChunks.clear();
+    }
+    return true;
+  }
 
+  /**
+   * Waits for an upload in progress without the lock of the file held, if any, to finish. Everything but reading and
+   * writing the file waits, as the upload relies on the local copy not shrinking and on the messages and metadata of
+   * the file staying the same.
+   */
+  private void awaitUpload() throws MessagingException {
+    try {
+      while (uploading)
+        wait();
+    } catch (InterruptedException e) {
+      throw new MessagingException("Interrupted waiting for upload of '" + absolutePath + "'");
+    }
+  }
+
+  /**
+   * The configured chunk size rounded down to whole base64 lines. If files are never chunked, or the chunks would be
+   * too large to append, it is the largest size of data a message can hold.
+   */
+  private static long getConfiguredChunkSize() {
+    long size = Configuration.getChunkSize();
+    if (size <= 0 || size > FileMessage.MAX_LENGTH)
+      return FileMessage.MAX_LENGTH;
+    else
+      return Math.max(1, size / IMAPChunk.BASE64_LINE_BYTES) * IMAPChunk.BASE64_LINE_BYTES;
+  }
+
+  /**
+   * Prepares uploading the file as a single message
+   */
+  private void prepareMessage(Upload u) throws MessagingException {
     String contentType = MIMETypes.get(PathUtil.extractExtension(name));
-    if (contentType != null)
-      part.setHeader("Content-Type", contentType);
+    MimeMessage newMsg = new FileMessage(this.file, 0, u.length, contentType);
 
+    newMsg.setSubject(name);
+    newMsg.setHeader(SIZE_HEADER, String.valueOf(u.length));
     newMsg.setSentDate(new Date());
-    replaceContainedMessage(newMsg);
+    prepareReplacement(newMsg);
+    u.data = new Message[]{newMsg};
+  }
+
+  /**
+   * Prepares uploading the modified chunks of the file. A single message file is converted to a chunked one by
+   * uploading all of its chunks.
+   */
+  private void prepareChunks(Upload u) throws MessagingException {
+    boolean converting = !isChunked();
+    u.fileId = converting ? UUID.randomUUID().toString() : fileId;
+    u.chunkSize = converting ? getConfiguredChunkSize() : chunkSize;
+
+    int count = (int) ((u.length + u.chunkSize - 1) / u.chunkSize);
+    u.newChunks = new IMAPChunk[count];
+    List<Message> upload = new ArrayList<Message>();
+
+    for (int i = 0; i < Math.max(count, chunks.length); i++) {
+      IMAPChunk old = converting || i >= chunks.length ? null : chunks[i];
+
+      if (i >= count) {
+        if (old != null)
+          u.obsolete.add(old.getMessage());
+      } else if (old == null || dirtyChunks.get(i)) {
+        long start = i * u.chunkSize;
+        upload.add(createChunkMessage(u.fileId, i, start, Math.min(start + u.chunkSize, u.length)));
+        u.indexes.add(i);
+        if (old != null)
+          u.obsolete.add(old.getMessage());
+      } else {
+        u.newChunks[i] = old;
+      }
+    }
+    u.data = upload.toArray(new Message[upload.size()]);
+
+    log.debug("uploading " + upload.size() + " of " + count + " chunks of '" + absolutePath + "'");
   }
 
-  public void setTime(long modifiedTime) throws MessagingException {
-    MimeMessage newMsg = new MimeMessage((MimeMessage) msg);
+  /**
+   * Puts the uploaded chunks in place, followed by a new manifest referring to them replacing the old one
+   */
+  private void installChunks(Upload u, Message[] added) throws MessagingException {
+    for (int i = 0; i < added.length; i++)
+      u.newChunks[u.indexes.get(i)] = new IMAPChunk(added[i], parent);
 
-    newMsg.setSentDate(new Date(modifiedTime));
+    this.fileId = u.fileId;
+    this.chunkSize = u.chunkSize;
 
-    replaceContainedMessage(newMsg);
+    MimeMessage manifest = new MimeMessage(Session.getDefaultInstance(new Properties(), null));
+    manifest.setSubject(name);
+    manifest.setHeader(SIZE_HEADER, String.valueOf(u.length));
+    manifest.setHeader(FILEID_HEADER, fileId);
+    manifest.setHeader(CHUNKSIZE_HEADER, String.valueOf(chunkSize));
+    manifest.setSentDate(new Date());
+    manifest.setText("");
+    replaceContainedMessage(manifest);
+    parent.removeMessages(u.obsolete.toArray(new Message[u.obsolete.size()]));
+
+    this.chunks = u.newChunks;
   }
 
-  private void replaceContainedMessage(MimeMessage newMsg) throws MessagingException {
-    newMsg.saveChanges();
-    msg.setFlag(Flags.Flag.DELETED, true);
-    parent.expunge();
-    this.msg = newMsg;
-    parent.getFolder().addMessages(new Message[]{newMsg});
+  private MimeMessage createChunkMessage(String fileId, int index, long start, long end) throws MessagingException {
+    MimeMessage chunkMsg = new FileMessage(this.file, start, end - start, null);
+    chunkMsg.setSubject(fileId + "." + index);
+    chunkMsg.setHeader(CHUNK_HEADER, fileId + " " + index);
+    chunkMsg.setHeader(SIZE_HEADER, String.valueOf(end - start));
+    chunkMsg.setSentDate(new Date());
+    chunkMsg.saveChanges();
+
+    return chunkMsg;
   }
 
-  public void rename(String newName) throws MessagingException {
-    MimeMessage newMsg = new MimeMessage((MimeMessage) msg);
-    newMsg.setSubject(newName);
-    replaceContainedMessage(newMsg);
-    parent.clearChildren();
+  public synchronized void setTime(long modifiedTime) throws MessagingException {
+    awaitUpload();
+    updateMetadata(name, modifiedTime);
   }
 
-  public void truncate(long length) throws MessagingException, IOException {
-    MimeMessage newMsg = new MimeMessage((MimeMessage) msg);
-    Object content = msg.getContent();
+  /**
+   * Stores the name and time of the file in a new metadata record replacing the current one, if any. This needs
+   * the UIDs of appended messages to be known (UIDPLUS).
+   *
+   * @return true if the record was stored, false if the message of the file must be replaced instead
+   */
+  private boolean storeMetadata(String newName, long newTime) throws MessagingException {
+    IMAPFolder folder = parent.getFolder();
+    if (msg.getFolder() != folder || !((IMAPStore) folder.getStore()).hasCapability("UIDPLUS"))
+      return false;
 
-    BodyPart part;
-    Multipart m;
-    if (content instanceof Multipart) {
-      m = (Multipart) content;
-    } else {
-      m = new MimeMultipart();
-      newMsg.setContent(m);
+    MimeMessage record = new MimeMessage(Session.getDefaultInstance(new Properties(), null));
+    record.setSubject(newName);
+    record.setHeader(META_HEADER, String.valueOf(folder.getUID(msg)));
+    record.setSentDate(new Date(newTime));
+    record.setText("");
+    record.saveChanges();
+
+    Message[] appended = new Message[]{record};
+    Message[] added = parent.appendMessages(appended);
+    parent.findAppended(appended, added);
+    if (metaMsg != null)
+      parent.removeMessages(new Message[]{metaMsg});
+    this.metaMsg = added[0];
+
+    return true;
+  }
+
+  /**
+   * Stores the name and time of the file in a new metadata record, or if that is not possible in a new message
+   */
+  private void updateMetadata(String newName, long newTime) throws MessagingException {
+    if (!storeMetadata(newName, newTime)) {
+      this.name = newName;
+      this.time = newTime;
+      MimeMessage newMsg = new MimeMessage((MimeMessage) msg);
+      newMsg.setSubject(newName);
+      newMsg.setSentDate(new Date(newTime));
+      replaceContainedMessage(newMsg);
     }
 
-    if (m.getCount() < 1) {
-      part = new MimeBodyPart();
-      m.addBodyPart(part, 0);
-    } else {
-      part = m.getBodyPart(0);
+    this.name = newName;
+    this.time = newTime;
+  }
+
+  private void replaceContainedMessage(MimeMessage newMsg) throws MessagingException {
+    prepareReplacement(newMsg);
+    Message[] appended = new Message[]{newMsg};
+    installReplacement(appended, parent.appendMessages(appended));
+  }
+
+  /**
+   * Gives a message replacing the message of the file the name and time of the metadata record, if any
+   */
+  private void prepareReplacement(MimeMessage newMsg) throws MessagingException {
+    if (metaMsg != null) {
+      newMsg.setSubject(name);
+      Date date = newMsg.getSentDate();
+      if (date == null || date.equals(msg.getSentDate()))
+        newMsg.setSentDate(new Date(time));
     }
+    newMsg.saveChanges();
+  }
 
-    long size = getSize();
-    ByteBuffer buf;
-    if (size < length) {
-      // add more bytes
-      buf = ByteBuffer.allocate((int) (length - size));
-    } else {
-      // otherwise remove bytes or do nothing
-      buf = ByteBuffer.allocate(0);
+  /**
+   * Continues with an appended message in place of the message of the file and its metadata record, if any
+   * @param appended the message as appended
+   * @param added the message on the server, or null if not known yet
+   */
+  private void installReplacement(Message[] appended, Message[] added) throws MessagingException {
+    List<Message> old = new ArrayList<Message>();
+    old.add(msg);
+    if (metaMsg != null) {
+      // The name and time of the metadata record have gone into the new message
+      old.add(metaMsg);
+      this.metaMsg = null;
     }
+    cacheAttributes(appended[0]);
 
-    DataSource ds = new RewritingDataSource(part.getDataHandler(), buf, length);
-    part.setDataHandler(new DataHandler(ds));
-    part.setFileName(DATA_ATTCH_NAME);
+    // The old message is only removed once the new one is in place. Until expunged it is ignored when listing.
+    parent.removeMessages(old.toArray(new Message[old.size()]));
 
-    newMsg.setHeader("X-IMAPFS-Filesize", String.valueOf(size));
+    // Continue with the message on the server, so this file is kept by the directory
+    parent.findAppended(appended, added);
+    this.msg = added[0];
+    if (!isChunked())
+      this.chunks = new IMAPChunk[]{new IMAPChunk(msg, parent)};
+  }
 
-    String contentType = MIMETypes.get(PathUtil.extractExtension(name));
-    if (contentType != null)
-      part.setHeader("Content-Type", contentType);
+  public synchronized void rename(String newName) throws MessagingException {
+    awaitUpload();
+    String oldName = this.name;
+    updateMetadata(newName, time);
+    this.absolutePath = makeAbsolutePath();
+    parent.putChild(oldName, this);
+  }
 
-    newMsg.setSentDate(new Date());
-    replaceContainedMessage(newMsg);
+  /**
+   * Truncates the local copy and uploads the file. Only the data that is kept needs to be fetched first; of a chunked
+   * file just the chunk holding the new end of file, which is uploaded along with a new manifest.
+   */
+  public synchronized void truncate(long length) throws MessagingException, IOException {
+    awaitUpload();
+    awaitReadAhead(0, Long.MAX_VALUE / 2);
+    awaitDownload(Long.MAX_VALUE);
+
+    if (this.file == null) {
+      if (getSize() == 0)
+        createEmptyCopy(length);
+      else if (isRangeFetchable())
+        createSparseCopy();
+      else
+        download();
+    }
+
+    long oldLength = this.file.length();
+    long keep = Math.min(oldLength, length);
+    try {
+      if (isChunked())
+        fetchChunks(keep, 1);
+      else
+        fetchRange(0, keep); // the whole content is uploaded
+    } finally {
+      releaseChannel();
+    }
+    if (isChunked() && keep % chunkSize != 0)
+      dirtyChunks.set(getChunkIndex(keep));
+
+    RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+
+    markModified(keep, length, oldLength);
+    if (this.fetchedBlocks != null && keep < oldLength) {
+      int blockSize = getBlockSize();
+      fetchedBlocks.clear((int) ((length + blockSize - 1) / blockSize), (int) ((oldLength + blockSize - 1) / blockSize));
+    }
+    flush();
   }
 
   public Message getMessage() {
     return msg;
   }
 
-  public void moveTo(IMAPDirectory dest) throws MessagingException {
-    // Make a copy...
-    parent.getFolder().copyMessages(new Message[]{msg}, dest.getFolder());
-    dest.clearChildren();
+  /**
+   * Determines whether the file is stored in exactly the given messages
+   * @param manifest the message of the file, being the manifest if the file is chunked
+   * @param chunkMessages the chunk messages of a chunked file by index, or null
+   * @param record the metadata record of the file, or null
+   * @return true if this file is made up of these messages
+   */
+  boolean isStoredIn(Message manifest, Map<Integer, Message> chunkMessages, Message record) {
+    if (msg != manifest || metaMsg != record)
+      return false;
 
-    // ... and remove this
-    msg.setFlag(Flags.Flag.DELETED, true);
-    parent.expunge();
+    if (!isChunked())
+      return chunkMessages == null;
+
+    if (chunkMessages == null || chunkMessages.size() != chunks.length)
+      return false;
+
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] == null || chunks[i].getMessage() != chunkMessages.get(i))
+        return false;
+    }
+    return true;
   }
 
-  public void delete() throws MessagingException {
-    if (this.file != null) {
-      this.file.delete();
+  private Message[] getAllMessages() {
+    List<Message> messages = new ArrayList<Message>();
+    messages.add(msg);
+    if (isChunked()) {
+      for (IMAPChunk chunk : chunks) {
+        if (chunk != null)
+          messages.add(chunk.getMessage());
+      }
+    }
+    return messages.toArray(new Message[messages.size()]);
+  }
+
+  /**
+   * Moves this file to another directory
+   * @param dest the destination directory
+   * @return the file in the destination, which is this entry unless the moved messages are not known and the
+   * destination has been listed again
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  public synchronized IMAPFile moveTo(IMAPDirectory dest) throws MessagingException {
+    awaitUpload();
+    IMAPDirectory source = parent;
+    String messageId = ((MimeMessage) msg).getMessageID(); // the moved original may be gone afterwards
+    Message[] moved = source.moveMessages(getAllMessages(), dest);
+    source.removeChild(this);
+
+    if (moved == null) {
+      // The metadata record refers to the UID in the old folder, and is stored anew on the file found
+      if (metaMsg != null)
+        source.removeMessages(new Message[]{metaMsg});
+
+      IMAPFile file = null;
+      for (IMAPEntry entry : dest.getChildren(false)) {
+        if (entry instanceof IMAPFile && isSameFile((IMAPFile) entry, messageId))
+          file = (IMAPFile) entry;
+      }
+      if (file == null)
+        throw new MessagingException("Moved file '" + name + "' not found in '" + dest.getAbsoluteName() + "'");
+
+      if (metaMsg != null)
+        file.restoreMetadata(name, time);
+      return file;
+    }
+
+    // The messages are known in the destination, so this entry moves along with its local copy and attributes
+    this.msg = moved[0];
+    int next = 1;
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null)
+        chunks[i] = chunks[i].movedTo(isChunked() ? moved[next++] : msg, dest);
+    }
+
+    this.parent = dest;
+    this.absolutePath = makeAbsolutePath();
+
+    // The metadata record refers to the UID in the old folder, so it is stored anew
+    if (metaMsg != null) {
+      source.removeMessages(new Message[]{metaMsg});
+      this.metaMsg = null;
+      updateMetadata(name, time);
     }
-    msg.setFlag(Flags.Flag.DELETED, true);
-    parent.expunge();
+
+    dest.putChild(null, this);
+    return this;
+  }
+
+  /**
+   * Determines whether another entry is a copy of this file, having the same file id or, if not chunked, a message
+   * with the same Message-ID
+   * @param other the other entry
+   * @param messageId the Message-ID of the message of this file
+   */
+  private boolean isSameFile(IMAPFile other, String messageId) throws MessagingException {
+    if (isChunked())
+      return fileId.equals(other.fileId);
+
+    return messageId != null && !other.isChunked() && !other.isDetached()
+        && messageId.equals(((MimeMessage) other.msg).getMessageID());
+  }
+
+  /**
+   * Gives a file found after a move the name and time it had before, which were kept in a metadata record
+   */
+  private synchronized void restoreMetadata(String oldName, long oldTime) throws MessagingException {
+    if (oldName.equals(name) && oldTime == time)
+      return;
+
+    String listedName = this.name;
+    updateMetadata(oldName, oldTime);
+    this.absolutePath = makeAbsolutePath();
+    parent.putChild(listedName, this);
+  }
+
+  public synchronized void delete() throws MessagingException {
+    awaitUpload();
+    if (this.file != null)
+      deleteLocalCopy();
+    parent.removeMessages(getAllMessages());
+    if (metaMsg != null)
+      parent.removeMessages(new Message[]{metaMsg});
+    parent.removeChild(this);
   }
 
   public boolean isDirty() {
-    return this.file != null && this.file.lastModified() > serverLastModified;
+    return this.file != null && dirty;
   }
-}
\ No newline at end of file
+}
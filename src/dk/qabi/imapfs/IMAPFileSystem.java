@@ -20,52 +20,174 @@
 package dk.qabi.imapfs;
 
 import java.nio.ByteBuffer;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import fuse.*;
 import javax.mail.MessagingException;
-import javax.mail.Quota;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
 import dk.qabi.imapfs.util.PathUtil;
 
 /**
  * This class implements a user-level Filesystem based on FUSE and FUSE-J interacting with an IMAP server.
  *
+ * It is safe for concurrent use, so the filesystem may be mounted multi-threaded.
+ *
  * todo unable to copy file to volume with finder (cp works ok)
  * todo overwriting file seems to delete it instead? (related to the above?)
- * todo limit on diskusage - LRU?
- * todo implement splitting in multiple messages at configurable file lengths
  * todo custom icon: volicon=PATH, where PATH is path to an icon (.icns) file as well as fssubtype=N
  */
 public class IMAPFileSystem implements Filesystem {
 
   private Log log = LogFactory.getLog(getClass());
 
-  /* Attributes */
-  private FuseStatfs statfs;
-
   private static final int BLOCK_SIZE = 512;
   private IMAPDirectory rootEntry;
   private long nextFileHandle;
-  private IMAPConnection con;
+  private IMAPConnectionPool pool;
+  private PathCache pathCache = new PathCache();
+
+  /* What is mounted, without the password, to tell whether the metadata snapshot is of this mount */
+  private String source;
+
+  /* Uploads flushed files in the background, or null if flush uploads */
+  private WriteBackQueue writeBack;
+
+  /* Watches recently listed directories for changes on the server, or null if listing always asks the server */
+  private FolderWatcher watcher;
+
+  /* Entries known in the tree as last counted for statfs, or -1 if never counted */
+  private volatile long entryCount = -1;
+
+  /* The virtual directory showing the state of the file system */
+  private ControlDirectory control = new ControlDirectory(this);
+
+  /* Open files by file handle */
+  private Map<Long, OpenFile> openFiles = new ConcurrentHashMap<Long, OpenFile>();
+
+  private static class OpenFile {
+    IMAPFile file;
+    ReadAhead readAhead;
+
+    OpenFile(IMAPFile file) {
+      this.file = file;
+    }
+
+    synchronized ReadAhead getReadAhead() {
+      if (readAhead == null || readAhead.getFile() != file)
+        readAhead = new ReadAhead(file);
+      return readAhead;
+    }
+  }
 
   /**
    * @param url URL to connect to
    * @throws javax.mail.MessagingException when an IMAP communication occurs
    */
   public IMAPFileSystem(URL url) throws MessagingException {
-    this.con = new IMAPConnection(url);
+    this.pool = new IMAPConnectionPool(url, Configuration.getConnections());
 
     /* Create a tree structure to represent the file system */
-    this.rootEntry = new IMAPDirectory(con.getRootFolder(), null);
+    this.rootEntry = new IMAPDirectory(pool);
+
+    String userinfo = url.getUserInfo();
+    String user = userinfo != null ? userinfo.split(":")[0] : System.getProperty("imapfs.username");
+    this.source = url.getProtocol() + "://" + user + "@" + url.getHost() + url.getPath();
+
+    File snapshot = Configuration.getSnapshotFile();
+    if (snapshot != null && MetadataSnapshot.load(snapshot, source, rootEntry))
+      MetadataSnapshot.revalidate(rootEntry);
+
+    if (Configuration.isWriteBack())
+      this.writeBack = new WriteBackQueue();
+
+    if (Configuration.getIdleConnections() > 0)
+      this.watcher = new FolderWatcher(url, Configuration.getIdleConnections());
 
     log.info("IMAPFS Initialized ("+ url.getHost() + ")");
 
   }
 
+  /**
+   * Constructor for a file system over a tree that is already built, without connections, e.g. for benchmarks
+   * @param root the root directory
+   */
+  IMAPFileSystem(IMAPDirectory root) {
+    this.rootEntry = root;
+  }
+
+  /**
+   * Uploads what has not been uploaded yet and closes the connections
+   * @throws MessagingException if IMAP communication goes wrong
+   */
+  public void close() throws MessagingException {
+    if (watcher != null)
+      watcher.close();
+    if (writeBack != null)
+      writeBack.close();
+    ExpungeScheduler.getInstance().expungeAll();
+
+    File snapshot = Configuration.getSnapshotFile();
+    if (snapshot != null) {
+      try {
+        MetadataSnapshot.save(snapshot, source, rootEntry);
+      } catch (IOException e) {
+        log.warn("Error saving metadata snapshot", e);
+      }
+    }
+
+    pool.close();
+  }
+
+  /**
+   * @return the background uploader, or null if files are uploaded when flushed
+   */
+  WriteBackQueue getWriteBackQueue() {
+    return writeBack;
+  }
+
+  IMAPDirectory getRoot() {
+    return rootEntry;
+  }
+
+  IMAPConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Uploads all files waiting to be uploaded in the background, and expunges all messages waiting to be expunged
+   */
+  void flushAll() {
+    if (writeBack != null)
+      writeBack.completeAll();
+    ExpungeScheduler.getInstance().expungeAll();
+  }
+
+  /**
+   * Refuses changes to the control directory
+   */
+  private static void checkNotControl(String path) throws FuseException {
+    if (ControlDirectory.handles(path))
+      throw new FuseException("'" + path + "' cannot be changed").initErrno(FuseException.EACCES);
+  }
+
+  /**
+   * Uploads a file now if it is waiting to be uploaded in the background
+   */
+  private void completeWriteBack(IMAPEntry entry) throws MessagingException, IOException {
+    if (writeBack != null && entry instanceof IMAPFile)
+      writeBack.complete((IMAPFile) entry);
+  }
+
   public FuseStat getattr(String absolutePath) throws FuseException {
+    if (ControlDirectory.handles(absolutePath))
+      return control.getattr(absolutePath);
+
     IMAPEntry entry = findEntry(absolutePath);
 
     FuseStat stat = new FuseStat();
@@ -81,7 +203,7 @@ public class IMAPFileSystem implements Filesystem {
       log.error("IMAP error determining size", e);
       throw new FuseException("IMAP error determining file attributes").initErrno(FuseException.ECOMM);
     }
-    stat.blocks = (int) stat.size / BLOCK_SIZE;
+    stat.blocks = (int) ((stat.size + BLOCK_SIZE - 1) / BLOCK_SIZE);
 
     return stat;
   }
@@ -90,18 +212,24 @@ public class IMAPFileSystem implements Filesystem {
    * Return an array with entries to the content the directory passed as a parameter
    */
   public FuseDirEnt[] getdir(String absolutePath) throws FuseException {
+    if (ControlDirectory.handles(absolutePath))
+      return control.getdir(absolutePath);
+
     FuseDirEnt[] dirEntries;
     IMAPDirectory dir = (IMAPDirectory)findEntry(absolutePath);
 
     if (dir.isDirectory()) {
       IMAPEntry[] children;
       try {
-        children = dir.getChildren(true);
+        // Watched directories are known to be up to date unless marked otherwise
+        children = dir.getChildren(watcher == null || !watcher.isWatched(dir));
+        if (watcher != null)
+          watcher.listed(dir);
       } catch (MessagingException e) {
         log.error("Error getting children", e);
         throw new FuseException("Error getting children: " + e.getMessage()).initErrno(FuseException.ENOENT);
       }
-      dirEntries= new FuseDirEnt[children.length];
+      dirEntries= new FuseDirEnt[dir.isRoot() ? children.length + 1 : children.length];
 
       for (int i = 0; i < children.length; i++) {
         IMAPEntry child = children[i];
@@ -109,6 +237,8 @@ public class IMAPFileSystem implements Filesystem {
         dirEntries[i].name = child.getName();
         dirEntries[i].mode = child.isDirectory() ? FuseFtype.TYPE_DIR : FuseFtype.TYPE_FILE;
       }
+      if (dir.isRoot())
+        dirEntries[children.length] = ControlDirectory.getDirEnt();
     } else {
       dirEntries = new FuseDirEnt[0];
     }
@@ -116,20 +246,31 @@ public class IMAPFileSystem implements Filesystem {
     return dirEntries;
   }
 
-  private IMAPEntry findEntry(String path) throws FuseException {
+  IMAPEntry findEntry(String path) throws FuseException {
     IMAPEntry entry;
     if (path == null) {
       entry = null;
     } else {
       if ("/".equals(path))
         entry = rootEntry;
-      else
-        try {
-          entry = rootEntry.get(path.substring(1));
-        } catch (MessagingException e) {
-          log.error("Error finding entry", e);
-          throw new FuseException("Error finding entry: " + e.getMessage()).initErrno(FuseException.ENOENT);
+      else {
+        entry = pathCache.get(path);
+        boolean hit = entry != null || pathCache.isMissing(path);
+        Metrics.getInstance().lookup(hit);
+        if (!hit) {
+          try {
+            entry = rootEntry.get(path.substring(1));
+          } catch (MessagingException e) {
+            log.error("Error finding entry", e);
+            throw new FuseException("Error finding entry: " + e.getMessage()).initErrno(FuseException.ENOENT);
+          }
+
+          if (entry != null)
+            pathCache.put(path, entry);
+          else
+            pathCache.putMissing(path);
         }
+      }
     }
 
     if (entry == null) {
@@ -141,15 +282,89 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public long open(String path, int flags) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    if (ControlDirectory.handles(path)) {
+      long fh;
+      synchronized (this) {
+        fh = ++nextFileHandle;
+      }
+      control.open(path, fh);
+      return fh;
+    }
+
+    IMAPEntry entry = findAttachedEntry(path);
 
     if (entry.isDirectory()) {
       log.info("Cannot open directory entry");
       throw new FuseException("Cannot open directory entry").initErrno(FuseException.EACCES);
     }
 
+    IMAPFile file = (IMAPFile) entry;
+    file.open();
+
+    long fh;
     synchronized (this) {
-      return ++nextFileHandle;
+      fh = ++nextFileHandle;
+    }
+    openFiles.put(fh, new OpenFile(file));
+    return fh;
+  }
+
+  /**
+   * Finds an entry whose data or messages are about to be used. A file loaded from the metadata snapshot is first
+   * attached to its messages by synchronizing its directory with the server.
+   */
+  IMAPEntry findAttachedEntry(String path) throws FuseException {
+    IMAPEntry entry = findEntry(path);
+
+    if (entry instanceof IMAPFile && ((IMAPFile) entry).isDetached()) {
+      try {
+        entry.parent.getChildren(true);
+      } catch (MessagingException e) {
+        log.error("IMAP error synchronizing directory of '" + path + "'", e);
+        throw new FuseException("IMAP error synchronizing directory of '" + path + "'").initErrno(FuseException.ECOMM);
+      }
+
+      if (((IMAPFile) entry).isDetached()) {
+        pathCache.invalidate(path);
+        log.debug("Path '" + path + "' no longer exists");
+        throw new FuseException("Path '" + path + "' not found").initErrno(FuseException.ENOENT);
+      }
+    }
+
+    return entry;
+  }
+
+  /**
+   * Get the file of a file handle, without resolving the path as long as the file is still the entry of the path.
+   * Otherwise the handle moves on to the entry of the path, or stays with the file if the path no longer exists.
+   */
+  private IMAPEntry findOpenEntry(String path, long fh) throws FuseException {
+    OpenFile openFile = openFiles.get(fh);
+    if (openFile == null)
+      return findEntry(path);
+
+    synchronized (openFile) {
+      if (!PathCache.isCurrent(openFile.file)) {
+        IMAPEntry entry;
+        try {
+          entry = findEntry(path);
+        } catch (FuseException e) {
+          log.debug("Open file '" + path + "' no longer exists");
+          return openFile.file;
+        }
+
+        if (entry instanceof IMAPFile && entry != openFile.file) {
+          IMAPFile file = (IMAPFile) entry;
+          file.open();
+          try {
+            openFile.file.release();
+          } catch (IOException e) {
+            log.warn("Error releasing previous entry of '" + path + "'", e);
+          }
+          openFile.file = file;
+        }
+      }
+      return openFile.file;
     }
   }
 
@@ -158,40 +373,67 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public FuseStatfs statfs() throws FuseException {
-    if (this.statfs == null) {
-
-      this.statfs = new FuseStatfs();
-      statfs.blockSize = BLOCK_SIZE;
-      statfs.files = 3; // not really known up-front
-      statfs.filesFree = 1000000;
-      statfs.namelen = 2048;
-
-      Quota quota;
+    QuotaUsage usage = QuotaUsage.getInstance();
+    boolean due = usage.isDue();
+    if (due) {
       try {
-        quota = con.getQuota();
+        usage.reconcile(pool.getQuota());
       } catch (MessagingException e) {
-        log.error("Cannot get quota", e);
-        throw new FuseException("Cannot get quota").initErrno(FuseException.EACCES);
-      }
-
-      Quota.Resource res = null;
-      if (quota != null) {
-        for (Quota.Resource r : quota.resources) {
-          if ("STORAGE".equals(r.name))
-            res = r;
+        if (!usage.isKnown()) {
+          log.error("Cannot get quota", e);
+          throw new FuseException("Cannot get quota").initErrno(FuseException.EACCES);
         }
+        log.warn("Cannot get quota, using the usage tracked locally", e);
       }
+    }
 
-      if (res != null) {
-        statfs.blocks = (int) (res.limit * 1024 / BLOCK_SIZE);
-        statfs.blocksFree = (int) (statfs.blocks - (res.usage * 1024 / BLOCK_SIZE));
-      } else {
-        statfs.blocks = 1000000000;
-        statfs.blocksFree = statfs.blocks;
-      }
+    FuseStatfs statfs = new FuseStatfs();
+    statfs.blockSize = BLOCK_SIZE;
+    statfs.namelen = 2048;
+
+    if (usage.getStorageLimit() != -1) {
+      statfs.blocks = toInt(usage.getStorageLimit() / BLOCK_SIZE);
+      statfs.blocksFree = toInt(Math.max(0, usage.getStorageLimit() - usage.getStorageUsage()) / BLOCK_SIZE);
+    } else {
+      statfs.blocks = 1000000000;
+      statfs.blocksFree = statfs.blocks;
     }
 
-    return this.statfs;
+    // Entries known in the tree, counted again as often as the quota is reconciled, and as many more as messages may
+    // be added
+    long known = entryCount;
+    if (due || known == -1) {
+      known = countEntries(rootEntry);
+      entryCount = known;
+    }
+    long files = known + 1;
+    long filesFree = 1000000;
+    if (usage.getMessageLimit() != -1)
+      filesFree = Math.max(0, usage.getMessageLimit() - usage.getMessageUsage());
+    statfs.files = toInt(files + filesFree);
+    statfs.filesFree = toInt(filesFree);
+
+    return statfs;
+  }
+
+  private static int toInt(long value) {
+    return (int) Math.min(value, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Counts the entries below a directory as currently known, without any IMAP traffic
+   */
+  private static long countEntries(IMAPDirectory dir) {
+    Map<String, IMAPEntry> children = dir.getKnownChildren();
+    if (children == null)
+      return 0;
+
+    long count = children.size();
+    for (IMAPEntry entry : children.values()) {
+      if (entry instanceof IMAPDirectory)
+        count += countEntries((IMAPDirectory) entry);
+    }
+    return count;
   }
 
   public void chmod(String path, int mode) throws FuseException {
@@ -207,6 +449,7 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public void mkdir(String path, int mode) throws FuseException {
+    checkNotControl(path);
     IMAPEntry parent = findEntry(PathUtil.extractParent(path));
 
     if (!(parent instanceof IMAPDirectory)) {
@@ -220,10 +463,13 @@ public class IMAPFileSystem implements Filesystem {
     } catch (MessagingException e) {
       log.warn("Error creating directory '"+path+"'");
       throw new FuseException("Error creating directory '"+path+"'").initErrno(FuseException.EACCES);
+    } finally {
+      pathCache.invalidate(path);
     }
   }
 
   public void mknod(String path, int mode, int rdev) throws FuseException {
+    checkNotControl(path);
     IMAPEntry parent = findEntry(PathUtil.extractParent(path));
 
     if (!(parent instanceof IMAPDirectory)) {
@@ -237,11 +483,15 @@ public class IMAPFileSystem implements Filesystem {
     } catch (MessagingException e) {
       log.warn("Error creating file '"+path+"'");
       throw new FuseException("Error creating file '"+path+"'").initErrno(FuseException.EACCES);
+    } finally {
+      pathCache.invalidate(path);
     }
   }
 
   public void rename(String from, String to) throws FuseException {
-    IMAPEntry src = findEntry(from);
+    checkNotControl(from);
+    checkNotControl(to);
+    IMAPEntry src = findAttachedEntry(from);
     IMAPEntry srcdir = findEntry(PathUtil.extractParent(from));
     IMAPEntry destdir = findEntry(PathUtil.extractParent(to));
 
@@ -261,14 +511,17 @@ public class IMAPFileSystem implements Filesystem {
     }
 
     try {
+      completeWriteBack(src);
 
       if (src instanceof IMAPDirectory) {
-        ((IMAPDirectory)src).renameTo(to);
+        ((IMAPDirectory)src).renameTo((IMAPDirectory)destdir, PathUtil.extractName(to));
+        if (watcher != null)
+          watcher.renamed();
       } else {
-        final IMAPFile file = (IMAPFile)src;
+        IMAPFile file = (IMAPFile)src;
 
         if (!srcdir.equals(destdir)) {
-          file.moveTo((IMAPDirectory)destdir);
+          file = file.moveTo((IMAPDirectory)destdir);
         }
   
         final String destName = PathUtil.extractName(to);
@@ -280,10 +533,17 @@ public class IMAPFileSystem implements Filesystem {
     } catch (MessagingException e) {
       log.error("Error renaming", e);
       throw new FuseException("Error renaming: " + e.getMessage()).initErrno(FuseException.EACCES);
+    } catch (IOException e) {
+      log.error("I/O error renaming", e);
+      throw new FuseException("I/O error renaming").initErrno(FuseException.EIO);
+    } finally {
+      pathCache.invalidate(from);
+      pathCache.invalidate(to);
     }
   }
 
   public void rmdir(String path) throws FuseException {
+    checkNotControl(path);
     IMAPDirectory dir = (IMAPDirectory)findEntry(path);
 
     if (dir.isDirectory()) {
@@ -292,12 +552,18 @@ public class IMAPFileSystem implements Filesystem {
       } catch (MessagingException e) {
         log.warn("Error deleting directory '"+path+"'");
         throw new FuseException("Error deleting directory '"+path+"'").initErrno(FuseException.EACCES);
+      } finally {
+        pathCache.invalidate(path);
       }
     }
   }
 
   public void truncate(String path, long size) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    if (ControlDirectory.handles(path)) {
+      control.truncate(path);
+      return;
+    }
+    IMAPEntry entry = findAttachedEntry(path);
 
     if (!(entry instanceof IMAPFile)) {
       log.warn("Cannot truncate directory entry");
@@ -305,8 +571,8 @@ public class IMAPFileSystem implements Filesystem {
     }
 
     try {
+      completeWriteBack(entry);
       ((IMAPFile)entry).truncate(size);
-      this.statfs = null;
     } catch (Exception e) {
       log.error("Error updating file", e);
       throw new FuseException("Error updating file").initErrno(FuseException.EIO); // Map to better error code?
@@ -314,7 +580,8 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public void utime(String path, int atime, int mtime) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    checkNotControl(path);
+    IMAPEntry entry = findAttachedEntry(path);
 
     if (!(entry instanceof IMAPFile)) {
       log.warn("Cannot update time on directory entry");
@@ -322,23 +589,34 @@ public class IMAPFileSystem implements Filesystem {
     }
 
     try {
+      completeWriteBack(entry);
       ((IMAPFile)entry).setTime(mtime*1000);
-    } catch (MessagingException e) {
+    } catch (Exception e) {
       log.error("Error updating file", e);
       throw new FuseException("Error updating file").initErrno(FuseException.EIO); // Map to better error code?
     }
   }
 
   public void flush(String path, long fh) throws FuseException {
-    sync(path);
+    if (control.isOpen(fh))
+      return;
+    if (writeBack != null) {
+      IMAPEntry entry = findOpenEntry(path, fh);
+      if (entry instanceof IMAPFile && ((IMAPFile) entry).isDirty())
+        writeBack.enqueue((IMAPFile) entry);
+    } else {
+      sync(path, fh);
+    }
   }
 
   public void fsync(String path, long fh, boolean isDatasync) throws FuseException {
-    sync(path);
+    if (control.isOpen(fh))
+      return;
+    sync(path, fh);
   }
 
-  private void sync(String path) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+  private void sync(String path, long fh) throws FuseException {
+    IMAPEntry entry = findOpenEntry(path, fh);
 
     if (!(entry instanceof IMAPFile)) {
       log.warn("Cannot fsync directory entry");
@@ -348,8 +626,10 @@ public class IMAPFileSystem implements Filesystem {
     IMAPFile file = (IMAPFile) entry;
 
     try {
-      file.flush();
-      this.statfs = null;
+      if (writeBack != null)
+        writeBack.complete(file);
+      else
+        file.flush();
     } catch (Exception e) {
       log.error("I/O error syncing data", e);
       throw new FuseException("I/O error syncing data").initErrno(FuseException.EIO); // Map to better error code?
@@ -361,7 +641,8 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public void unlink(String path) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    checkNotControl(path);
+    IMAPEntry entry = findAttachedEntry(path);
 
     if (!(entry instanceof IMAPFile)) {
       log.warn("Cannot read data from directory entry");
@@ -369,20 +650,44 @@ public class IMAPFileSystem implements Filesystem {
     }
 
     IMAPFile file = (IMAPFile) entry;
+    if (writeBack != null)
+      writeBack.cancel(file);
 
     try {
       file.delete();
     } catch (MessagingException e) {
       log.error("IMAP error deleting message of '"+path+"'", e);
       throw new FuseException("IMAP error deleting message of '"+path+"'").initErrno(FuseException.ECOMM); // Map to better error code?
+    } finally {
+      pathCache.invalidate(path);
     }
   }
 
   public void release(String path, long fh, int flags) throws FuseException {
+    if (control.isOpen(fh)) {
+      control.release(fh);
+      return;
+    }
+
+    OpenFile openFile = openFiles.remove(fh);
+    if (openFile == null)
+      return;
+
+    try {
+      openFile.file.release();
+    } catch (IOException e) {
+      log.error("I/O error releasing '"+path+"'", e);
+      throw new FuseException("I/O error releasing '"+path+"'").initErrno(FuseException.EIO);
+    }
   }
 
   public void read(String path, long fh, ByteBuffer buf, long offset) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    if (control.isOpen(fh)) {
+      control.read(fh, buf, offset);
+      return;
+    }
+
+    IMAPEntry entry = findOpenEntry(path, fh);
 
     if (!(entry instanceof IMAPFile)) {
       log.warn("Cannot read data from directory entry");
@@ -393,6 +698,10 @@ public class IMAPFileSystem implements Filesystem {
 
     try {
       file.readData(buf, offset);
+
+      OpenFile openFile = openFiles.get(fh);
+      if (openFile != null)
+        openFile.getReadAhead().read(offset, buf.position());
     } catch (MessagingException e) {
       log.error("IMAP error reading data of '"+path+"'", e);
       throw new FuseException("IMAP error reading data of '"+path+"'").initErrno(FuseException.ECOMM); // Map to better error code?
@@ -403,7 +712,12 @@ public class IMAPFileSystem implements Filesystem {
   }
 
   public void write(String path, long fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException {
-    IMAPEntry entry = findEntry(path);
+    if (control.isOpen(fh)) {
+      control.write(fh, buf);
+      return;
+    }
+
+    IMAPEntry entry = findOpenEntry(path, fh);
 
     if (isWritepage) {
       log.error("writepage not supported");
@@ -25,6 +25,7 @@ import fuse.*;
 import javax.mail.MessagingException;
 
 import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
 
 /**
  * This class has the main method and thereby implements the application for mounting an IMAP filesystem.
@@ -44,13 +45,35 @@ public class IMAPMount {
     final URL url = new URL(null, urlSpec, new IMAPStreamHandler());
     final String mountpoint = args[1];
 
-    String[] fs_args = new String[4];
-    fs_args[0] = "-f";
-    fs_args[1] = "-s";
-    fs_args[2] = mountpoint;
-    fs_args[3] = "-ovolname="+ url.getHost() + ",fssubtype=7";
+    String[] fs_args;
+    if (Configuration.isMultithreaded()) {
+      fs_args = new String[3];
+      fs_args[0] = "-f";
+      fs_args[1] = mountpoint;
+      fs_args[2] = "-ovolname="+ url.getHost() + ",fssubtype=7";
+    } else {
+      fs_args = new String[4];
+      fs_args[0] = "-f";
+      fs_args[1] = "-s";
+      fs_args[2] = mountpoint;
+      fs_args[3] = "-ovolname="+ url.getHost() + ",fssubtype=7";
+    }
 
-    Filesystem imapfs = new LoggingFilesystem(new IMAPFileSystem(url), LogFactory.getLog("dk.qabi.imapfs"));
+    IMAPFileSystem fs = new IMAPFileSystem(url);
+    Filesystem imapfs = fs;
+    if (Configuration.isMetrics()) {
+      imapfs = new MetricsFilesystem(imapfs);
+      Metrics.getInstance().register();
+    }
+    TraceRecorder trace = null;
+    if (Configuration.getTraceFile() != null) {
+      trace = new TraceRecorder(Configuration.getTraceFile(), Configuration.getTraceFileSize(),
+          Configuration.getTraceFiles());
+      imapfs = new TraceFilesystem(imapfs, trace);
+    }
+    imapfs = new LoggingFilesystem(imapfs, LogFactory.getLog("dk.qabi.imapfs"));
+    if (Configuration.getMetricsDumpInterval() > 0)
+      Metrics.getInstance().startDump(Configuration.getMetricsDumpInterval());
 
 
     File m = new File(mountpoint);
@@ -61,6 +84,10 @@ public class IMAPMount {
       FuseMount.mount(fs_args, imapfs);
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      if (trace != null)
+        trace.close();
+      fs.close();
     }
 
   }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in buckets of powers of two microseconds, plus the number of calls that failed. Recording is
+ * lock-free and allocates nothing, so it can be done on every call; percentiles are only as exact as the buckets.
+ */
+class LatencyHistogram {
+
+  /* Bucket i holds latencies below 2^(i+1) microseconds, the last one everything longer */
+  private static final int BUCKETS = 40;
+
+  private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private AtomicLong total = new AtomicLong();
+  private AtomicLong errors = new AtomicLong();
+
+  /**
+   * @param nanos latency of a call, in nanoseconds
+   * @param failed whether the call failed
+   */
+  void record(long nanos, boolean failed) {
+    long micros = nanos / 1000;
+    int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    counts.incrementAndGet(bucket);
+    total.addAndGet(micros);
+    if (failed)
+      errors.incrementAndGet();
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += counts.get(i);
+    return count;
+  }
+
+  long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * @return the mean latency in microseconds, or 0 if nothing has been recorded
+   */
+  long getMean() {
+    long count = getCount();
+    return count > 0 ? total.get() / count : 0;
+  }
+
+  /**
+   * @param fraction e.g. 0.99 for the 99th percentile
+   * @return the upper bound of the bucket holding the percentile, in microseconds, or 0 if nothing has been recorded
+   */
+  long getPercentile(double fraction) {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return 2L << i;
+    }
+    return 2L << (BUCKETS - 1);
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+    total.set(0);
+    errors.set(0);
+  }
+
+  public String toString() {
+    return "count=" + getCount() + " errors=" + getErrors() + " mean=" + getMean() + "us p50<" + getPercentile(0.5)
+        + "us p99<" + getPercentile(0.99) + "us";
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.mail.MessagingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The metadata of the directory tree - folder names, UIDVALIDITY, and the names, sizes, times and UIDs of files -
+ * saved on unmount and loaded on mount, so that the tree can be browsed right away. Directories loaded from the
+ * snapshot are synchronized with the server in the background, or when first changed or read from.
+ */
+class MetadataSnapshot {
+  private static Log log = LogFactory.getLog(MetadataSnapshot.class);
+
+  private static final String MAGIC = "IMAPFS snapshot";
+  private static final int VERSION = 1;
+
+  /**
+   * Loads the snapshot into the root directory
+   * @param file the snapshot file
+   * @param source what the file system is mounted from, which must be what the snapshot was saved from
+   * @param root the root directory
+   * @return true if loaded
+   */
+  static boolean load(File file, String source, IMAPDirectory root) {
+    if (!file.exists())
+      return false;
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+      try {
+        if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION || !source.equals(in.readUTF())
+            || !root.getFolderName().equals(in.readUTF())) {
+          log.info("Ignoring metadata snapshot " + file + " of another mount or version");
+          return false;
+        }
+
+        readDirectory(in, root);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      log.warn("Error loading metadata snapshot " + file, e);
+      return false;
+    }
+
+    log.info("Loaded metadata snapshot " + file);
+    return true;
+  }
+
+  private static void readDirectory(DataInputStream in, IMAPDirectory dir) throws IOException {
+    long uidValidity = in.readLong();
+    int fileCount = in.readInt();
+    if (fileCount < 0)
+      return;
+
+    Map<String, IMAPEntry> entries = new HashMap<String, IMAPEntry>();
+    for (int i = 0; i < fileCount; i++) {
+      String name = in.readUTF();
+      long size = in.readLong();
+      long time = in.readLong();
+      long uid = in.readLong();
+      entries.put(name, new IMAPFile(name, size, time, uid, dir));
+    }
+
+    int dirCount = in.readInt();
+    for (int i = 0; i < dirCount; i++) {
+      String name = in.readUTF();
+      IMAPDirectory child = new IMAPDirectory(in.readUTF(), name, dir);
+      readDirectory(in, child);
+      entries.put(name, child);
+    }
+
+    dir.restore(uidValidity, entries);
+  }
+
+  /**
+   * Saves the snapshot of the tree, replacing the previous one
+   * @param file the snapshot file
+   * @param source what the file system is mounted from
+   * @param root the root directory
+   * @throws IOException if I/O errors occur
+   */
+  static void save(File file, String source, IMAPDirectory root) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+    try {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(source);
+      out.writeUTF(root.getFolderName());
+      writeDirectory(out, root);
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file))
+        throw new IOException("Could not replace " + file);
+    }
+    log.info("Saved metadata snapshot " + file);
+  }
+
+  private static void writeDirectory(DataOutputStream out, IMAPDirectory dir) throws IOException {
+    out.writeLong(dir.getUidValidity());
+
+    Map<String, IMAPEntry> children = dir.getKnownChildren();
+    if (children == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    List<IMAPFile> files = new ArrayList<IMAPFile>();
+    List<IMAPDirectory> dirs = new ArrayList<IMAPDirectory>();
+    for (IMAPEntry entry : children.values()) {
+      if (entry instanceof IMAPDirectory) {
+        dirs.add((IMAPDirectory) entry);
+      } else {
+        IMAPFile file = (IMAPFile) entry;
+        try {
+          // Files not on the server (yet) are left for the directory to find when synchronized
+          if (file.getUID() != -1 && file.getStoredSize() != -1)
+            files.add(file);
+        } catch (MessagingException e) {
+          log.debug("No UID of '" + file.getAbsoluteName() + "'", e);
+        }
+      }
+    }
+
+    out.writeInt(files.size());
+    for (IMAPFile file : files) {
+      out.writeUTF(file.getName());
+      out.writeLong(file.getStoredSize());
+      try {
+        out.writeLong(file.getTime());
+        out.writeLong(file.getUID());
+      } catch (MessagingException e) {
+        throw new IOException("No UID of '" + file.getAbsoluteName() + "'");
+      }
+    }
+
+    out.writeInt(dirs.size());
+    for (IMAPDirectory child : dirs) {
+      out.writeUTF(child.getName());
+      out.writeUTF(child.getFolderName());
+      writeDirectory(out, child);
+    }
+  }
+
+  /**
+   * Synchronizes the directories loaded from the snapshot with the server in a background thread, breadth first
+   * @param root the root directory
+   */
+  static void revalidate(final IMAPDirectory root) {
+    Thread revalidator = new Thread("Snapshot revalidation") {
+      public void run() {
+        LinkedList<IMAPDirectory> queue = new LinkedList<IMAPDirectory>();
+        queue.add(root);
+
+        while (!queue.isEmpty()) {
+          IMAPDirectory dir = queue.removeFirst();
+          if (dir.getKnownChildren() == null)
+            continue;
+
+          try {
+            if (!dir.isSynchronized())
+              dir.getChildren(true);
+          } catch (MessagingException e) {
+            log.warn("Error synchronizing '" + dir.getAbsoluteName() + "'", e);
+          }
+
+          Map<String, IMAPEntry> children = dir.getKnownChildren();
+          if (children != null) {
+            for (IMAPEntry entry : children.values()) {
+              if (entry instanceof IMAPDirectory)
+                queue.add((IMAPDirectory) entry);
+            }
+          }
+        }
+        log.info("Metadata snapshot revalidated");
+      }
+    };
+    revalidator.setDaemon(true);
+    revalidator.start();
+  }
+}
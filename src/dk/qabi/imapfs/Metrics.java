@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counters of what the file system does: latencies of the file system operations as recorded by
+ * {@link MetricsFilesystem}, IMAP commands issued, bytes transferred, and hits and misses of the local copies and the
+ * path cache. Counting is cheap enough to be done always; the counters are exposed over JMX once
+ * {@link #register} has been called, and can be logged periodically by {@link #startDump}.
+ *
+ * IMAP commands are counted where this file system issues them, so commands JavaMail issues by itself, e.g. to load
+ * the content of a message, are not.
+ */
+public class Metrics implements MetricsMBean {
+  private static Metrics instance = new Metrics();
+
+  static Metrics getInstance() {
+    return instance;
+  }
+
+  private Log log = LogFactory.getLog(getClass());
+
+  private Map<String, LatencyHistogram> operations = new ConcurrentHashMap<String, LatencyHistogram>();
+  private Map<String, AtomicLong> commands = new ConcurrentHashMap<String, AtomicLong>();
+
+  private AtomicLong bytesFetched = new AtomicLong();
+  private AtomicLong bytesAppended = new AtomicLong();
+  private AtomicLong readHits = new AtomicLong();
+  private AtomicLong readMisses = new AtomicLong();
+  private AtomicLong pathCacheHits = new AtomicLong();
+  private AtomicLong pathCacheMisses = new AtomicLong();
+  private AtomicLong evictions = new AtomicLong();
+
+  private Metrics() {
+  }
+
+  /**
+   * Get the histogram of an operation, which callers should keep rather than look up for every call
+   * @param name name of the operation
+   * @return the histogram
+   */
+  synchronized LatencyHistogram getOperation(String name) {
+    LatencyHistogram h = operations.get(name);
+    if (h == null) {
+      h = new LatencyHistogram();
+      operations.put(name, h);
+    }
+    return h;
+  }
+
+  /**
+   * Counts an IMAP command issued
+   * @param name the command, e.g. "UID FETCH"
+   */
+  void command(String name) {
+    AtomicLong count = commands.get(name);
+    if (count == null) {
+      synchronized (this) {
+        count = commands.get(name);
+        if (count == null) {
+          count = new AtomicLong();
+          commands.put(name, count);
+        }
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  void fetched(long bytes) {
+    bytesFetched.addAndGet(bytes);
+  }
+
+  void appended(long bytes) {
+    bytesAppended.addAndGet(bytes);
+  }
+
+  /**
+   * Counts a read of a file
+   * @param hit whether it was served from the local copy without fetching anything
+   */
+  void read(boolean hit) {
+    (hit ? readHits : readMisses).incrementAndGet();
+  }
+
+  /**
+   * Counts a lookup of a path
+   * @param hit whether the path cache knew the answer
+   */
+  void lookup(boolean hit) {
+    (hit ? pathCacheHits : pathCacheMisses).incrementAndGet();
+  }
+
+  void evicted(int count) {
+    evictions.addAndGet(count);
+  }
+
+  public String[] getOperations() {
+    Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(operations);
+    String[] lines = new String[sorted.size()];
+    int i = 0;
+    for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet())
+      lines[i++] = e.getKey() + ": " + e.getValue();
+    return lines;
+  }
+
+  public String[] getCommands() {
+    Map<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(commands);
+    String[] lines = new String[sorted.size()];
+    int i = 0;
+    for (Map.Entry<String, AtomicLong> e : sorted.entrySet())
+      lines[i++] = e.getKey() + ": " + e.getValue().get();
+    return lines;
+  }
+
+  public long getCommandCount() {
+    long count = 0;
+    for (AtomicLong c : commands.values())
+      count += c.get();
+    return count;
+  }
+
+  public long getBytesFetched() {
+    return bytesFetched.get();
+  }
+
+  public long getBytesAppended() {
+    return bytesAppended.get();
+  }
+
+  public long getReadHits() {
+    return readHits.get();
+  }
+
+  public long getReadMisses() {
+    return readMisses.get();
+  }
+
+  public long getPathCacheHits() {
+    return pathCacheHits.get();
+  }
+
+  public long getPathCacheMisses() {
+    return pathCacheMisses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getDiskUsage() {
+    return DiskStore.getInstance().getUsage();
+  }
+
+  public String getReport() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("operations:\n");
+    for (String line : getOperations())
+      sb.append("  ").append(line).append('\n');
+    sb.append("IMAP commands (").append(getCommandCount()).append("):\n");
+    for (String line : getCommands())
+      sb.append("  ").append(line).append('\n');
+    sb.append("bytes fetched=").append(getBytesFetched()).append(" appended=").append(getBytesAppended()).append('\n');
+    sb.append("reads from local copy hits=").append(getReadHits()).append(" misses=").append(getReadMisses()).append('\n');
+    sb.append("path cache hits=").append(getPathCacheHits()).append(" misses=").append(getPathCacheMisses()).append('\n');
+    sb.append("disk usage=").append(getDiskUsage()).append(" evictions=").append(getEvictions());
+    return sb.toString();
+  }
+
+  public void reset() {
+    for (LatencyHistogram h : operations.values())
+      h.reset();
+    for (AtomicLong c : commands.values())
+      c.set(0);
+    bytesFetched.set(0);
+    bytesAppended.set(0);
+    readHits.set(0);
+    readMisses.set(0);
+    pathCacheHits.set(0);
+    pathCacheMisses.set(0);
+    evictions.set(0);
+  }
+
+  /**
+   * Registers the counters with the platform MBean server as <code>dk.qabi.imapfs:type=Metrics</code>
+   */
+  void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("dk.qabi.imapfs:type=Metrics"));
+    } catch (Exception e) {
+      log.warn("Cannot register metrics with JMX", e);
+    }
+  }
+
+  /**
+   * Logs the report in a background thread at the given interval
+   * @param interval milliseconds between reports
+   */
+  void startDump(final long interval) {
+    Thread dumper = new Thread("Metrics dump") {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(interval);
+          } catch (InterruptedException e) {
+            return;
+          }
+          log.info("metrics\n" + getReport());
+        }
+      }
+    };
+    dumper.setDaemon(true);
+    dumper.start();
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import fuse.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Filesystem decorator that records the latency of every call, and whether it failed, in a histogram per operation
+ * of {@link Metrics}
+ */
+public class MetricsFilesystem implements Filesystem {
+  private Filesystem fs;
+
+  private LatencyHistogram getattrLatency;
+  private LatencyHistogram readlinkLatency;
+  private LatencyHistogram getdirLatency;
+  private LatencyHistogram mknodLatency;
+  private LatencyHistogram mkdirLatency;
+  private LatencyHistogram unlinkLatency;
+  private LatencyHistogram rmdirLatency;
+  private LatencyHistogram symlinkLatency;
+  private LatencyHistogram renameLatency;
+  private LatencyHistogram linkLatency;
+  private LatencyHistogram chmodLatency;
+  private LatencyHistogram chownLatency;
+  private LatencyHistogram truncateLatency;
+  private LatencyHistogram utimeLatency;
+  private LatencyHistogram statfsLatency;
+  private LatencyHistogram openLatency;
+  private LatencyHistogram readLatency;
+  private LatencyHistogram writeLatency;
+  private LatencyHistogram flushLatency;
+  private LatencyHistogram releaseLatency;
+  private LatencyHistogram fsyncLatency;
+
+  public MetricsFilesystem(Filesystem delegate) {
+    this.fs = delegate;
+
+    Metrics metrics = Metrics.getInstance();
+    getattrLatency = metrics.getOperation("getattr");
+    readlinkLatency = metrics.getOperation("readlink");
+    getdirLatency = metrics.getOperation("getdir");
+    mknodLatency = metrics.getOperation("mknod");
+    mkdirLatency = metrics.getOperation("mkdir");
+    unlinkLatency = metrics.getOperation("unlink");
+    rmdirLatency = metrics.getOperation("rmdir");
+    symlinkLatency = metrics.getOperation("symlink");
+    renameLatency = metrics.getOperation("rename");
+    linkLatency = metrics.getOperation("link");
+    chmodLatency = metrics.getOperation("chmod");
+    chownLatency = metrics.getOperation("chown");
+    truncateLatency = metrics.getOperation("truncate");
+    utimeLatency = metrics.getOperation("utime");
+    statfsLatency = metrics.getOperation("statfs");
+    openLatency = metrics.getOperation("open");
+    readLatency = metrics.getOperation("read");
+    writeLatency = metrics.getOperation("write");
+    flushLatency = metrics.getOperation("flush");
+    releaseLatency = metrics.getOperation("release");
+    fsyncLatency = metrics.getOperation("fsync");
+  }
+
+  public FuseStat getattr(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseStat result = fs.getattr(path);
+      failed = false;
+      return result;
+    } finally {
+      getattrLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public String readlink(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      String result = fs.readlink(path);
+      failed = false;
+      return result;
+    } finally {
+      readlinkLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public FuseDirEnt[] getdir(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseDirEnt[] result = fs.getdir(path);
+      failed = false;
+      return result;
+    } finally {
+      getdirLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void mknod(String path, int mode, int rdev) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.mknod(path, mode, rdev);
+      failed = false;
+    } finally {
+      mknodLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void mkdir(String path, int mode) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.mkdir(path, mode);
+      failed = false;
+    } finally {
+      mkdirLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void unlink(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.unlink(path);
+      failed = false;
+    } finally {
+      unlinkLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void rmdir(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.rmdir(path);
+      failed = false;
+    } finally {
+      rmdirLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void symlink(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.symlink(from, to);
+      failed = false;
+    } finally {
+      symlinkLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void rename(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.rename(from, to);
+      failed = false;
+    } finally {
+      renameLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void link(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.link(from, to);
+      failed = false;
+    } finally {
+      linkLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void chmod(String path, int mode) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.chmod(path, mode);
+      failed = false;
+    } finally {
+      chmodLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void chown(String path, int uid, int gid) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.chown(path, uid, gid);
+      failed = false;
+    } finally {
+      chownLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void truncate(String path, long size) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.truncate(path, size);
+      failed = false;
+    } finally {
+      truncateLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void utime(String path, int atime, int mtime) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.utime(path, atime, mtime);
+      failed = false;
+    } finally {
+      utimeLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public FuseStatfs statfs() throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseStatfs result = fs.statfs();
+      failed = false;
+      return result;
+    } finally {
+      statfsLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public long open(String path, int flags) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      long result = fs.open(path, flags);
+      failed = false;
+      return result;
+    } finally {
+      openLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void read(String path, long fh, ByteBuffer buf, long offset) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.read(path, fh, buf, offset);
+      failed = false;
+    } finally {
+      readLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void write(String path, long fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.write(path, fh, isWritepage, buf, offset);
+      failed = false;
+    } finally {
+      writeLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void flush(String path, long fh) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.flush(path, fh);
+      failed = false;
+    } finally {
+      flushLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void release(String path, long fh, int flags) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.release(path, fh, flags);
+      failed = false;
+    } finally {
+      releaseLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  public void fsync(String path, long fh, boolean isDatasync) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.fsync(path, fh, isDatasync);
+      failed = false;
+    } finally {
+      fsyncLatency.record(System.nanoTime() - start, failed);
+    }
+  }
+}
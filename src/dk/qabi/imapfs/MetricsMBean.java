@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+/**
+ * The management interface of {@link Metrics}
+ */
+public interface MetricsMBean {
+
+  /**
+   * @return one line per file system operation, with the number of calls, errors and latency percentiles
+   */
+  String[] getOperations();
+
+  /**
+   * @return one line per IMAP command, with the number of times it has been issued
+   */
+  String[] getCommands();
+
+  long getCommandCount();
+
+  long getBytesFetched();
+
+  long getBytesAppended();
+
+  long getReadHits();
+
+  long getReadMisses();
+
+  long getPathCacheHits();
+
+  long getPathCacheMisses();
+
+  long getEvictions();
+
+  long getDiskUsage();
+
+  /**
+   * @return everything as text
+   */
+  String getReport();
+
+  void reset();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Remembers what absolute paths resolve to, so that the tree needs not be walked for every operation.
+ *
+ * An entry found is only used as long as it and all of its ancestors are still among the up to date children of
+ * their directories, i.e. as long as walking the tree would give the same result without any IMAP traffic. Paths not
+ * found are remembered for a while, so that repeated lookups of names that do not exist make no IMAP traffic either.
+ */
+class PathCache {
+
+  private static final int MAX_MISSING = 10000;
+
+  private Map<String, IMAPEntry> found = new ConcurrentHashMap<String, IMAPEntry>();
+
+  /* Paths not found, with the time they expire */
+  private Map<String, Long> missing = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @param path absolute path
+   * @return the entry the path resolved to, or null if not known
+   */
+  IMAPEntry get(String path) {
+    IMAPEntry entry = found.get(path);
+    if (entry == null)
+      return null;
+
+    if (!isCurrent(entry)) {
+      found.remove(path);
+      return null;
+    }
+
+    return entry;
+  }
+
+  /**
+   * @param entry an entry
+   * @return true if the entry is still what its path resolves to in the tree as currently known
+   */
+  static boolean isCurrent(IMAPEntry entry) {
+    for (IMAPEntry e = entry; e.parent != null; e = e.parent) {
+      Map<String, IMAPEntry> siblings = e.parent.getCurrentChildren();
+      if (siblings == null || siblings.get(e.getName()) != e)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param path absolute path
+   * @return true if the path was recently found not to exist
+   */
+  boolean isMissing(String path) {
+    Long expires = missing.get(path);
+    if (expires == null)
+      return false;
+
+    if (expires < System.currentTimeMillis()) {
+      missing.remove(path);
+      return false;
+    }
+
+    return true;
+  }
+
+  void put(String path, IMAPEntry entry) {
+    if (isCurrent(entry))
+      found.put(path, entry);
+  }
+
+  void putMissing(String path) {
+    long now = System.currentTimeMillis();
+
+    if (missing.size() >= MAX_MISSING) {
+      for (Iterator<Long> i = missing.values().iterator(); i.hasNext();) {
+        if (i.next() < now)
+          i.remove();
+      }
+      if (missing.size() >= MAX_MISSING)
+        missing.clear();
+    }
+
+    missing.put(path, now + Configuration.getNegativeLookupTimeout());
+  }
+
+  /**
+   * Forgets a path and all paths below it, found or not
+   * @param path absolute path
+   */
+  void invalidate(String path) {
+    String prefix = path.endsWith("/") ? path : path + "/";
+
+    found.remove(path);
+    missing.remove(path);
+    invalidatePrefix(found, prefix);
+    invalidatePrefix(missing, prefix);
+  }
+
+  private static void invalidatePrefix(Map<String, ?> map, String prefix) {
+    for (Iterator<String> i = map.keySet().iterator(); i.hasNext();) {
+      if (i.next().startsWith(prefix))
+        i.remove();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.mail.Message;
+import javax.mail.Quota;
+
+import com.sun.mail.iap.Literal;
+import com.sun.mail.imap.IMAPMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Keeps track of the quota usage locally, so that statfs needs not ask the server every time. The usage reported by
+ * the server is adjusted by the size of the messages appended and expunged since, and only reconciled with the server
+ * again at the configured interval, which is also when changes made by other clients show up.
+ */
+class QuotaUsage {
+  private static QuotaUsage instance = new QuotaUsage();
+
+  static QuotaUsage getInstance() {
+    return instance;
+  }
+
+  private Log log = LogFactory.getLog(getClass());
+
+  /* Limits and usage as last reported by the server plus local changes since, -1 if the server has no such limit */
+  private long storageLimit = -1;
+  private long storageUsage;
+  private long messageLimit = -1;
+  private long messageUsage;
+
+  /* When the usage was last reconciled with the server, 0 if never */
+  private long reconciled;
+
+  private QuotaUsage() {
+  }
+
+  /**
+   * @return true if the usage should be reconciled with the server
+   */
+  synchronized boolean isDue() {
+    return reconciled == 0 || System.currentTimeMillis() - reconciled >= Configuration.getQuotaInterval();
+  }
+
+  /**
+   * @return true if the usage has been reconciled with the server at least once
+   */
+  synchronized boolean isKnown() {
+    return reconciled != 0;
+  }
+
+  /**
+   * Replaces the usage with what the server reports
+   * @param quota the quota of the root folder, or null if it has none
+   */
+  synchronized void reconcile(Quota quota) {
+    storageLimit = messageLimit = -1;
+    storageUsage = messageUsage = 0;
+
+    if (quota != null) {
+      for (Quota.Resource r : quota.resources) {
+        if ("STORAGE".equalsIgnoreCase(r.name)) {
+          // In units of 1024 octets
+          storageLimit = r.limit * 1024;
+          storageUsage = r.usage * 1024;
+        } else if ("MESSAGE".equalsIgnoreCase(r.name)) {
+          messageLimit = r.limit;
+          messageUsage = r.usage;
+        }
+      }
+    }
+
+    reconciled = System.currentTimeMillis();
+  }
+
+  /**
+   * Registers that messages have been added to the server
+   * @param msgs the messages
+   * @return the number of bytes added
+   */
+  long added(Message[] msgs) {
+    long bytes = 0;
+    for (Message m : msgs)
+      bytes += sizeOf(m);
+
+    synchronized (this) {
+      storageUsage += bytes;
+      messageUsage += msgs.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Registers that messages have been expunged from the server
+   * @param msgs the messages
+   */
+  void expunged(Message[] msgs) {
+    long bytes = 0;
+    for (Message m : msgs)
+      bytes += sizeOf(m);
+
+    synchronized (this) {
+      storageUsage = Math.max(0, storageUsage - bytes);
+      messageUsage = Math.max(0, messageUsage - msgs.length);
+    }
+  }
+
+  /**
+   * @return the storage limit in bytes, or -1 if none
+   */
+  synchronized long getStorageLimit() {
+    return storageLimit;
+  }
+
+  synchronized long getStorageUsage() {
+    return storageUsage;
+  }
+
+  /**
+   * @return the limit on the number of messages, or -1 if none
+   */
+  synchronized long getMessageLimit() {
+    return messageLimit;
+  }
+
+  synchronized long getMessageUsage() {
+    return messageUsage;
+  }
+
+  /**
+   * Get the size of a message as stored on the server. Messages on the server have their size prefetched when
+   * listed or before being expunged, and messages appended are either streamed, with a size known up front, or small
+   * enough to be written out to count.
+   */
+  private long sizeOf(Message m) {
+    try {
+      if (m instanceof Literal) {
+        return ((Literal) m).size();
+      } else if (m instanceof IMAPMessage) {
+        return Math.max(0, m.getSize());
+      } else {
+        CountingOutputStream out = new CountingOutputStream();
+        m.writeTo(out);
+        return out.count;
+      }
+    } catch (Exception e) {
+      log.debug("Cannot determine size of message", e);
+      return 0;
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    long count;
+
+    public void write(int b) throws IOException {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+    }
+  }
+}
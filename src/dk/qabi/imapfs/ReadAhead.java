@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Detects sequential reading through an open file, and then fetches the data ahead of the reader in the background.
+ * The window fetched ahead starts at a few read blocks and doubles every time the reader catches up with half of it,
+ * up to the configured maximum. Reading elsewhere in the file starts over.
+ */
+class ReadAhead {
+
+  /* Number of reads continuing where the previous one ended before reading ahead */
+  private static final int SEQUENTIAL_READS = 3;
+
+  private static ExecutorService executor = Executors.newFixedThreadPool(Configuration.getConnections(),
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Read-ahead");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private Log log = LogFactory.getLog(getClass());
+
+  private IMAPFile file;
+  private long nextOffset = -1;
+  private int sequential;
+  private long window;
+  private long aheadEnd;
+  private boolean pending;
+
+  ReadAhead(IMAPFile file) {
+    this.file = file;
+  }
+
+  IMAPFile getFile() {
+    return file;
+  }
+
+  /**
+   * Registers a read of the file, and starts fetching ahead if the file is being read sequentially
+   * @param offset offset of the first byte read
+   * @param length number of bytes read
+   */
+  synchronized void read(long offset, int length) {
+    long max = Configuration.getReadAheadSize();
+    if (max <= 0 || length <= 0)
+      return;
+
+    if (offset == nextOffset) {
+      sequential++;
+    } else {
+      sequential = 0;
+      window = Math.min(max, 4L * Configuration.getReadBlockSize());
+      aheadEnd = 0;
+    }
+    nextOffset = offset + length;
+
+    if (sequential < SEQUENTIAL_READS || pending || aheadEnd - nextOffset > window / 2)
+      return;
+
+    final long start = Math.max(aheadEnd, nextOffset);
+    final long end = nextOffset + window;
+    aheadEnd = end;
+    window = Math.min(max, window * 2);
+    pending = true;
+
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          file.readAhead(start, end - start);
+        } catch (Exception e) {
+          log.debug("Error reading ahead in '" + file.getAbsoluteName() + "'", e);
+        } finally {
+          synchronized (ReadAhead.this) {
+            pending = false;
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import fuse.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Filesystem decorator that records every call, with its paths, file handle, offset, length, start and latency, to
+ * a {@link TraceRecorder}
+ */
+public class TraceFilesystem implements Filesystem {
+  private Filesystem fs;
+  private TraceRecorder trace;
+
+  public TraceFilesystem(Filesystem delegate, TraceRecorder trace) {
+    this.fs = delegate;
+    this.trace = trace;
+  }
+
+  public FuseStat getattr(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseStat result = fs.getattr(path);
+      failed = false;
+      return result;
+    } finally {
+      trace.record(TraceRecorder.GETATTR, failed, path, null, 0, 0, 0, start);
+    }
+  }
+
+  public String readlink(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      String result = fs.readlink(path);
+      failed = false;
+      return result;
+    } finally {
+      trace.record(TraceRecorder.READLINK, failed, path, null, 0, 0, 0, start);
+    }
+  }
+
+  public FuseDirEnt[] getdir(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseDirEnt[] result = fs.getdir(path);
+      failed = false;
+      return result;
+    } finally {
+      trace.record(TraceRecorder.GETDIR, failed, path, null, 0, 0, 0, start);
+    }
+  }
+
+  public void mknod(String path, int mode, int rdev) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.mknod(path, mode, rdev);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.MKNOD, failed, path, null, 0, 0, mode, start);
+    }
+  }
+
+  public void mkdir(String path, int mode) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.mkdir(path, mode);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.MKDIR, failed, path, null, 0, 0, mode, start);
+    }
+  }
+
+  public void unlink(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.unlink(path);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.UNLINK, failed, path, null, 0, 0, 0, start);
+    }
+  }
+
+  public void rmdir(String path) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.rmdir(path);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.RMDIR, failed, path, null, 0, 0, 0, start);
+    }
+  }
+
+  public void symlink(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.symlink(from, to);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.SYMLINK, failed, from, to, 0, 0, 0, start);
+    }
+  }
+
+  public void rename(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.rename(from, to);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.RENAME, failed, from, to, 0, 0, 0, start);
+    }
+  }
+
+  public void link(String from, String to) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.link(from, to);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.LINK, failed, from, to, 0, 0, 0, start);
+    }
+  }
+
+  public void chmod(String path, int mode) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.chmod(path, mode);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.CHMOD, failed, path, null, 0, 0, mode, start);
+    }
+  }
+
+  public void chown(String path, int uid, int gid) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.chown(path, uid, gid);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.CHOWN, failed, path, null, 0, uid, gid, start);
+    }
+  }
+
+  public void truncate(String path, long size) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.truncate(path, size);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.TRUNCATE, failed, path, null, 0, size, 0, start);
+    }
+  }
+
+  public void utime(String path, int atime, int mtime) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.utime(path, atime, mtime);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.UTIME, failed, path, null, 0, atime, mtime, start);
+    }
+  }
+
+  public FuseStatfs statfs() throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      FuseStatfs result = fs.statfs();
+      failed = false;
+      return result;
+    } finally {
+      trace.record(TraceRecorder.STATFS, failed, null, null, 0, 0, 0, start);
+    }
+  }
+
+  public long open(String path, int flags) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    long fh = 0;
+    try {
+      fh = fs.open(path, flags);
+      failed = false;
+      return fh;
+    } finally {
+      trace.record(TraceRecorder.OPEN, failed, path, null, fh, 0, flags, start);
+    }
+  }
+
+  public void read(String path, long fh, ByteBuffer buf, long offset) throws FuseException {
+    long start = System.nanoTime();
+    int length = buf.remaining();
+    boolean failed = true;
+    try {
+      fs.read(path, fh, buf, offset);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.READ, failed, path, null, fh, offset, length, start);
+    }
+  }
+
+  public void write(String path, long fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException {
+    long start = System.nanoTime();
+    int length = buf.remaining();
+    boolean failed = true;
+    try {
+      fs.write(path, fh, isWritepage, buf, offset);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.WRITE, failed, path, null, fh, offset, length, start);
+    }
+  }
+
+  public void flush(String path, long fh) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.flush(path, fh);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.FLUSH, failed, path, null, fh, 0, 0, start);
+    }
+  }
+
+  public void release(String path, long fh, int flags) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.release(path, fh, flags);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.RELEASE, failed, path, null, fh, 0, flags, start);
+    }
+  }
+
+  public void fsync(String path, long fh, boolean isDatasync) throws FuseException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      fs.fsync(path, fh, isDatasync);
+      failed = false;
+    } finally {
+      trace.record(TraceRecorder.FSYNC, failed, path, null, fh, 0, isDatasync ? 1 : 0, start);
+    }
+  }
+}
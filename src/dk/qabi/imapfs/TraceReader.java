@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a file of a trace written by {@link TraceRecorder}. A file cut short, e.g. because the file system was not
+ * unmounted, ends at its last whole record. Calls are read in the order they were written, which is the order they
+ * started only within the block of a thread.
+ */
+public class TraceReader {
+
+  /**
+   * A recorded call
+   */
+  public static class Record {
+    public int op;
+    public boolean failed;
+    public String path;
+    public String path2;
+    public long fh;
+    public long offset;
+    public long length;
+
+    /* When the call started, in microseconds since the epoch */
+    public long start;
+
+    /* How long the call took, in microseconds */
+    public long latency;
+
+    public String getName() {
+      return op < TraceRecorder.NAMES.length ? TraceRecorder.NAMES[op] : "op" + op;
+    }
+
+    public String toString() {
+      return start + " " + getName() + "(" + path + (path2 != null ? ", " + path2 : "") + ", fh=" + fh + ", offset="
+          + offset + ", length=" + length + ")" + (failed ? " failed" : "") + " " + latency + "us";
+    }
+  }
+
+  private DataInputStream in;
+  private Map<Long, String> paths = new HashMap<Long, String>();
+  private long base;
+  private long start;
+
+  /**
+   * @param file a file of the trace
+   * @throws IOException if the file cannot be read or is not a trace
+   */
+  public TraceReader(File file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+    try {
+      if (!TraceRecorder.MAGIC.equals(in.readUTF()))
+        throw new IOException(file + " is not a trace");
+      int version = in.readInt();
+      if (version != TraceRecorder.VERSION)
+        throw new IOException("Version " + version + " of " + file + " is not supported");
+      this.base = in.readLong() * 1000;
+      this.start = base;
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the next call, or null at the end of the file
+   * @throws IOException if the file cannot be read
+   */
+  public Record next() throws IOException {
+    try {
+      while (true) {
+        int op = in.read();
+        if (op == -1)
+          return null;
+
+        if (op == TraceRecorder.BLOCK) {
+          // Path ids and starts are relative to the block
+          paths.clear();
+          start = base + unzigzag(readVarint());
+          continue;
+        }
+
+        if (op == TraceRecorder.PATH) {
+          long id = readVarint();
+          byte[] bytes = new byte[(int) readVarint()];
+          in.readFully(bytes);
+          paths.put(id, new String(bytes, "UTF-8"));
+          continue;
+        }
+
+        Record r = new Record();
+        r.op = op;
+        r.failed = in.readByte() != 0;
+        r.path = paths.get(readVarint());
+        r.path2 = paths.get(readVarint());
+        r.fh = readVarint();
+        r.offset = readVarint();
+        r.length = readVarint();
+        long delta = readVarint();
+        start += unzigzag(delta);
+        r.start = start;
+        r.latency = readVarint();
+        return r;
+      }
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records file system calls to a compact binary trace, which {@link TraceReader} reads back.
+ * <p>
+ * Each calling thread encodes its calls into an in-memory block of its own, so recording threads never wait for each
+ * other, and full blocks are written by a background thread, so recording never waits for the disk. If the writer
+ * falls behind and no block is free, records are dropped and counted rather than holding up the file system. When a
+ * file reaches its maximum size the trace goes on in a new one, and the oldest are deleted: trace, trace.1, trace.2
+ * and so on, from newest to oldest.
+ * <p>
+ * A file starts with a header (the UTF string "IMAPFS trace", an int version and the wall clock time in milliseconds
+ * as a long when recording started) followed by blocks of records. A record starts with its operation. A block starts
+ * with a {@link #BLOCK} record giving the start of its first call in microseconds since recording started; the path
+ * ids and the start of the previous call start over with each block. {@link #PATH} records give a path the id that
+ * later records of the block refer to it by: the id and the UTF-8 bytes of the path, preceded by their length. Other
+ * records are a call: whether it failed, the ids of its path and its second path (0 if none), the file handle, the
+ * offset, the length, the start in microseconds since the previous call of the block started and the latency in
+ * microseconds. All numbers are unsigned variable length, 7 bits to a byte, except the starts which are zigzag
+ * encoded, as calls finish out of order. Blocks are written as threads fill them, so calls are in the order they
+ * started only within a block.
+ */
+public class TraceRecorder {
+  private Log log = LogFactory.getLog(getClass());
+
+  static final String MAGIC = "IMAPFS trace";
+  static final int VERSION = 2;
+
+  static final int PATH = 0;
+  static final int GETATTR = 1;
+  static final int READLINK = 2;
+  static final int GETDIR = 3;
+  static final int MKNOD = 4;
+  static final int MKDIR = 5;
+  static final int UNLINK = 6;
+  static final int RMDIR = 7;
+  static final int SYMLINK = 8;
+  static final int RENAME = 9;
+  static final int LINK = 10;
+  static final int CHMOD = 11;
+  static final int CHOWN = 12;
+  static final int TRUNCATE = 13;
+  static final int UTIME = 14;
+  static final int STATFS = 15;
+  static final int OPEN = 16;
+  static final int READ = 17;
+  static final int WRITE = 18;
+  static final int FLUSH = 19;
+  static final int RELEASE = 20;
+  static final int FSYNC = 21;
+  static final int BLOCK = 22;
+
+  static final String[] NAMES = {"path", "getattr", "readlink", "getdir", "mknod", "mkdir", "unlink", "rmdir",
+      "symlink", "rename", "link", "chmod", "chown", "truncate", "utime", "statfs", "open", "read", "write", "flush",
+      "release", "fsync", "block"};
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int BLOCKS = 16;
+
+  /**
+   * A block of records, with the state of its encoding
+   */
+  private static class Block {
+    ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+    Map<String, Integer> pathIds = new HashMap<String, Integer>();
+    long lastStart;
+  }
+
+  /**
+   * The block a thread records to. Besides that thread, only the writer takes the lock, to hand off what a thread has
+   * recorded when it has been idle for a while.
+   */
+  private static class Slot {
+    Thread thread = Thread.currentThread();
+    Block block;
+  }
+
+  private File file;
+  private long maxSize;
+  private int maxFiles;
+
+  private BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(BLOCKS);
+  private BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(BLOCKS);
+  private Thread writer;
+  private volatile boolean closed;
+
+  private List<Slot> slots = new CopyOnWriteArrayList<Slot>();
+  private ThreadLocal<Slot> slot = new ThreadLocal<Slot>() {
+    protected Slot initialValue() {
+      Slot s = new Slot();
+      slots.add(s);
+      return s;
+    }
+  };
+
+  /* When recording started, which the starts of calls are relative to */
+  private long base = System.nanoTime();
+  private long baseMillis = System.currentTimeMillis();
+
+  private AtomicLong records = new AtomicLong();
+  private AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Starts recording; an existing trace is kept as the first older file
+   * @param file the trace file
+   * @param maxSize size of a file at which the trace goes on in a new one, in bytes
+   * @param maxFiles number of files kept, including the one being recorded to
+   */
+  public TraceRecorder(File file, long maxSize, int maxFiles) {
+    this.file = file;
+    this.maxSize = maxSize;
+    this.maxFiles = Math.max(1, maxFiles);
+
+    for (int i = 0; i < BLOCKS; i++)
+      free.add(new Block());
+
+    this.writer = new Thread("Trace writer") {
+      public void run() {
+        writeForever();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+
+    log.info("Recording a trace to " + file);
+  }
+
+  /**
+   * Records a call
+   * @param op the operation, e.g. {@link #READ}
+   * @param failed whether the call threw an exception
+   * @param path the path of the call, or null if none
+   * @param path2 the second path, e.g. the destination of a rename, or null if none
+   * @param fh the file handle, or 0 if none
+   * @param offset the offset, or e.g. the size for truncate
+   * @param length the length, or e.g. the mode for mkdir or the flags for open
+   * @param start when the call started, as {@link System#nanoTime}
+   */
+  public void record(int op, boolean failed, String path, String path2, long fh, long offset, long length,
+                     long start) {
+    long latency = (System.nanoTime() - start) / 1000;
+    if (closed) {
+      dropped.incrementAndGet();
+      return;
+    }
+
+    byte[] pathBytes = path != null ? encode(path) : null;
+    byte[] path2Bytes = path2 != null ? encode(path2) : null;
+    long startMicros = (start - base) / 1000;
+    fh = Math.max(0, fh);
+    offset = Math.max(0, offset);
+    length = Math.max(0, length);
+
+    Slot s = slot.get();
+    synchronized (s) {
+      Block block = s.block;
+      if (block != null && getLength(block, path, pathBytes, path2, path2Bytes, fh, offset, length, startMicros,
+          latency) > block.buf.remaining()) {
+        handOff(s);
+        block = null;
+      }
+      if (block == null) {
+        block = free.poll();
+        if (block == null) {
+          dropped.incrementAndGet();
+          return;
+        }
+        block.buf.put((byte) BLOCK);
+        putVarint(block.buf, zigzag(startMicros));
+        block.lastStart = startMicros;
+        s.block = block;
+
+        if (getLength(block, path, pathBytes, path2, path2Bytes, fh, offset, length, startMicros, latency)
+            > block.buf.remaining()) {
+          dropped.incrementAndGet();
+          return;
+        }
+      }
+
+      ByteBuffer buf = block.buf;
+      int pathId = getPathId(block, path, pathBytes);
+      int path2Id = getPathId(block, path2, path2Bytes);
+
+      long delta = startMicros - block.lastStart;
+      block.lastStart = startMicros;
+
+      buf.put((byte) op);
+      buf.put((byte) (failed ? 1 : 0));
+      putVarint(buf, pathId);
+      putVarint(buf, path2Id);
+      putVarint(buf, fh);
+      putVarint(buf, offset);
+      putVarint(buf, length);
+      putVarint(buf, zigzag(delta));
+      putVarint(buf, latency);
+    }
+    records.incrementAndGet();
+  }
+
+  /**
+   * Get the number of bytes the record of a call takes in a block, including the paths it defines
+   */
+  private static int getLength(Block block, String path, byte[] pathBytes, String path2, byte[] path2Bytes, long fh,
+                               long offset, long length, long startMicros, long latency) {
+    int n = 2 + varintLength(fh) + varintLength(offset) + varintLength(length)
+        + varintLength(zigzag(startMicros - block.lastStart)) + varintLength(latency);
+
+    int nextId = block.pathIds.size() + 1;
+    Integer id = path != null ? block.pathIds.get(path) : Integer.valueOf(0);
+    if (id == null) {
+      id = nextId++;
+      n += getDefinitionLength(id, pathBytes);
+    }
+    Integer id2 = path2 != null ? block.pathIds.get(path2) : Integer.valueOf(0);
+    if (id2 == null && path2.equals(path)) {
+      id2 = id;
+    } else if (id2 == null) {
+      id2 = nextId;
+      n += getDefinitionLength(id2, path2Bytes);
+    }
+    return n + varintLength(id) + varintLength(id2);
+  }
+
+  private static int getDefinitionLength(int id, byte[] bytes) {
+    return 1 + varintLength(id) + varintLength(bytes.length) + bytes.length;
+  }
+
+  private static byte[] encode(String path) {
+    try {
+      return path.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Get the id of a path in a block, defining it first if it has none
+   * @return the id, or 0 for no path
+   */
+  private static int getPathId(Block block, String path, byte[] bytes) {
+    if (path == null)
+      return 0;
+
+    Integer id = block.pathIds.get(path);
+    if (id == null) {
+      id = block.pathIds.size() + 1;
+      block.pathIds.put(path, id);
+
+      block.buf.put((byte) PATH);
+      putVarint(block.buf, id);
+      putVarint(block.buf, bytes.length);
+      block.buf.put(bytes);
+    }
+    return id;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static void putVarint(ByteBuffer buf, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buf.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+  }
+
+  private static int varintLength(long value) {
+    int n = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Hands the block of a thread to the writer
+   */
+  private void handOff(Slot s) {
+    s.block.buf.flip();
+    full.add(s.block);
+    s.block = null;
+  }
+
+  /**
+   * Hands what has been recorded to the writer, so that it reaches the disk even if nothing more is recorded
+   */
+  void flush() {
+    for (Slot s : slots) {
+      synchronized (s) {
+        if (s.block != null)
+          handOff(s);
+        if (!s.thread.isAlive())
+          slots.remove(s);
+      }
+    }
+  }
+
+  /**
+   * Get the header a file starts with
+   */
+  private ByteBuffer getHeader() {
+    byte[] magic = encode(MAGIC);
+    ByteBuffer buf = ByteBuffer.allocate(2 + magic.length + 4 + 8);
+    buf.putShort((short) magic.length);
+    buf.put(magic);
+    buf.putInt(VERSION);
+    buf.putLong(baseMillis);
+    buf.flip();
+    return buf;
+  }
+
+  private void writeForever() {
+    FileOutputStream out = null;
+    long fileSize = 0;
+    try {
+      while (true) {
+        Block block = full.poll(1, TimeUnit.SECONDS);
+        if (block == null) {
+          if (closed)
+            break;
+          flush();
+          continue;
+        }
+
+        if (out == null || fileSize >= maxSize) {
+          if (out != null)
+            out.close();
+          rotate();
+          out = new FileOutputStream(file);
+          fileSize = out.getChannel().write(getHeader());
+        }
+        fileSize += out.getChannel().write(block.buf);
+
+        block.buf.clear();
+        block.pathIds.clear();
+        free.add(block);
+      }
+    } catch (InterruptedException e) {
+      log.warn("Trace writer interrupted");
+    } catch (IOException e) {
+      log.error("Error writing trace to " + file + ", no longer recording", e);
+      closed = true;
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (IOException e) {
+        log.warn("Error closing trace " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Shifts the existing files one older, deleting the oldest
+   */
+  private void rotate() {
+    File oldest = new File(file.getPath() + "." + (maxFiles - 1));
+    if (maxFiles == 1)
+      oldest = file;
+    if (oldest.exists() && !oldest.delete())
+      log.warn("Could not delete old trace " + oldest);
+
+    for (int i = maxFiles - 2; i >= 0; i--) {
+      File from = i == 0 ? file : new File(file.getPath() + "." + i);
+      if (from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1))))
+        log.warn("Could not rename old trace " + from);
+    }
+  }
+
+  long getRecords() {
+    return records.get();
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes what has been recorded and stops recording
+   */
+  public void close() {
+    flush();
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while closing trace");
+    }
+    log.info("Recorded " + records.get() + " calls to " + file + ", dropped " + dropped.get());
+  }
+}
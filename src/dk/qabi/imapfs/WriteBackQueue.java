@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2008 Dennis Thrysøe
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package dk.qabi.imapfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import dk.qabi.imapfs.util.Configuration;
+
+/**
+ * Uploads flushed files in the background.
+ *
+ * A file is uploaded once it has not been flushed again for the configured delay, so repeated flushes of the same
+ * file result in a single upload. Operations that need the data on the server, like fsync, complete the upload of a
+ * file right away.
+ */
+class WriteBackQueue {
+  private Log log = LogFactory.getLog(getClass());
+
+  private static class Pending {
+    long queued;
+    long flushed;
+  }
+
+  /* Files waiting to be uploaded, in the order they were first flushed */
+  private Map<IMAPFile, Pending> pending = new LinkedHashMap<IMAPFile, Pending>();
+  private long delay;
+  private Thread uploader;
+  private volatile boolean closed;
+
+  private volatile long lastLag;
+  private AtomicLong uploads = new AtomicLong();
+
+  WriteBackQueue() {
+    this.delay = Configuration.getWriteBackDelay();
+
+    this.uploader = new Thread("Write-back uploader") {
+      public void run() {
+        uploadForever();
+      }
+    };
+    uploader.setDaemon(true);
+    uploader.start();
+  }
+
+  /**
+   * Queues a file for upload, or postpones its upload if it is already queued
+   * @param file the flushed file
+   */
+  synchronized void enqueue(IMAPFile file) {
+    long now = System.currentTimeMillis();
+
+    Pending p = pending.get(file);
+    if (p == null) {
+      p = new Pending();
+      p.queued = now;
+      pending.put(file, p);
+    }
+    p.flushed = now;
+
+    notifyAll();
+  }
+
+  /**
+   * Uploads a file now if it has been flushed, and waits for any upload of it in progress to finish
+   * @param file the file
+   * @throws MessagingException if IMAP communication goes wrong
+   * @throws IOException if I/O errors occur
+   */
+  void complete(IMAPFile file) throws MessagingException, IOException {
+    Pending p;
+    synchronized (this) {
+      p = pending.remove(file);
+    }
+
+    // Flushing waits for an upload in progress, so it is done after it
+    file.flush();
+
+    if (p != null)
+      uploaded(file, p);
+  }
+
+  /**
+   * Forgets a file that will not need uploading, e.g. because it is deleted
+   * @param file the file
+   */
+  synchronized void cancel(IMAPFile file) {
+    pending.remove(file);
+  }
+
+  /**
+   * Uploads all queued files and stops uploading in the background
+   */
+  void close() {
+    closed = true;
+    uploader.interrupt();
+    completeAll();
+  }
+
+  /**
+   * Uploads all queued files now
+   */
+  void completeAll() {
+    List<IMAPFile> files;
+    synchronized (this) {
+      files = new ArrayList<IMAPFile>(pending.keySet());
+    }
+
+    for (IMAPFile file : files) {
+      try {
+        complete(file);
+      } catch (Exception e) {
+        log.error("Error uploading '" + file.getAbsoluteName() + "'", e);
+      }
+    }
+  }
+
+  /**
+   * @return the number of files waiting to be uploaded
+   */
+  synchronized int getQueueLength() {
+    return pending.size();
+  }
+
+  /**
+   * @return the time the longest waiting file has been waiting for upload, in milliseconds
+   */
+  synchronized long getLag() {
+    Iterator<Pending> i = pending.values().iterator();
+    return i.hasNext() ? System.currentTimeMillis() - i.next().queued : 0;
+  }
+
+  /**
+   * @return the time from first flush to upload of the file uploaded most recently, in milliseconds
+   */
+  long getLastUploadLag() {
+    return lastLag;
+  }
+
+  /**
+   * @return the number of uploads done
+   */
+  long getUploads() {
+    return uploads.get();
+  }
+
+  private void uploaded(IMAPFile file, Pending p) {
+    lastLag = System.currentTimeMillis() - p.queued;
+    uploads.incrementAndGet();
+    log.debug("uploaded '" + file.getAbsoluteName() + "' " + lastLag + " ms after first flush, "
+        + getQueueLength() + " file(s) queued");
+  }
+
+  private void uploadForever() {
+    while (!closed) {
+      IMAPFile file = null;
+      Pending p = null;
+
+      try {
+        synchronized (this) {
+          while (file == null) {
+            long now = System.currentTimeMillis();
+            long wait = 0;
+
+            for (Map.Entry<IMAPFile, Pending> e : pending.entrySet()) {
+              long due = e.getValue().flushed + delay;
+              if (due <= now) {
+                file = e.getKey();
+                p = e.getValue();
+                break;
+              } else if (wait == 0 || due - now < wait) {
+                wait = due - now;
+              }
+            }
+
+            if (file == null)
+              wait(wait);
+          }
+          pending.remove(file);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      try {
+        file.flush();
+        uploaded(file, p);
+      } catch (Exception e) {
+        log.error("Error uploading '" + file.getAbsoluteName() + "', will retry", e);
+        synchronized (this) {
+          if (!pending.containsKey(file)) {
+            p.flushed = System.currentTimeMillis();
+            pending.put(file, p);
+          }
+        }
+      }
+    }
+  }
+}
@@ -4,8 +4,170 @@ import java.io.File;
 
 public class Configuration {
 
+  /**
+   * Maximum size of the local copies of files, in bytes. Copies of files that are open or modified are kept regardless.
+   */
   public static long getMaxDiskUsage() {
-    return 1000000000;
+    return Long.getLong("imapfs.maxdiskusage", 1000000000);
+  }
+
+  /**
+   * Whether reads of files not yet cached locally fetch only the requested blocks from the server
+   */
+  public static boolean isRangedReads() {
+    return !"false".equals(System.getProperty("imapfs.rangedreads"));
+  }
+
+  /**
+   * Granularity of ranged reads, in bytes
+   */
+  public static int getReadBlockSize() {
+    return Integer.getInteger("imapfs.readblocksize", 65536);
+  }
+
+  /**
+   * Largest range of data fetched with a single command when downloading, in bytes
+   */
+  public static int getFetchBlockSize() {
+    return Integer.getInteger("imapfs.fetchblocksize", 1024 * 1024);
+  }
+
+  /**
+   * Largest amount of data fetched ahead of a sequential reader, in bytes. 0 disables read-ahead.
+   */
+  public static long getReadAheadSize() {
+    return Long.getLong("imapfs.readahead", 8 * 1024 * 1024);
+  }
+
+  /**
+   * Files larger than this are stored as a manifest and a number of chunk messages of this size. 0 disables chunking,
+   * except for files too large to be stored in a single message.
+   */
+  public static long getChunkSize() {
+    return Long.getLong("imapfs.chunksize", 8 * 1024 * 1024);
+  }
+
+  /**
+   * Whether FUSE may call the filesystem from several threads at once
+   */
+  public static boolean isMultithreaded() {
+    return Boolean.getBoolean("imapfs.multithreaded");
+  }
+
+  /**
+   * Number of pooled IMAP connections to the server. Each folder opened on one takes a connection of its own, see
+   * {@link #getGuestFolders}.
+   */
+  public static int getConnections() {
+    return Integer.getInteger("imapfs.connections", isMultithreaded() ? 4 : 1);
+  }
+
+  /**
+   * Number of folders each pooled connection keeps open for reads borrowed away from the folder's own connection. The
+   * least recently used are closed beyond it.
+   */
+  public static int getGuestFolders() {
+    return Integer.getInteger("imapfs.guestfolders", 2);
+  }
+
+  /**
+   * Number of recently listed directories watched with IDLE, each on a connection of its own, so that their listings
+   * can be served from memory. 0 disables watching.
+   */
+  public static int getIdleConnections() {
+    return Integer.getInteger("imapfs.idle", 0);
+  }
+
+  /**
+   * How often the quota usage tracked locally is reconciled with the server, in milliseconds
+   */
+  public static long getQuotaInterval() {
+    return Long.getLong("imapfs.quotainterval", 5 * 60 * 1000);
+  }
+
+  /**
+   * Whether the latency of every file system operation is recorded, and the metrics registered with JMX
+   */
+  public static boolean isMetrics() {
+    return Boolean.getBoolean("imapfs.metrics");
+  }
+
+  /**
+   * How often the metrics are logged, in milliseconds, or 0 if never
+   */
+  public static long getMetricsDumpInterval() {
+    return Long.getLong("imapfs.metricsdump", 0);
+  }
+
+  /**
+   * How long a path is remembered as not existing, in milliseconds
+   */
+  public static long getNegativeLookupTimeout() {
+    return Long.getLong("imapfs.negativelookuptimeout", 5000);
+  }
+
+  /**
+   * Whether flushed files are uploaded in the background rather than by the flush itself. fsync still waits for the
+   * upload.
+   */
+  public static boolean isWriteBack() {
+    return Boolean.getBoolean("imapfs.writeback");
+  }
+
+  /**
+   * How long a flushed file must go without being flushed again before it is uploaded in the background, in
+   * milliseconds
+   */
+  public static long getWriteBackDelay() {
+    return Long.getLong("imapfs.writebackdelay", 1000);
+  }
+
+  /**
+   * How long messages of deleted or replaced files may wait before they are expunged, in milliseconds
+   */
+  public static long getExpungeDelay() {
+    return Long.getLong("imapfs.expungedelay", 2000);
+  }
+
+  /**
+   * Number of messages waiting in a folder that causes them to be expunged without further delay
+   */
+  public static int getExpungeBatchSize() {
+    return Integer.getInteger("imapfs.expungebatch", 500);
+  }
+
+  /**
+   * File the metadata of the tree is saved in between mounts, next to the disk store folder, or null if disabled
+   */
+  public static File getSnapshotFile() {
+    String name = System.getProperty("imapfs.snapshot", "imapfs.snapshot");
+    if (name.length() == 0)
+      return null;
+    return new File(getDiskstoreFolder().getParentFile(), name);
+  }
+
+  /**
+   * File the calls to the file system are traced to, or null if not tracing
+   */
+  public static File getTraceFile() {
+    String name = System.getProperty("imapfs.trace");
+    if (name == null || name.length() == 0)
+      return null;
+    return new File(name);
+  }
+
+  /**
+   * Size of a trace file at which the trace goes on in a new file, in bytes
+   */
+  public static long getTraceFileSize() {
+    return Long.getLong("imapfs.tracesize", 64 * 1024 * 1024);
+  }
+
+  /**
+   * Number of trace files kept, including the one being written
+   */
+  public static int getTraceFiles() {
+    return Integer.getInteger("imapfs.tracefiles", 4);
   }
 
   public static File getDiskstoreFolder() {
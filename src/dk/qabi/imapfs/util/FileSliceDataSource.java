@@ -1,6 +1,5 @@
 /*
  * Copyright (c) 2008 Dennis Thrysøe
-
  *
  * This program is free software; you can redistribute it and/or modify it
  * under the terms of the GNU General Public License as published by the Free
@@ -19,36 +18,51 @@
 package dk.qabi.imapfs.util;
 
 import javax.activation.DataSource;
-import javax.activation.DataHandler;
-import javax.mail.MessagingException;
-import java.io.InputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.ByteArrayInputStream;
-import java.nio.ByteBuffer;
+import java.io.*;
 
 /**
- * This activation framework DataSource implementation is capable of rewriting all or part of existing data. 
+ * This activation framework DataSource implementation exposes a range of bytes of a file.
  */
-public class RewritingDataSource implements DataSource {
-  private ByteBuffer buf;
+public class FileSliceDataSource implements DataSource {
+  private File file;
   private long offset;
-  private DataHandler original;
+  private long length;
 
-  public RewritingDataSource(DataHandler original, ByteBuffer buf, long offset) throws MessagingException, IOException {
-    this.original = original;
-    this.buf = buf;
+  public FileSliceDataSource(File file, long offset, long length) {
+    this.file = file;
     this.offset = offset;
+    this.length = length;
   }
 
   public InputStream getInputStream() throws IOException {
-    if (offset > 0) {
-      // Read first N bytes from original input
-      return new ConcatInputStream(original.getInputStream(), offset, buf.array());
-    } else {
-      // Read all data directly from buffer
-      return new ByteArrayInputStream(buf.array());
-    }
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    raf.seek(offset);
+
+    return new InputStream() {
+      private long remaining = length;
+
+      public int read() throws IOException {
+        if (remaining <= 0)
+          return -1;
+        int b = raf.read();
+        if (b >= 0)
+          remaining--;
+        return b;
+      }
+
+      public int read(byte b[], int off, int len) throws IOException {
+        if (remaining <= 0)
+          return -1;
+        int n = raf.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0)
+          remaining -= n;
+        return n;
+      }
+
+      public void close() throws IOException {
+        raf.close();
+      }
+    };
   }
 
   public OutputStream getOutputStream() throws IOException {
@@ -56,10 +70,10 @@ public class RewritingDataSource implements DataSource {
   }
 
   public String getContentType() {
-    return original.getContentType();
+    return "application/octet-stream";
   }
 
   public String getName() {
-    return original.getName();
+    return file.getName();
   }
 }